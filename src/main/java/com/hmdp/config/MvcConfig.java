@@ -1,10 +1,12 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CircuitBreaker;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -15,12 +17,16 @@ public class MvcConfig implements WebMvcConfigurer {
 
     // 本类是spring创建的配置类，所以可以使用依赖注入
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+    @Resource
+    private CacheCodec cacheCodec;
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //添加和配置拦截器
         //1. token刷新拦截器
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);  //手动注入，设置拦截器优先级最高
+        registry.addInterceptor(new RefreshTokenInterceptor(binaryRedisTemplate, cacheCodec, redisCircuitBreaker)).order(0);  //手动注入，设置拦截器优先级最高
         //2. 登录拦截器
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns(  //排除不需要拦截的路径，直接放行
@@ -30,7 +36,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
-                        "/user/login"
+                        "/user/login",
+                        "/stats/**"
                 ).order(1);  //设置拦截器优先级为第二
     }
 }
@@ -0,0 +1,110 @@
+package com.hmdp.config;
+
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.DistributedLock;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopLocalCache;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.ShopSuggestIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+@Slf4j
+@Configuration
+public class RedisConfig {
+
+    @Resource
+    private ShopLocalCache shopLocalCache;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private ShopSuggestIndex shopSuggestIndex;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private DistributedLock distributedLock;
+
+    // key按字符串、value按原始字节读写的RedisTemplate，缓存的值交给CacheCodec编解码（兼容JSON和二进制）
+    @Bean
+    public RedisTemplate<String, byte[]> binaryRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    // 订阅缓存失效频道：任意节点更新店铺后，所有节点都删除自己的本地缓存
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                shopLocalCache.invalidateLocal(Long.valueOf(body));
+            } catch (NumberFormatException e) {
+                log.warn("无效的店铺缓存失效消息：{}", body);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_SHOP_INVALIDATE_CHANNEL));
+        // 订阅布隆过滤器新增频道：其它节点新增了数据，同步更新本地镜像
+        container.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                bloomFilterManager.onRemotePut(body);
+            } catch (NumberFormatException e) {
+                log.warn("无效的布隆过滤器消息：{}", body);
+            }
+        }, new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+        // 订阅店铺坐标频道：更新本节点的网格索引
+        container.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                shopGeoIndex.onRemoteChange(body);
+            } catch (NumberFormatException e) {
+                log.warn("无效的店铺坐标消息：{}", body);
+            }
+        }, new ChannelTopic(RedisConstants.SHOP_GEO_CHANNEL));
+        // 订阅店铺搜索频道：从数据库重新读取店铺的名称和商圈，更新本节点的搜索索引，联想词前缀树稍后重建
+        container.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                shopSuggestIndex.markDirty();
+                shopSearchIndex.onRemoteChange(body);
+            } catch (NumberFormatException e) {
+                log.warn("无效的店铺搜索消息：{}", body);
+            }
+        }, new ChannelTopic(RedisConstants.SHOP_SEARCH_CHANNEL));
+        // 订阅店铺类型频道：重新加载本节点的类型列表快照
+        container.addMessageListener((message, pattern) -> shopTypeService.onRemoteChange(),
+                new ChannelTopic(RedisConstants.SHOP_TYPE_CHANNEL));
+        // 订阅锁释放频道：唤醒本节点等待这个锁的线程
+        container.addMessageListener((message, pattern) ->
+                        distributedLock.onReleased(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.LOCK_CHANNEL));
+        return container;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CircuitBreaker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.PoolException;
+
+/**
+ * 每个外部依赖一个熔断器，参数在 hmdp.breaker.redis / hmdp.breaker.mysql 下配置
+ */
+@Configuration
+public class ResilienceConfig {
+
+    // redis：连接失败、命令超时（spring.redis.timeout）、连接池等待超时都算故障
+    @Bean
+    public CircuitBreaker redisCircuitBreaker(
+            @Value("${hmdp.breaker.redis.window-size:50}") int windowSize,
+            @Value("${hmdp.breaker.redis.minimum-calls:20}") int minimumCalls,
+            @Value("${hmdp.breaker.redis.failure-rate:0.5}") double failureRate,
+            @Value("${hmdp.breaker.redis.open-millis:5000}") long openMillis,
+            @Value("${hmdp.breaker.redis.half-open-calls:5}") int halfOpenCalls,
+            @Value("${hmdp.breaker.redis.max-concurrent:50}") int maxConcurrent,
+            @Value("${hmdp.breaker.redis.bulkhead-wait-millis:50}") long bulkheadWaitMillis) {
+        return new CircuitBreaker("redis", windowSize, minimumCalls, failureRate, openMillis,
+                halfOpenCalls, maxConcurrent, bulkheadWaitMillis,
+                e -> e instanceof RedisConnectionFailureException
+                        || e instanceof QueryTimeoutException
+                        || e instanceof RedisSystemException
+                        || e instanceof PoolException);
+    }
+
+    // mysql：redis熔断后的降级查询都经过这里，max-concurrent限制同时打到数据库的查询数
+    @Bean
+    public CircuitBreaker mysqlCircuitBreaker(
+            @Value("${hmdp.breaker.mysql.window-size:50}") int windowSize,
+            @Value("${hmdp.breaker.mysql.minimum-calls:20}") int minimumCalls,
+            @Value("${hmdp.breaker.mysql.failure-rate:0.5}") double failureRate,
+            @Value("${hmdp.breaker.mysql.open-millis:5000}") long openMillis,
+            @Value("${hmdp.breaker.mysql.half-open-calls:5}") int halfOpenCalls,
+            @Value("${hmdp.breaker.mysql.max-concurrent:20}") int maxConcurrent,
+            @Value("${hmdp.breaker.mysql.bulkhead-wait-millis:100}") long bulkheadWaitMillis) {
+        return new CircuitBreaker("mysql", windowSize, minimumCalls, failureRate, openMillis,
+                halfOpenCalls, maxConcurrent, bulkheadWaitMillis,
+                e -> e instanceof DataAccessResourceFailureException
+                        || e instanceof TransientDataAccessException);
+    }
+}
@@ -7,6 +7,9 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
@@ -30,6 +33,10 @@ public class BlogController {
     private IBlogService blogService;
     @Resource
     private IUserService userService;
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+    @Resource
+    private CacheClient cacheClient;
 
     @PostMapping
     public Result saveBlog(@RequestBody Blog blog) {
@@ -47,27 +54,60 @@ public class BlogController {
         // 修改点赞数量
         blogService.update()
                 .setSql("liked = liked + 1").eq("id", id).update();
+        // 删除博客缓存
+        cacheClient.evict(RedisConstants.CACHE_BLOG_KEY + id);
         return Result.ok();
     }
 
+    @GetMapping("/{id}")
+    public Result queryBlogById(@PathVariable("id") Long id) {
+        // 布隆过滤器判断不存在的id，直接返回，不查缓存和数据库
+        if (!bloomFilterManager.mightContain(BloomFilterManager.BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
+        Blog blog = blogService.queryBlogById(id);
+        if (blog == null) {
+            return Result.fail("笔记不存在！");
+        }
+        return Result.ok(blog);
+    }
+
+    /**
+     * 查询自己的博客，传cursor时按游标滚动分页（第一页传空字符串），返回ScrollResult
+     */
     @GetMapping("/of/me")
-    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+    public Result queryMyBlog(
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
         // 获取登录用户
         UserDTO userDTO = UserHolder.getUser();
-        // 根据用户查询
+        if (cursor != null) {
+            return blogService.scrollMyBlog(userDTO.getId(), cursor);
+        }
+        // 根据用户查询，不需要总数，不查COUNT
         Page<Blog> page = blogService.query()
-                .eq("user_id", userDTO.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+                .eq("user_id", userDTO.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         return Result.ok(records);
     }
 
+    /**
+     * 查询热门博客，传cursor时按游标滚动分页（第一页传空字符串），返回ScrollResult
+     */
     @GetMapping("/hot")
-    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        // 根据用户查询
+    public Result queryHotBlog(
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        if (cursor != null) {
+            return blogService.scrollHotBlog(cursor);
+        }
+        // 根据用户查询，不需要总数，不查COUNT
         Page<Blog> page = blogService.query()
                 .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
@@ -1,15 +1,15 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.ShopSuggestIndex;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -26,6 +26,12 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private ShopSuggestIndex shopSuggestIndex;
+
+    // 批量查询一次最多的店铺数量
+    private static final int MAX_BATCH_SIZE = 100;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -63,37 +69,85 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
-     * @return 商铺列表
+     * @param x 经度，和y一起传时按距离由近到远返回
+     * @param y 纬度
+     * @param cursor 滚动分页时上一页返回的游标：传了坐标时按距离滚动（第一页不传）；
+     *               传了sortBy时按排行榜滚动（第一页不传）；否则传了cursor就按id滚动分页（第一页传空字符串）
+     * @param sortBy 按sold（销量）、score（评分）或comments（评论数）从高到低排序
+     * @return 商铺列表；滚动分页时返回ScrollResult
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "sortBy", required = false) String sortBy
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 传了坐标，按距离滚动查询
+        if (x != null && y != null) {
+            return shopService.queryNearby(typeId, x, y, cursor);
+        }
+        // 按销量、评分或评论数排序，从排行榜滚动查询
+        if (sortBy != null) {
+            return shopService.scrollByRank(typeId, sortBy, cursor);
+        }
+        // 传了游标，按id滚动查询
+        if (cursor != null) {
+            return shopService.scrollByType(typeId, cursor);
+        }
+        // 根据类型分页查询，每一页的id有缓存，再从缓存中取出店铺数据，返回
+        return Result.ok(shopService.queryByType(typeId, current));
     }
 
     /**
-     * 根据商铺名称关键字分页查询商铺信息
-     * @param name 商铺名称关键字
+     * 根据商铺名称或商圈关键字分页查询商铺信息
+     * @param name 商铺名称或商圈关键字
      * @param current 页码
+     * @param cursor 传了就按游标滚动分页（第一页传空字符串），返回ScrollResult
      * @return 商铺列表
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        if (cursor != null) {
+            return shopService.scrollByName(name, cursor);
+        }
+        // 从搜索索引中查出一页id，再从缓存中取出店铺数据，返回
+        return Result.ok(shopService.queryByName(name, current));
+    }
+
+    /**
+     * 搜索框联想：名称或商圈以prefix开头的店铺和商圈，按销量、评分排序
+     * @param prefix 用户已经输入的内容
+     * @param limit 返回的数量
+     * @return 联想词列表
+     */
+    @GetMapping("/suggest")
+    public Result suggest(
+            @RequestParam("prefix") String prefix,
+            @RequestParam(value = "limit", defaultValue = "10") Integer limit
+    ) {
+        return Result.ok(shopSuggestIndex.suggest(prefix, limit));
+    }
+
+    /**
+     * 根据id批量查询商铺信息
+     * @param ids 商铺id列表
+     * @return 商铺列表，顺序与ids一致，不存在的商铺不返回
+     */
+    @PostMapping("/batch")
+    public Result queryShopBatch(@RequestBody List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Result.fail("店铺id不能为空");
+        }
+        if (ids.size() > MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查询" + MAX_BATCH_SIZE + "个店铺");
+        }
+        return Result.ok(shopService.queryByIds(ids.stream().distinct().collect(Collectors.toList())));
     }
 }
@@ -1,15 +1,17 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.service.IShopTypeService;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -25,8 +27,26 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
+    /**
+     * 查询店铺类型列表，直接返回快照中序列化好的响应体
+     * @param request 带If-None-Match且和当前ETag相同时返回304，不返回响应体
+     * @return 类型列表
+     */
     @GetMapping("list")
-    public Result queryTypeList() {
-        return typeService.getTypeList();
+    public ResponseEntity<?> queryTypeList(WebRequest request) {
+        ShopTypeSnapshot snapshot = typeService.getTypeListSnapshot();
+        // 快照还没有加载成功，返回失败原因
+        if (snapshot == null) {
+            return ResponseEntity.ok(typeService.getTypeList());
+        }
+        // 客户端的版本就是最新的，checkNotModified已经设置了304
+        if (request.checkNotModified(snapshot.getEtag())) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .cacheControl(CacheControl.noCache())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.getBody());
     }
 }
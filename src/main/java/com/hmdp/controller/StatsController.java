@@ -0,0 +1,208 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheInvalidationOutbox;
+import com.hmdp.utils.CircuitBreaker;
+import com.hmdp.utils.DistributedLock;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.SeckillStealReconciler;
+import com.hmdp.utils.ShopCacheWarmer;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopLocalCache;
+import com.hmdp.utils.ShopRankBoard;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.ShopSuggestIndex;
+import com.hmdp.utils.VoucherOrderRingQueue;
+import com.hmdp.utils.VoucherOrderStreamConsumer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * 运行状态统计，供运维查看缓存等组件的指标
+ * </p>
+ */
+@RestController
+@RequestMapping("/stats")
+public class StatsController {
+
+    @Resource
+    private ShopLocalCache shopLocalCache;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheInvalidationOutbox cacheInvalidationOutbox;
+
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private CircuitBreaker mysqlCircuitBreaker;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private ShopSuggestIndex shopSuggestIndex;
+
+    @Resource
+    private ShopRankBoard shopRankBoard;
+
+    @Resource
+    private VoucherOrderStreamConsumer voucherOrderStreamConsumer;
+
+    @Resource
+    private VoucherOrderRingQueue voucherOrderRingQueue;
+
+    @Resource
+    private SeckillStealReconciler seckillStealReconciler;
+
+    @Resource
+    private DistributedLock distributedLock;
+
+    /**
+     * 店铺本地缓存的命中、未命中、淘汰次数
+     */
+    @GetMapping("/cache/shop")
+    public Result shopLocalCacheStats() {
+        return Result.ok(shopLocalCache.stats());
+    }
+
+    /**
+     * 缓存重建线程池的队列深度、重建耗时和失败次数
+     */
+    @GetMapping("/cache/rebuild")
+    public Result cacheRebuildStats() {
+        return Result.ok(cacheRebuildExecutor.stats());
+    }
+
+    /**
+     * 店铺缓存预热的进度
+     */
+    @GetMapping("/cache/warmup")
+    public Result cacheWarmupStats() {
+        return Result.ok(shopCacheWarmer.stats());
+    }
+
+    /**
+     * 当前识别出的热点店铺，以及升级、降级次数
+     */
+    @GetMapping("/cache/hotkey")
+    public Result hotKeyStats() {
+        return Result.ok(shopService.hotKeyStats());
+    }
+
+    /**
+     * 缓存失效发件箱的积压数量和删除失败次数
+     */
+    @GetMapping("/cache/outbox")
+    public Result cacheOutboxStats() {
+        return Result.ok(cacheInvalidationOutbox.stats());
+    }
+
+    /**
+     * redis、mysql熔断器的状态、失败率和降级次数
+     */
+    @GetMapping("/breaker")
+    public Result circuitBreakerStats() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        list.add(redisCircuitBreaker.stats());
+        list.add(mysqlCircuitBreaker.stats());
+        return Result.ok(list);
+    }
+
+    /**
+     * 布隆过滤器的位数、哈希次数、内存占用和估算误判率
+     */
+    @GetMapping("/bloom")
+    public Result bloomFilterStats() {
+        return Result.ok(bloomFilterManager.stats());
+    }
+
+    /**
+     * 附近店铺查询使用的引擎，以及本地网格索引的点数
+     */
+    @GetMapping("/geo")
+    public Result geoStats() {
+        return Result.ok(shopGeoIndex.stats());
+    }
+
+    /**
+     * 店铺搜索索引的文档数、gram数和倒排表占用的字节数
+     */
+    @GetMapping("/search")
+    public Result searchStats() {
+        return Result.ok(shopSearchIndex.stats());
+    }
+
+    /**
+     * 联想词前缀树的条目数、节点数和最近一次构建的时间、耗时
+     */
+    @GetMapping("/suggest")
+    public Result suggestStats() {
+        return Result.ok(shopSuggestIndex.stats());
+    }
+
+    /**
+     * 店铺排行榜最近一次重建的时间、耗时和店铺数量
+     */
+    @GetMapping("/rank")
+    public Result rankStats() {
+        return Result.ok(shopRankBoard.stats());
+    }
+
+    /**
+     * 秒杀订单stream的消费情况：写入数量、批次、回退逐条写入的次数，以及积压的订单数量和等待时间
+     */
+    @GetMapping("/seckill")
+    public Result seckillStats() {
+        return Result.ok(voucherOrderStreamConsumer.stats());
+    }
+
+    /**
+     * 秒杀订单进程内队列（pipeline=ring）的积压、拒绝和写入情况
+     */
+    @GetMapping("/seckill/ring")
+    public Result seckillRingStats() {
+        return Result.ok(voucherOrderRingQueue.stats());
+    }
+
+    /**
+     * 分片库存窃取的对账：等待重试的数量，以及对账后保留、作废的窃取数量
+     */
+    @GetMapping("/seckill/steal")
+    public Result seckillStealStats() {
+        return Result.ok(seckillStealReconciler.stats());
+    }
+
+    /**
+     * 分布式锁的获取、本地交接、等待和看门狗续期情况
+     */
+    @GetMapping("/lock")
+    public Result lockStats() {
+        return Result.ok(distributedLock.stats());
+    }
+}
@@ -7,6 +7,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -33,6 +34,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
     /**
      * 发送手机验证码
      */
@@ -69,8 +73,12 @@ public class UserController {
 
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
+        // 布隆过滤器判断用户不存在，也就不会有详情，直接返回
+        if (!bloomFilterManager.mightContain(BloomFilterManager.USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
-        UserInfo info = userInfoService.getById(userId);
+        UserInfo info = userInfoService.queryByUserId(userId);
         if (info == null) {
             // 没有详情，应该是第一次查看详情
             return Result.ok();
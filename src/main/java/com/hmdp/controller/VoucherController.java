@@ -52,6 +52,6 @@ public class VoucherController {
      */
     @GetMapping("/list/{shopId}")
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-       return voucherService.queryVoucherOfShop(shopId);
+       return Result.ok(voucherService.queryVoucherOfShop(shopId));
     }
 }
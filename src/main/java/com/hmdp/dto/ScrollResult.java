@@ -9,4 +9,13 @@ public class ScrollResult {
     private List<?> list;
     private Long minTime;
     private Integer offset;
+    // 按游标滚动分页时的下一页游标，为null表示没有下一页
+    private String cursor;
+
+    public static ScrollResult of(List<?> list, String cursor) {
+        ScrollResult result = new ScrollResult();
+        result.setList(list);
+        result.setCursor(cursor);
+        return result;
+    }
 }
@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+//店铺类型列表的不可变快照：类型列表、序列化好的响应体（Result.ok(types)的JSON）和它的ETag，整体替换，不修改
+
+@Getter
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    private final List<ShopType> types;
+    private final byte[] body;
+    private final String etag;
+}
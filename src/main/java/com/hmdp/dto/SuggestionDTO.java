@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+//搜索框的联想词：店铺名称（带店铺id）或者商圈
+
+@Data
+@AllArgsConstructor
+public class SuggestionDTO {
+    public static final String TYPE_SHOP = "shop";
+    public static final String TYPE_AREA = "area";
+
+    private String text;
+    private String type;
+    private Long shopId;
+}
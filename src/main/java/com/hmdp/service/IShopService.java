@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,20 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    List<Shop> queryByIds(List<Long> ids);
+
+    Result queryNearby(Integer typeId, Double x, Double y, String cursor);
+
+    List<Shop> queryByType(Integer typeId, Integer current);
+
+    List<Shop> queryByName(String name, Integer current);
+
+    Result scrollByType(Integer typeId, String cursor);
+
+    Result scrollByRank(Integer typeId, String sortBy, String cursor);
+
+    Result scrollByName(String name, String cursor);
+
+    Map<String, Object> hotKeyStats();
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -16,4 +17,8 @@ public interface IShopTypeService extends IService<ShopType> {
 
     Result getTypeList();
 
+    ShopTypeSnapshot getTypeListSnapshot();
+
+    void onRemoteChange();
+
 }
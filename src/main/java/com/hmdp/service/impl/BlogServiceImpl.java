@@ -1,11 +1,26 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
 import com.hmdp.entity.Blog;
+import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheableEntity;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ScrollCursor;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +32,100 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    // 博客和作者信息一起缓存，点赞数会变化，快过期时提前刷新，点赞时删除
+    @Override
+    @CacheableEntity(prefix = RedisConstants.CACHE_BLOG_KEY, strategy = CacheableEntity.Strategy.REFRESH_AHEAD, ttl = 10)
+    public Blog queryBlogById(Long id) {
+        // 1. 查询博客
+        Blog blog = getById(id);
+        if (blog == null) {
+            return null;
+        }
+        // 2. 查询博客有关的用户
+        User user = userService.getById(blog.getUserId());
+        if (user != null) {
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
+        return blog;
+    }
+
+    /**
+     * 按id滚动查询用户自己的博客：WHERE user_id = ? AND id > 游标 ORDER BY id，不查COUNT
+     */
+    @Override
+    public Result scrollMyBlog(Long userId, String cursor) {
+        long[] last = ScrollCursor.decodeLongs(cursor, 1);
+        if (last == null) {
+            return Result.fail("无效的游标");
+        }
+        int pageSize = SystemConstants.MAX_PAGE_SIZE;
+        List<Blog> blogs = query()
+                .eq("user_id", userId)
+                .gt("id", last.length == 0 ? 0 : last[0])
+                .orderByAsc("id")
+                .last("limit " + (pageSize + 1))
+                .list();
+        boolean hasMore = blogs.size() > pageSize;
+        List<Blog> page = hasMore ? blogs.subList(0, pageSize) : blogs;
+        String next = hasMore ? ScrollCursor.encode(page.get(page.size() - 1).getId()) : null;
+        return Result.ok(ScrollResult.of(page, next));
+    }
+
+    /**
+     * 按(点赞数, id)降序滚动查询热门博客，游标是上一页最后一篇的(点赞数, id)：
+     * WHERE liked < ? OR (liked = ? AND id < ?) ORDER BY liked DESC, id DESC，走liked索引，不查COUNT
+     */
+    @Override
+    public Result scrollHotBlog(String cursor) {
+        long[] last = ScrollCursor.decodeLongs(cursor, 2);
+        if (last == null) {
+            return Result.fail("无效的游标");
+        }
+        int pageSize = SystemConstants.MAX_PAGE_SIZE;
+        List<Blog> blogs = query()
+                .and(last.length > 0, w -> w.lt("liked", last[0])
+                        .or(w2 -> w2.eq("liked", last[0]).lt("id", last[1])))
+                .orderByDesc("liked", "id")
+                .last("limit " + (pageSize + 1))
+                .list();
+        boolean hasMore = blogs.size() > pageSize;
+        List<Blog> page = hasMore ? blogs.subList(0, pageSize) : blogs;
+        // 一次查询出这一页的所有作者
+        if (!page.isEmpty()) {
+            List<Long> userIds = page.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+            Map<Long, User> users = userService.listByIds(userIds).stream()
+                    .collect(Collectors.toMap(User::getId, Function.identity()));
+            for (Blog blog : page) {
+                User user = users.get(blog.getUserId());
+                if (user != null) {
+                    blog.setName(user.getNickName());
+                    blog.setIcon(user.getIcon());
+                }
+            }
+        }
+        String next = null;
+        if (hasMore) {
+            Blog tail = page.get(page.size() - 1);
+            next = ScrollCursor.encode(tail.getLiked() == null ? 0 : tail.getLiked(), tail.getId());
+        }
+        return Result.ok(ScrollResult.of(page, next));
+    }
+
+    @Override
+    public boolean save(Blog blog) {
+        boolean success = super.save(blog);
+        if (success) {
+            // 新增的博客加入布隆过滤器
+            bloomFilterManager.put(BloomFilterManager.BLOG, blog.getId());
+        }
+        return success;
+    }
+
 }
@@ -1,25 +1,57 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.lang.TypeReference;
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidationOutbox;
+import com.hmdp.utils.CacheableEntity;
+import com.hmdp.utils.CircuitBreaker;
+import com.hmdp.utils.GeoGridIndex;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.NGramIndex;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ScrollCursor;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopLocalCache;
+import com.hmdp.utils.ShopRankBoard;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TransactionHooks;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDate;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -36,9 +68,125 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    // 店铺缓存的值可能是JSON文本也可能是二进制，统一按字节读写，由CacheCodec编解码
+    @Resource
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private ShopLocalCache shopLocalCache;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private CacheInvalidationOutbox cacheInvalidationOutbox;
+
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private CircuitBreaker mysqlCircuitBreaker;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private ShopRankBoard shopRankBoard;
+
+    // 按名称滚动分页的游标前缀：排序键来自搜索索引，或者id来自数据库
+    private static final String CURSOR_INDEX = "k";
+    private static final String CURSOR_DB = "d";
+
+    // redis和数据库都不可用时查询方法返回的占位值，只按引用比较，不会写入任何缓存
+    private static final Shop SHOP_BUSY = new Shop();
+
+    private static final DefaultRedisScript<Long> PERSIST_SCRIPT;
+    static {
+        PERSIST_SCRIPT = new DefaultRedisScript<>();
+        PERSIST_SCRIPT.setLocation(new ClassPathResource("cache_persist.lua"));
+        PERSIST_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final CacheClient.Policy SHOP_LOGICAL_EXPIRE_POLICY = new CacheClient.Policy(
+            CacheableEntity.Strategy.LOGICAL_EXPIRE, RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS, 0,
+            true, TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL), false);
+
+    private static final CacheClient.Policy SHOP_TTL_POLICY = new CacheClient.Policy(
+            CacheableEntity.Strategy.REFRESH_AHEAD, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, 0,
+            true, TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL), false);
+
+    private static final CacheClient.Policy SHOP_PASS_THROUGH_POLICY = new CacheClient.Policy(
+            CacheableEntity.Strategy.PASS_THROUGH, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, 0,
+            true, TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL), false);
+
+    @Value("${hmdp.cache.type-page.ttl:600}")
+    private long typePageTtlSeconds;
+
+    @Value("${hmdp.cache.hotkey.sketch-width:16384}")
+    private int hotKeySketchWidth;
+    @Value("${hmdp.cache.hotkey.sample-rate:1}")
+    private int hotKeySampleRate;
+    @Value("${hmdp.cache.hotkey.threshold:50}")
+    private int hotKeyThreshold;
+    @Value("${hmdp.cache.hotkey.cool-threshold:10}")
+    private int hotKeyCoolThreshold;
+    @Value("${hmdp.cache.hotkey.max-hot-keys:1000}")
+    private int maxHotKeys;
+
+    // 识别热点店铺：热点走逻辑过期+本地缓存固定，其余走普通TTL缓存
+    private HotKeyDetector hotKeyDetector;
+
+    @PostConstruct
+    public void initHotKeyDetector() {
+        hotKeyDetector = new HotKeyDetector(hotKeySketchWidth, hotKeySampleRate,
+                hotKeyThreshold, hotKeyCoolThreshold, maxHotKeys,
+                // 升级（在请求线程里）：固定本地缓存，去掉redis里的TTL，信封中记录的过期时间从此作为逻辑过期时间；
+                // 空值占位保留TTL；redis不可用时只固定本地缓存，信封到期后按逻辑过期的方式重建
+                id -> {
+                    shopLocalCache.pin(id);
+                    redisCircuitBreaker.run(() -> stringRedisTemplate.execute(PERSIST_SCRIPT,
+                            Collections.singletonList(RedisConstants.CACHE_SHOP_KEY + id)));
+                },
+                // 降级：先给redis里的信封加上TTL，到期后按普通TTL缓存重新加载，再解除固定；
+                // redis不可用时抛出异常，仍然作为热点，下一次衰减时重试，信封不会一直没有TTL
+                id -> {
+                    Boolean expired = redisCircuitBreaker.execute(() -> stringRedisTemplate.expire(
+                            RedisConstants.CACHE_SHOP_KEY + id, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES), () -> null);
+                    if (expired == null) {
+                        throw new IllegalStateException("redis不可用，店铺" + id + "暂时不能降级");
+                    }
+                    shopLocalCache.unpin(id);
+                });
+    }
+
+    // 定期衰减访问计数，冷却下来的店铺降级
+    @Scheduled(fixedDelayString = "${hmdp.cache.hotkey.decay-interval:10000}")
+    public void decayHotKeys() {
+        hotKeyDetector.decay();
+    }
+
+    @Override
+    public Map<String, Object> hotKeyStats() {
+        return hotKeyDetector.stats();
+    }
+
     @Override
     public Result queryById(Long id) {
 
+        // 布隆过滤器判断不存在的id，一定不存在，直接返回，不查redis和数据库
+        if (!bloomFilterManager.mightContain(BloomFilterManager.SHOP, id)) {
+            return Result.fail("店铺不存在！");
+        }
+
         // 解决了缓存穿透的查询
         // Shop shop = queryWithPassThrough(id);
 
@@ -46,191 +194,395 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // Shop shop = queryWithMutex(id);
 
         /// 利用逻辑过期来解决缓存击穿问题（通过预热，保证热点key都在redis中，不存在缓存穿透问题）
-        Shop shop = queryWithLogicalExpire(id);
+        // Shop shop = queryWithLogicalExpire(id);
+
+        // 记录访问，实时识别出的热点店铺用逻辑过期，其余用互斥锁+TTL
+        boolean hot = hotKeyDetector.record(id);
 
+        // 交给CacheClient：每次redis调用单独经过redis熔断器，每次数据库查询单独经过mysql熔断器，两者都不可用时才返回服务繁忙
+        Shop shop = hot ? queryWithLogicalExpire(id) : queryWithMutex(id);
+        if (shop == SHOP_BUSY) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
         if (shop == null) {
             return Result.fail("店铺不存在！");
         }
         return Result.ok(shop);
     }
 
+    // 热点店铺走逻辑过期，本地缓存逻辑时间未过期时不访问redis
+    public Shop queryWithLogicalExpire(Long id) {
+        return cacheClient.query(RedisConstants.CACHE_SHOP_KEY + id, SHOP_LOGICAL_EXPIRE_POLICY,
+                raw -> cacheCodec.decodeRedisData(raw, Shop.class), () -> getById(id), localCacheOf(id), () -> SHOP_BUSY);
+    }
 
-    //为异步重载缓存创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    // 普通店铺走TTL缓存：未命中时用互斥锁重建，快过期时按XFetch提前异步刷新
+    public Shop queryWithMutex(Long id) {
+        return cacheClient.query(RedisConstants.CACHE_SHOP_KEY + id, SHOP_TTL_POLICY,
+                raw -> cacheCodec.decodeRedisData(raw, Shop.class), () -> getById(id), localCacheOf(id), () -> SHOP_BUSY);
+    }
 
-    public Shop queryWithLogicalExpire(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
+    // 封装解决了缓存穿透问题的商户查询
+    // 交给通用的CacheClient：未命中时查询数据库，不存在则缓存空值
+    public Shop queryWithPassThrough(Long id) {
+        return cacheClient.query(RedisConstants.CACHE_SHOP_KEY + id, SHOP_PASS_THROUGH_POLICY,
+                raw -> cacheCodec.decodeRedisData(raw, Shop.class), () -> getById(id), () -> SHOP_BUSY);
+    }
 
-        // 1. 从redis中查询商铺缓存
-        String RedisDataJsonWithShop = stringRedisTemplate.opsForValue().get(key);
+    // 把本节点的店铺本地缓存交给CacheClient
+    private CacheClient.LocalCache<Shop> localCacheOf(Long id) {
+        return new CacheClient.LocalCache<Shop>() {
+            @Override
+            public RedisData<Shop> get() {
+                return shopLocalCache.get(id);
+            }
 
-        // 2. 未命中，说明数据库中也不存在（因为预热阶段已经把热点key都放入了），直接返回null
-        if (StrUtil.isBlank(RedisDataJsonWithShop)) {
-            return null;
+            @Override
+            public void put(RedisData<Shop> redisData) {
+                shopLocalCache.put(id, redisData);
+            }
+        };
+    }
+
+    /**
+     * 按id批量查询店铺，返回顺序与ids一致，不存在的店铺会被跳过：
+     *  1.先查本地缓存中未过期的条目
+     *  2.剩下的用一次MGET从redis读取
+     *  3.redis也未命中的，用一次 WHERE id IN (...) 查询数据库，再通过管道按TTL写回redis
+     */
+    @Override
+    public List<Shop> queryByIds(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Shop> shops = new HashMap<>(ids.size() * 2);
+        LocalDateTime now = LocalDateTime.now();
+
+        // 1. 本地缓存（redis熔断时过期的条目也先用着）
+        boolean redisAvailable = redisCircuitBreaker.getState() != CircuitBreaker.State.OPEN;
+        List<Long> redisIds = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            RedisData<Shop> localData = shopLocalCache.get(id);
+            if (localData != null && (!redisAvailable || localData.getExpireTime().isAfter(now))) {
+                shops.put(id, localData.getData());
+            } else {
+                redisIds.add(id);
+            }
         }
 
-        // 3. 命中，则查询逻辑时间是否过期
-        // 这里不能这么写: JSONUtil.toBean(shopJson, RedisData<Shop>.class);
-        // 因为传入泛型会被擦除，但是意思是这个意思。
-        RedisData<Shop> shopRedisData = JSONUtil.toBean(
-                RedisDataJsonWithShop,
-                new TypeReference<RedisData<Shop>>() {
-                },
-                false
-        );
-
-        // 3.1 过期了
-        if (shopRedisData.getExpireTime().isBefore(LocalDateTime.now())) {
-            // 4. 需要缓存重建
-            // 4.1 获取锁
-            String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-            // 4.1.1 如果取锁成功
-            if (tryLock(lockKey)) {
-                // 5. 做Double Check，
-                RedisDataJsonWithShop = stringRedisTemplate.opsForValue().get(key);
-                shopRedisData = JSONUtil.toBean(
-                        RedisDataJsonWithShop,
-                        new TypeReference<RedisData<Shop>>() {
-                        },
-                        false
-                );
-                // 6. 二次检查：如果数据已经被重载入redis（逻辑时间未过期），则直接返回
-                if (shopRedisData.getExpireTime().isAfter(LocalDateTime.now())) {
-                    return shopRedisData.getData();
+        // 2. redis：MGET一次取回，信封和普通值都能解码，过期的逻辑信封也先用着（由单个查询的路径负责重建）
+        List<Long> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            List<String> keys = redisIds.stream().map(id -> RedisConstants.CACHE_SHOP_KEY + id).collect(Collectors.toList());
+            List<byte[]> values = redisCircuitBreaker.execute(() -> binaryRedisTemplate.opsForValue().multiGet(keys), () -> null);
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] value = values == null ? null : values.get(i);
+                Shop shop = CacheCodec.isEmpty(value) ? null : cacheCodec.decode(value, Shop.class);
+                if (shop == null) {
+                    missIds.add(redisIds.get(i));
+                } else {
+                    shops.put(redisIds.get(i), shop);
                 }
+            }
+        }
 
-                // 7. 异步地开启独立线程来重载缓存
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
-                    try {
-                        //重建缓存。因为是异步的，所以不等待新鲜值，依旧在最下面返回旧值
-                        this.saveShop2Redis(id, 20L);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        unLock(lockKey);
-                    }
-                });
-
+        // 3. 数据库：一次IN查询，结果通过管道写回redis
+        if (!missIds.isEmpty()) {
+            long begin = System.currentTimeMillis();
+            List<Shop> loaded = mysqlCircuitBreaker.execute(() -> listByIds(missIds), ArrayList::new);
+            long delta = System.currentTimeMillis() - begin;
+            for (Shop shop : loaded) {
+                shops.put(shop.getId(), shop);
             }
-            // 4.1.2 如果取锁失败，直接在下面返回未更新数据
+            writeShopsWithTtl(loaded, delta);
         }
 
-        // 3.2 未过期，这是一次正常查询，直接返回数据
-        return shopRedisData.getData();
+        List<Shop> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop shop = shops.get(id);
+            if (shop != null) {
+                result.add(shop);
+            }
+        }
+        return result;
     }
 
+    /**
+     * 按距离由近到远滚动查询某个类型的店铺：
+     *  1.游标中是上一页最后一个店铺的(距离, id)，从GEO集合中查询它之后最近的一页
+     *  2.按id批量从缓存中取出店铺，填上距离
+     *  3.还有下一页时返回新的游标，最远只查到max-radius
+     */
+    @Override
+    public Result queryNearby(Integer typeId, Double x, Double y, String cursor) {
+        // 1. 解析游标
+        String[] parts = ScrollCursor.decode(cursor, 2);
+        if (parts == null) {
+            return Result.fail("无效的游标");
+        }
+        double lastDistance = -1;
+        long lastId = 0;
+        try {
+            if (parts.length == 2) {
+                lastDistance = Double.parseDouble(parts[0]);
+                lastId = Long.parseLong(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            return Result.fail("无效的游标");
+        }
 
-    public Shop queryWithMutex(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
+        // 2. 从GEO集合中查询，多查一个用来判断是否还有下一页
+        int pageSize = SystemConstants.DEFAULT_PAGE_SIZE;
+        List<GeoGridIndex.Hit> hits = shopGeoIndex.search(typeId, x, y, lastDistance, lastId, pageSize + 1);
+        if (hits == null) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
+        boolean hasMore = hits.size() > pageSize;
+        if (hasMore) {
+            hits = hits.subList(0, pageSize);
+        }
 
-        // 1. 从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        // 3. 批量取出店铺，填上距离（缓存里的对象是共享的，复制一份再改）
+        Map<Long, Shop> shops = new HashMap<>(hits.size() * 2);
+        for (Shop shop : queryByIds(hits.stream().map(GeoGridIndex.Hit::getId).collect(Collectors.toList()))) {
+            shops.put(shop.getId(), shop);
+        }
+        List<Shop> list = new ArrayList<>(hits.size());
+        for (GeoGridIndex.Hit hit : hits) {
+            Shop shop = shops.get(hit.getId());
+            if (shop != null) {
+                list.add(BeanUtil.copyProperties(shop, Shop.class).setDistance(hit.getDistance()));
+            }
+        }
 
-        // 2. 判断缓存是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3. 命中，缓存存在，反序列化，然后直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
+        // 4. 封装返回
+        String next = null;
+        if (hasMore) {
+            GeoGridIndex.Hit last = hits.get(hits.size() - 1);
+            next = ScrollCursor.encode(last.getDistance(), last.getId());
         }
+        return Result.ok(ScrollResult.of(list, next));
+    }
 
-        // 避免缓存穿透，如果不是blank，命中的可能是我们存入过的空值
-        if (shopJson != null) {
-            return null;
+    /**
+     * 按类型滚动分页：WHERE type_id = ? AND id > 游标 ORDER BY id LIMIT n+1，走type_id索引，
+     * 不查COUNT，翻到多深都只扫描一页的数据
+     */
+    @Override
+    public Result scrollByType(Integer typeId, String cursor) {
+        long[] last = ScrollCursor.decodeLongs(cursor, 1);
+        if (last == null) {
+            return Result.fail("无效的游标");
         }
+        int pageSize = SystemConstants.DEFAULT_PAGE_SIZE;
+        List<Long> ids = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .gt("id", last.length == 0 ? 0 : last[0])
+                .orderByAsc("id")
+                .last("limit " + (pageSize + 1))
+                .list()
+                .stream().map(Shop::getId).collect(Collectors.toList());
+        return Result.ok(toScrollResult(ids, pageSize, id -> ScrollCursor.encode(id)));
+    }
 
-        // 4. 缓存不存在，开始实现缓存重建
-        // 4.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        Shop shop = null;
+    /**
+     * 按销量、评分或评论数从高到低滚动分页，从排行榜（ShopRankBoard）中取id，不对tb_shop排序：
+     *  游标是上一页最后一个店铺的分数，以及上一页中和它分数相同的店铺数量，下一页从这个分数开始并跳过这些店铺
+     */
+    @Override
+    public Result scrollByRank(Integer typeId, String sortBy, String cursor) {
+        if (!ShopRankBoard.METRICS.contains(sortBy)) {
+            return Result.fail("无效的排序字段");
+        }
+        long[] last = ScrollCursor.decodeLongs(cursor, 2);
+        if (last == null) {
+            return Result.fail("无效的游标");
+        }
+        long maxScore = last.length == 0 ? Long.MAX_VALUE : last[0];
+        long offset = last.length == 0 ? 0 : last[1];
+        int pageSize = SystemConstants.DEFAULT_PAGE_SIZE;
+
+        // 1. 多取一个，判断是否还有下一页
+        List<ZSetOperations.TypedTuple<String>> tuples = shopRankBoard.page(sortBy, typeId, maxScore, offset, pageSize + 1);
+        if (tuples == null) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
+        boolean hasMore = tuples.size() > pageSize;
+        List<ZSetOperations.TypedTuple<String>> page = hasMore ? tuples.subList(0, pageSize) : tuples;
+
+        // 2. 这一页最小的分数，以及这一页中等于它的数量；整页分数都和游标相同时要加上之前跳过的数量
+        List<Long> ids = new ArrayList<>(page.size());
+        long minScore = maxScore;
+        long sameCount = 0;
+        for (ZSetOperations.TypedTuple<String> tuple : page) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            long score = tuple.getScore() == null ? 0 : tuple.getScore().longValue();
+            if (score == minScore) {
+                sameCount++;
+            } else {
+                minScore = score;
+                sameCount = 1;
+            }
+        }
+        if (minScore == maxScore) {
+            sameCount += offset;
+        }
+        String next = hasMore ? ScrollCursor.encode(minScore, sameCount) : null;
+        return Result.ok(ScrollResult.of(queryByIds(ids), next));
+    }
 
+    /**
+     * 按名称或商圈关键字滚动分页：
+     *  1.搜索索引建好时，游标是上一页最后一个店铺的排序键，在排好序的结果中二分查找它之后的一页
+     *  2.否则按id滚动查询数据库，游标是上一页最后一个店铺的id；两种游标带有前缀，翻页过程中不会混用
+     */
+    @Override
+    public Result scrollByName(String name, String cursor) {
+        String[] parts = ScrollCursor.decode(cursor, 2);
+        if (parts == null) {
+            return Result.fail("无效的游标");
+        }
+        int pageSize = SystemConstants.MAX_PAGE_SIZE;
+        long after;
         try {
-            boolean isLock = tryLock(lockKey);
+            after = parts.length == 0 ? 0 : Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return Result.fail("无效的游标");
+        }
+        long[] keys = StrUtil.isBlank(name) ? null : shopSearchIndex.searchKeys(name);
+        boolean useIndex = parts.length == 0 ? keys != null : CURSOR_INDEX.equals(parts[0]);
 
-            // 4.2 判断取锁是否成功
-            if (!isLock) {
-                // 4.3 失败：休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
+        // 1. 搜索索引
+        if (useIndex) {
+            if (keys == null) {
+                return Result.fail("游标已失效，请重新查询");
             }
-            // 4.4 获取锁成功，做DoubleCheck，如果存在则无需重建缓存
-            // 4.4.1. 再次从redis中查询商铺缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            // 4.4.2. 判断缓存是否存在
-            if (StrUtil.isNotBlank(shopJson)) {
-                // 4.4.3. 命中，缓存已经存在，反序列化，然后直接返回
-                return JSONUtil.toBean(shopJson, Shop.class);
+            int from = 0;
+            if (parts.length > 0) {
+                // 找到时从它的下一个开始；找不到（翻页期间这个店铺被修改了）时从它应该在的位置开始
+                int pos = Arrays.binarySearch(keys, after);
+                from = pos >= 0 ? pos + 1 : -pos - 1;
             }
-
-            // 4.5 获取锁成功且还未建立缓存：查询数据库，将数据写入redis
-            shop = getById(id);
-            Thread.sleep(200); //模拟缓存重建的延时较长的问题
-
-            // 5. 还不存在，返回错误
-            if (shop == null) {
-                // 避免缓存穿透，当缓存和数据库都不存在时，写入空值，ttl短一点只给2分钟
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
+            int to = Math.min(from + pageSize, keys.length);
+            List<Long> ids = new ArrayList<>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) {
+                ids.add(NGramIndex.idOf(keys[i]));
             }
-
-            // 6. 存在，把数据写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7. 释放互斥锁
-            unLock(lockKey);
+            String next = to < keys.length ? ScrollCursor.encode(CURSOR_INDEX, keys[to - 1]) : null;
+            return Result.ok(ScrollResult.of(queryByIds(ids), next));
         }
 
-        // 8. 返回
-        return shop;
+        // 2. 数据库
+        List<Long> ids = query()
+                .select("id")
+                .like(StrUtil.isNotBlank(name), "name", name)
+                .gt("id", after)
+                .orderByAsc("id")
+                .last("limit " + (pageSize + 1))
+                .list()
+                .stream().map(Shop::getId).collect(Collectors.toList());
+        return Result.ok(toScrollResult(ids, pageSize, id -> ScrollCursor.encode(CURSOR_DB, id)));
     }
 
-    // 封装解决了缓存穿透问题的商户查询
-    public Shop queryWithPassThrough(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-
-        // 1. 从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2. 判断缓存是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3. 存在，反序列化，然后直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
+    /**
+     * ids是多查了一个的结果，多出来的说明还有下一页，游标取这一页最后一个id
+     */
+    private ScrollResult toScrollResult(List<Long> ids, int pageSize, Function<Long, String> cursorOf) {
+        boolean hasMore = ids.size() > pageSize;
+        List<Long> page = hasMore ? ids.subList(0, pageSize) : ids;
+        String next = hasMore ? cursorOf.apply(page.get(page.size() - 1)) : null;
+        return ScrollResult.of(queryByIds(page), next);
+    }
 
+    /**
+     * 按类型分页查询，每一页的店铺id缓存在redis里：
+     *  1.key中带有这个类型当前的版本号，店铺新增、修改类型时版本号加一，旧版本的页不再被读到，等它们自己过期，不需要扫描删除
+     *  2.只缓存id，店铺数据从店铺缓存中批量取出，修改店铺的其它字段不影响分页缓存
+     */
+    @Override
+    public List<Shop> queryByType(Integer typeId, Integer current) {
+        String prefix = RedisConstants.CACHE_SHOP_TYPE_PAGE_KEY + "{" + typeId + "}:";
+        String page = String.valueOf(current);
+
+        // 1. 先取这个类型当前的版本号，再取这个版本下的这一页（页的key由版本号决定，不能在脚本里拼出未声明的key，
+        //    集群模式下会路由错误），redis不可用时直接查数据库
+        String version = redisCircuitBreaker.execute(() -> {
+            String latest = stringRedisTemplate.opsForValue().get(prefix + "version");
+            return latest == null ? "0" : latest;
+        }, () -> null);
+        String value = version == null ? null : redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.opsForValue().get(prefix + "v" + version + ":" + page), () -> null);
+        if (value != null) {
+            List<Long> ids = value.isEmpty() ? new ArrayList<>()
+                    : Arrays.stream(value.split(",")).map(Long::valueOf).collect(Collectors.toList());
+            return queryByIds(ids);
         }
 
-        //避免缓存穿透，如果不是blank，命中的可能是我们存入过的空值
-        if (shopJson != null) {
-            return null;
+        // 2. 未命中，查询数据库，只查id，不需要总数，不查COUNT
+        List<Long> ids = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE, false))
+                .getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+
+        // 3. 写入查询前读到的版本下，期间版本号变了的话这一页直接作废
+        if (version != null) {
+            String key = prefix + "v" + version + ":" + page;
+            String pageValue = ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+            redisCircuitBreaker.run(() -> stringRedisTemplate.opsForValue().set(key, pageValue, typePageTtlSeconds, TimeUnit.SECONDS));
         }
+        return queryByIds(ids);
+    }
 
-        // 4. 不存在，根据id查询数据库
-        Shop shop = getById(id);
-
-        // 5. 还不存在，返回错误
-        if (shop == null) {
-            // 避免缓存穿透，当缓存和数据库都不存在时，写入空值，ttl短一点只给2分钟
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+    /**
+     * 某个类型的店铺增减之后调用，事务提交后把版本号加一
+     */
+    private void bumpTypeVersion(Long typeId) {
+        if (typeId == null) {
+            return;
         }
-
-        // 6. 存在，把数据写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        // 7. 返回
-        return shop;
+        String key = RedisConstants.CACHE_SHOP_TYPE_PAGE_KEY + "{" + typeId + "}:version";
+        TransactionHooks.afterCommit(() -> redisCircuitBreaker.run(() -> stringRedisTemplate.opsForValue().increment(key)));
     }
 
-    private boolean tryLock(String key) {
-        //10s的锁
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        // return flag;  //fLag自动拆箱可能产生空指针引用问题
-        return BooleanUtil.isTrue(flag);
+    /**
+     * 按名称或商圈关键字分页查询：搜索索引建好之后从索引中取出排好序的id，否则按名称LIKE查询数据库
+     */
+    @Override
+    public List<Shop> queryByName(String name, Integer current) {
+        int pageSize = SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids = StrUtil.isBlank(name) ? null : shopSearchIndex.search(name);
+        if (ids == null) {
+            Page<Shop> page = query()
+                    .select("id")
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, pageSize, false));
+            ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        } else {
+            int from = Math.min((Math.max(current, 1) - 1) * pageSize, ids.size());
+            ids = ids.subList(from, Math.min(from + pageSize, ids.size()));
+        }
+        return queryByIds(ids);
     }
 
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+    private void writeShopsWithTtl(List<Shop> shops, long deltaMillis) {
+        if (shops.isEmpty()) {
+            return;
+        }
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(RedisConstants.CACHE_SHOP_TTL);
+        Expiration expiration = Expiration.from(RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        redisCircuitBreaker.run(() -> binaryRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : shops) {
+                RedisData<Shop> redisData = new RedisData<>();
+                redisData.setData(shop);
+                redisData.setExpireTime(expireTime);
+                redisData.setDelta(deltaMillis);
+                connection.set((RedisConstants.CACHE_SHOP_KEY + shop.getId()).getBytes(StandardCharsets.UTF_8),
+                        cacheCodec.encodeRedisData(redisData), expiration, RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        }));
     }
 
     // 对于热点key，需要定期提前写入redis
@@ -243,11 +595,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         redisData.setData(shop);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
         // 3. 写入Redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        binaryRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, cacheCodec.encodeRedisData(redisData));
+        // 4. 更新本节点的本地缓存（其它节点的旧条目已逻辑过期，下次读取时会从redis拿到新值）
+        shopLocalCache.put(id, redisData);
 
         return shop;
     }
 
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = super.save(shop);
+        if (success) {
+            // 新增的店铺加入布隆过滤器、GEO集合和搜索索引
+            bloomFilterManager.put(BloomFilterManager.SHOP, shop.getId());
+            shopGeoIndex.add(shop);
+            shopSearchIndex.update(shop.getId(), shop.getName(), shop.getArea());
+            shopRankBoard.add(shop);
+            bumpTypeVersion(shop.getTypeId());
+        }
+        return success;
+    }
+
     @Override
     @Transactional  //设置这个方法为一个事务，控制本方法执行的原子性
     public Result update(Shop shop) {
@@ -256,10 +624,30 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺id不能为空");
         }
 
-        // 1. 先更新数据库
+        // 1. 先更新数据库，类型、坐标、名称、商圈、计数变化时需要修改前的数据来维护GEO集合、搜索索引和排行榜
+        boolean located = shop.getTypeId() != null || shop.getX() != null || shop.getY() != null;
+        boolean renamed = shop.getName() != null || shop.getArea() != null;
+        boolean ranked = shop.getTypeId() != null || shop.getSold() != null
+                || shop.getScore() != null || shop.getComments() != null;
+        Shop old = located || renamed || ranked ? getById(id) : null;
         updateById(shop);
-        // 2. 再删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        if (old != null && located) {
+            shopGeoIndex.move(old, shop);
+        }
+        if (old != null && ranked) {
+            shopRankBoard.update(old, shop);
+        }
+        // 类型变了，新旧两个类型的分页都要作废
+        if (old != null && shop.getTypeId() != null && !shop.getTypeId().equals(old.getTypeId())) {
+            bumpTypeVersion(old.getTypeId());
+            bumpTypeVersion(shop.getTypeId());
+        }
+        if (old != null && renamed) {
+            shopSearchIndex.update(id, shop.getName() != null ? shop.getName() : old.getName(),
+                    shop.getArea() != null ? shop.getArea() : old.getArea());
+        }
+        // 2. 在同一个事务里记录要删除的缓存，提交后由发件箱删除redis和本地缓存，并延迟再删一次
+        cacheInvalidationOutbox.record(RedisConstants.CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
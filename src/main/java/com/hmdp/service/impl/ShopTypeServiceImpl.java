@@ -1,70 +1,211 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CircuitBreaker;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.TransactionHooks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * <p>
  *  服务实现类
  * </p>
+ * 类型列表很小而且几乎不变，保存在本进程的不可变快照里（ShopTypeSnapshot），连同序列化好的响应体和ETag，查询不访问redis、不做序列化：
+ *  1.第一次查询时加载：先读redis的cache:typelist，没有再查数据库并写回redis
+ *  2.新增、修改、删除类型后，在事务提交后从数据库重新生成redis中的列表，并通过pub/sub通知所有节点重新加载快照
+ *  3.另外定时重新加载一次，防止错过通知
  *
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
-    // RedisTemplate 处理的值为String，我们的List中不是String，所以需要对List中的东西序列化存储
+    // RedisTemplate 处理的值为字节，我们的List中不是字节，所以需要对List中的东西序列化存储（由CacheCodec决定JSON还是二进制）
+    @Resource
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private CircuitBreaker mysqlCircuitBreaker;
+
+    // 和spring mvc输出响应用的是同一个ObjectMapper，序列化结果和直接返回Result一致
+    @Resource
+    private ObjectMapper objectMapper;
+
+    // 当前的快照，加载成功之前为null
+    private volatile ShopTypeSnapshot snapshot;
+
     @Override
     public Result getTypeList() {
-        String key = RedisConstants.TYPE_LIST_KEY;
-
-        //从redis中查询缓存
-        List<String> listFromRedisWithJson = stringRedisTemplate.opsForList().range(key, 0, -1);
-
-        //没有缓存
-        if (listFromRedisWithJson == null || listFromRedisWithJson.isEmpty()) {
-            //从数据库读取
-            List<ShopType> listFromMysql = query().orderByAsc("sort").list();
-            //数据库中也不存在
-            if(listFromMysql == null || listFromMysql.isEmpty()) {
-               return Result.fail("商户类型信息不存在");
+        ShopTypeSnapshot current = snapshot;
+        List<ShopType> types = current != null ? current.getTypes() : loadIfAbsent();
+        if (types == null) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
+        if (types.isEmpty()) {
+            return Result.fail("商户类型信息不存在");
+        }
+        return Result.ok(types);
+    }
+
+    @Override
+    public ShopTypeSnapshot getTypeListSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null) {
+            loadIfAbsent();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    /**
+     * 收到类型变化的通知（包括本节点自己发出的），重新加载快照
+     */
+    @Override
+    public void onRemoteChange() {
+        reload();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.shop-type.refresh-interval:300000}")
+    public void scheduledReload() {
+        reload();
+    }
+
+    @Override
+    public boolean save(ShopType entity) {
+        boolean success = super.save(entity);
+        if (success) {
+            notifyChanged();
+        }
+        return success;
+    }
+
+    @Override
+    public boolean updateById(ShopType entity) {
+        boolean success = super.updateById(entity);
+        if (success) {
+            notifyChanged();
+        }
+        return success;
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        if (success) {
+            notifyChanged();
+        }
+        return success;
+    }
+
+    // 多个请求同时遇到没有快照时只加载一次
+    private synchronized List<ShopType> loadIfAbsent() {
+        ShopTypeSnapshot current = snapshot;
+        return current != null ? current.getTypes() : reload();
+    }
+
+    /**
+     * 加载类型列表并替换快照
+     * @return 类型列表，数据库中没有时返回空列表；redis和数据库都不可用时返回null，快照保持不变
+     */
+    private List<ShopType> reload() {
+        // 1. 从redis中查询缓存，redis熔断或超时则跳过
+        List<byte[]> listFromRedis = redisCircuitBreaker.execute(
+                () -> binaryRedisTemplate.opsForList().range(RedisConstants.TYPE_LIST_KEY, 0, -1), () -> null);
+        List<ShopType> types;
+        if (listFromRedis != null && !listFromRedis.isEmpty()) {
+            types = toList(listFromRedis);
+        } else {
+            // 2. 没有缓存，在并发限制内查询数据库
+            types = mysqlCircuitBreaker.execute(() -> query().orderByAsc("sort").list(), () -> null);
+            if (types == null) {
+                return null;
             }
-            //存入redis
-            stringRedisTemplate.opsForList().rightPushAll(key, toJson(listFromMysql));
-            return Result.ok(listFromMysql);
+            if (listFromRedis != null && !types.isEmpty()) {
+                writeCache(types);
+            }
+        }
+        if (types.isEmpty()) {
+            return types;
         }
 
-        //反序列化并返回
-        return Result.ok(toList(listFromRedisWithJson));
+        // 3. 序列化好响应体，计算ETag，整体替换快照
+        List<ShopType> unmodifiable = Collections.unmodifiableList(types);
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(Result.ok(unmodifiable));
+        } catch (JsonProcessingException e) {
+            log.error("店铺类型列表序列化失败", e);
+            return unmodifiable;
+        }
+        snapshot = new ShopTypeSnapshot(unmodifiable, body, "\"" + DigestUtil.md5Hex(body) + "\"");
+        return unmodifiable;
+    }
+
+    // 类型变化后：事务提交后从数据库重新生成redis中的列表，再通知所有节点
+    private void notifyChanged() {
+        TransactionHooks.afterCommit(() -> {
+            List<ShopType> types = query().orderByAsc("sort").list();
+            if (types.isEmpty()) {
+                redisCircuitBreaker.run(() -> binaryRedisTemplate.delete(RedisConstants.TYPE_LIST_KEY));
+            } else {
+                writeCache(types);
+            }
+            redisCircuitBreaker.run(() -> stringRedisTemplate.convertAndSend(RedisConstants.SHOP_TYPE_CHANNEL, ""));
+        });
+    }
+
+    // 先写临时key再RENAME，多个节点同时写也不会产生重复的元素
+    private void writeCache(List<ShopType> types) {
+        String tmpKey = RedisConstants.TYPE_LIST_KEY + ":tmp:" + IdUtil.fastSimpleUUID();
+        redisCircuitBreaker.run(() -> {
+            binaryRedisTemplate.opsForList().rightPushAll(tmpKey, encode(types));
+            binaryRedisTemplate.rename(tmpKey, RedisConstants.TYPE_LIST_KEY);
+        });
     }
 
-    private List<String> toJson(List<ShopType> shopTypeList) {
-        List<String> stringList = new ArrayList<>();
+    private List<byte[]> encode(List<ShopType> shopTypeList) {
+        List<byte[]> byteList = new ArrayList<>();
         for(ShopType type : shopTypeList) {
-            String jsonStr = JSONUtil.toJsonStr(type);
-            stringList.add(jsonStr);
+            byteList.add(cacheCodec.encode(type));
         }
-        return stringList;
+        return byteList;
     }
 
-    private List<ShopType> toList(List<String> list) {
+    private List<ShopType> toList(List<byte[]> list) {
         List<ShopType> shopTypeList = new ArrayList<>();
-        for(String json : list) {
-            shopTypeList.add(JSONUtil.toBean(json, ShopType.class));
+        for(byte[] bytes : list) {
+            shopTypeList.add(cacheCodec.decode(bytes, ShopType.class));
         }
         return shopTypeList;
     }
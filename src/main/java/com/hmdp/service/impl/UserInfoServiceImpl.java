@@ -4,6 +4,8 @@ import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheableEntity;
+import com.hmdp.utils.RedisConstants;
 import org.springframework.stereotype.Service;
 
 /**
@@ -17,4 +19,11 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
 
+    // 很多用户没有详情，空值也缓存
+    @Override
+    @CacheableEntity(prefix = RedisConstants.CACHE_USER_INFO_KEY)
+    public UserInfo queryByUserId(Long userId) {
+        return getById(userId);
+    }
+
 }
@@ -1,7 +1,6 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -11,15 +10,17 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheCodec;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -41,6 +42,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1. 校验手机号
@@ -107,18 +117,13 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         //这个api在存储的时候，对象应该是String类型，或者是String类型组成的！
         //我们的userDTO中有Long类型的id，到Map中还是Long，于是RedisTemplate执行时报错
 
-        Map<String, Object> userMap = BeanUtil.beanToMap( //利用工具，从userDTO到userMap
-                userDTO,
-                new HashMap<>(),
-                CopyOptions.create()   //自己指定传递参数的方式，默认的都是同类型copy，这里全部将字段转为String类型
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString())
-        );
+        //现在交给CacheCodec转换：json格式下每个字段都转为字符串存一个hash字段（和原来一样），binary格式下整个对象编码后只占一个字段
+        Map<String, byte[]> userMap = cacheCodec.encodeHash(userDTO);
 
 
         // 7.3 保存用户数据到Redis
         String tokenKey = LOGIN_USER_KEY + token;
-        stringRedisTemplate.opsForHash().putAll(tokenKey, userMap);
+        binaryRedisTemplate.opsForHash().putAll(tokenKey, userMap);
 
         // 7.4 设置token有效期
         stringRedisTemplate.expire(tokenKey, LOGIN_USER_TTL, TimeUnit.MINUTES); //参考session，设置有效期为30分钟
@@ -127,6 +132,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public boolean save(User user) {
+        boolean success = super.save(user);
+        if (success) {
+            // 新注册的用户加入布隆过滤器
+            bloomFilterManager.put(BloomFilterManager.USER, user.getId());
+        }
+        return success;
+    }
+
     private User creatUserWithPhone(String phone) {
         //1. 创建用户
         User user = new User();
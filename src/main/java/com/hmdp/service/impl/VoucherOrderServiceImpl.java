@@ -7,117 +7,344 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CircuitBreaker;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStealReconciler;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SingleFlight;
 import com.hmdp.utils.UserHolder;
-import org.springframework.aop.framework.AopContext;
+import com.hmdp.utils.VoucherOrderRingQueue;
+import com.hmdp.utils.VoucherOrderStreamConsumer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
 
 /**
  * <p>
  * 服务实现类
  * </p>
+ * 秒杀下单分成两步：
+ *  1.请求线程先生成订单id，再执行seckill.lua，在redis中原子地判断时间、库存和一人一单，通过后扣减库存、记录下单用户，
+ *    并把订单写入这个优惠券（分片）的redis stream，直接返回订单id，不访问数据库；脚本用到的key都在同一个槽位
+ *  2.VoucherOrderStreamConsumer按消费者组批量读取各个stream，调用createVoucherOrders在一个事务里批量写入；
+ *    hmdp.seckill.pipeline=ring时不写stream，订单放进进程内的VoucherOrderRingQueue，由它攒批写入；
+ *    数据库中的条件更新和(user_id, voucher_id)唯一索引是最后一道保险
+ * 库存分片的优惠券（见SeckillStockShards），seckill.lua在用户所属的分片执行，这个分片卖完时记下用户，
+ * 再用seckill_steal.lua依次到其它分片扣减库存，所有分片都卖完才返回库存不足；窃取的结果未知或者需要归还时，
+ * 由SeckillStealReconciler在被窃取的分片上确定结果，不会让用户一直留在下单记录里
  *
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
+    // 秒杀结束后，redis中的库存和下单记录再保留的时间
+    private static final long SECKILL_KEY_RETAIN_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    // seckill.lua返回的第一个值，下标对应失败原因
+    private static final long SECKILL_OK = 0;
+    private static final long SECKILL_SOLD_OUT = 3;
+    private static final long SECKILL_DUPLICATE = 4;
+    private static final long SECKILL_NOT_LOADED = 5;
+    private static final long SECKILL_STEAL = 6;
+    private static final long SECKILL_STEAL_CANCELLED = 7;
+    private static final String[] SECKILL_ERRORS = {null, "秒杀尚未开始！", "秒杀已经结束！", "库存不足！", "用户已经购买过了"};
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List> SECKILL_STEAL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_ROLLBACK_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+        SECKILL_STEAL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_STEAL_SCRIPT.setLocation(new ClassPathResource("seckill_steal.lua"));
+        SECKILL_STEAL_SCRIPT.setResultType(List.class);
+        SECKILL_ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_ROLLBACK_SCRIPT.setLocation(new ClassPathResource("seckill_rollback.lua"));
+        SECKILL_ROLLBACK_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private VoucherOrderRingQueue voucherOrderRingQueue;
+
+    @Resource
+    private VoucherOrderStreamConsumer voucherOrderStreamConsumer;
+
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private SeckillStealReconciler seckillStealReconciler;
+
+    // 最近确认卖完的分片在这个时间（毫秒）之前不再去窃取；所有分片都卖完时直接返回库存不足，也不再生成订单id
+    @Value("${hmdp.seckill.shard.empty-memo-millis:1000}")
+    private long emptyMemoMillis;
+
+    // redis中还没有库存时，同一个优惠券只查一次数据库
+    private final SingleFlight<Long, SeckillVoucher> voucherLoader = new SingleFlight<>();
+
+    // 优惠券的库存分片数，创建后不会改变，每个节点只查一次数据库
+    private final Map<Long, Integer> stockShards = new ConcurrentHashMap<>();
+
+    // 每个分片被确认卖完后，到什么时间（毫秒）之前不用再去窃取（不分片的优惠券只有一个分片）
+    private final Map<Long, AtomicLongArray> emptyShards = new ConcurrentHashMap<>();
+
     @Override
     public Result seckillVouncher(Long voucherId) {
+        Long userId = UserHolder.getUser().getId();
+        LocalDateTime now = LocalDateTime.now();
+        boolean ring = voucherOrderRingQueue.isEnabled();
+        long nowMillis = toMillis(now);
 
-        // 1. 查询优惠券
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
-
-        // 2. 查询秒杀是否开始
-        LocalDateTime beginTime = voucher.getBeginTime();
-        if (beginTime.isAfter(LocalDateTime.now())) {
-            return Result.fail("秒杀尚未开始！");
+        // 0. 库存分片数和用户所属的分片；所有分片都刚确认卖完时不执行脚本、不生成订单id，
+        //    只查一次用户所属分片的下单记录，买过的用户仍然返回重复下单（redis不可用时按库存不足返回）
+        int shards = stockShards(voucherId);
+        if (shards == 0) {
+            return Result.fail("优惠券不存在！");
         }
-
-        // 3. 查询秒杀是否结束
-        LocalDateTime endTime = voucher.getEndTime();
-        if (endTime.isBefore(LocalDateTime.now())) {
-            return Result.fail("秒杀已经结束！");
+        int home = SeckillStockShards.home(userId, shards);
+        AtomicLongArray empty = emptyShards.computeIfAbsent(voucherId, k -> new AtomicLongArray(shards));
+        if (allEmpty(empty, nowMillis)) {
+            Boolean bought = redisCircuitBreaker.execute(() -> stringRedisTemplate.opsForSet()
+                    .isMember(SeckillStockShards.orderKey(voucherId, shards, home), userId.toString()), () -> false);
+            return Result.fail(SECKILL_ERRORS[(int) (Boolean.TRUE.equals(bought) ? SECKILL_DUPLICATE : SECKILL_SOLD_OUT)]);
         }
 
-        // 4. 查询库存是否充足
-        if (voucher.getStock() < 1) {
-            return Result.fail("库存不足！");
+        // 1. 订单id：序列号key是全局的，不在优惠券的槽位里，不能放进脚本，先单独生成（没抢到时这个id作废）
+        long orderId;
+        try {
+            orderId = redisIdWorker.nextId("order");
+        } catch (IllegalStateException e) {
+            return Result.fail("服务繁忙，请稍后再试");
         }
+        List<String> keys = new ArrayList<>(3);
+        keys.add(SeckillStockShards.stockKey(voucherId, shards, home));
+        keys.add(SeckillStockShards.orderKey(voucherId, shards, home));
+        // 使用进程内队列时不写stream
+        if (!ring) {
+            keys.add(SeckillStockShards.streamKey(voucherId, shards, home));
+        }
+        List<String> args = new ArrayList<>(9);
+        Collections.addAll(args, userId.toString(), voucherId.toString(), String.valueOf(nowMillis),
+                String.valueOf(orderId), shards > 1 ? "1" : "0");
 
-        //把原本的5-8过程封装到createVoucherOrder方法中，为了加锁，事务标签也要移过去，因为上面只有查询语句
-
-        Long userId = UserHolder.getUser().getId();
+        // 2. 执行脚本，判断时间、库存和一人一单，通过就扣减库存、记录下单用户并写入stream；
+        //    redis中还没有这个分片时，从数据库读取后带上初始数据重新执行
+        List<?> result = executeSeckill(SECKILL_SCRIPT, keys, args, voucherId, shards, home);
 
-        // 用悲观锁解决一人多单问题
-        // 这里toString是确保以id值加锁，而不是以userId对象、userId2String加锁
-        // Returns a canonical representation for the string object. 这里涉及到常量池
-        synchronized (userId.toString().intern()) {
+        // 2.1 redis不可用时不能降级到数据库，否则会超卖，直接失败
+        if (result == null || result.isEmpty()) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
+        long code = code(result);
+        if (code == SECKILL_SOLD_OUT) {
+            empty.set(home, nowMillis + emptyMemoMillis);
+        }
 
-            //获取代理对象（与事务有关），需要配置：在pom文件中加入aspectj依赖，并在启动类加上注解@EnableAspectJAutoProxy(exposeProxy = true)
-            IVoucherOrderService proxy = (IVoucherOrderService)AopContext.currentProxy();
+        // 3. 用户所属的分片卖完了（已经记下用户），到其它分片扣减
+        int stockShard = home;
+        if (code == SECKILL_STEAL) {
+            empty.set(home, nowMillis + emptyMemoMillis);
+            result = null;
+            for (int i = 1; i < shards && result == null; i++) {
+                int shard = SeckillStockShards.stealShard(home, shards, i);
+                if (empty.get(shard) > nowMillis) {
+                    continue;
+                }
+                List<String> stealKeys = new ArrayList<>(3);
+                stealKeys.add(SeckillStockShards.stockKey(voucherId, shards, shard));
+                stealKeys.add(SeckillStockShards.stolenKey(voucherId, shards, shard));
+                if (!ring) {
+                    stealKeys.add(SeckillStockShards.streamKey(voucherId, shards, shard));
+                }
+                List<?> stolen = executeSeckill(SECKILL_STEAL_SCRIPT, stealKeys, args.subList(0, 4), voucherId, shards, shard);
+                // 3.1 不知道是否扣减成功，不能直接撤销下单记录，否则可能一人两单：在这个分片上对账，
+                //     扣减了就当作成功；作废了（下单记录已经移除）或者还不确定（等待重试）都让用户稍后再试
+                if (stolen == null || stolen.isEmpty() || code(stolen) == SECKILL_STEAL_CANCELLED) {
+                    if (!Boolean.TRUE.equals(seckillStealReconciler.resolve(voucherId, userId, orderId, shards, home, shard, ring))) {
+                        return Result.fail("服务繁忙，请稍后再试");
+                    }
+                    stolen = Collections.singletonList(SECKILL_OK);
+                }
+                if (code(stolen) == SECKILL_OK) {
+                    result = stolen;
+                    stockShard = shard;
+                } else {
+                    empty.set(shard, nowMillis + emptyMemoMillis);
+                }
+            }
+            // 3.2 所有分片都卖完了，撤销下单记录
+            if (result == null) {
+                redisCircuitBreaker.run(() -> stringRedisTemplate.opsForSet().remove(keys.get(1), userId.toString()));
+                return Result.fail(SECKILL_ERRORS[(int) SECKILL_SOLD_OUT]);
+            }
+            code = SECKILL_OK;
+        }
+        if (code != SECKILL_OK) {
+            return Result.fail(SECKILL_ERRORS[(int) code]);
+        }
 
-            //当只有这一行时，相当于：this.createVoucherOrder(voucherId)这样会事务失效，但是这里不太理解
-            return proxy.createVoucherOrder(voucherId);
+        // 4. 使用进程内队列时放入队列，满了说明数据库跟不上，归还资格，让用户稍后再试
+        if (ring && !voucherOrderRingQueue.publish(orderId, userId, voucherId, nowMillis)) {
+            rollback(voucherId, userId, orderId, shards, home, stockShard, keys);
+            empty.set(stockShard, 0);
+            return Result.fail("服务繁忙，请稍后再试");
         }
+
+        // 5. 返回订单id
+        return Result.ok(orderId);
     }
 
-    @Transactional  // 订单新增和库存扣减，涉及到两张表的业务，所以要加上事务，如果出现问题，可以回滚
-    public Result createVoucherOrder(Long voucherId) {
+    // 库存分片数，优惠券不存在时返回0；每个节点第一次用到时登记订单stream，创建优惠券时没登记上也能被消费者读到
+    private int stockShards(Long voucherId) {
+        Integer shards = stockShards.get(voucherId);
+        if (shards == null) {
+            SeckillVoucher voucher = loadVoucher(voucherId);
+            if (voucher == null) {
+                return 0;
+            }
+            int count = SeckillStockShards.count(voucher.getStockShards());
+            long expireAt = toMillis(voucher.getEndTime()) + SECKILL_KEY_RETAIN_MILLIS;
+            redisCircuitBreaker.run(() -> voucherOrderStreamConsumer.register(voucherId, count, expireAt));
+            stockShards.put(voucherId, count);
+            shards = count;
+        }
+        return shards;
+    }
 
-        // public synchronized Result createVoucherOrder(Long voucherId)
-        // 这里不应该把锁加到方法名上，应该只需要对用户来加锁：同一个用户请求一把锁、不同用户不同锁，把锁的范围缩小，性能更好
+    private SeckillVoucher loadVoucher(Long voucherId) {
+        return voucherLoader.execute(voucherId, () -> seckillVoucherService.getById(voucherId),
+                3, TimeUnit.SECONDS, () -> seckillVoucherService.getById(voucherId));
+    }
 
-        // 5. 确保一人一单
-        Long userId = UserHolder.getUser().getId();
+    private static boolean allEmpty(AtomicLongArray empty, long nowMillis) {
+        for (int i = 0; i < empty.length(); i++) {
+            if (empty.get(i) <= nowMillis) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // synchronized (userId.toString().intern()) {
-        // 这里也不能只锁住下面，因为考虑到事务的回滚，在事务没结束前就释放了锁。所以锁一定要包含在事务的外层
+    /**
+     * 执行秒杀脚本，分片还没有加载时带上这个分片的库存、开始结束时间重新执行
+     * @return redis不可用时返回null
+     */
+    private List<?> executeSeckill(DefaultRedisScript<List> script, List<String> keys, List<String> args,
+                                   Long voucherId, int shards, int shard) {
+        List<?> result = redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.execute(script, keys, args.toArray()), () -> null);
+        if (result == null || result.isEmpty() || code(result) != SECKILL_NOT_LOADED) {
+            return result;
+        }
+        SeckillVoucher voucher = loadVoucher(voucherId);
+        if (voucher == null) {
+            return null;
+        }
+        long endMillis = toMillis(voucher.getEndTime());
+        List<String> initArgs = new ArrayList<>(args);
+        Collections.addAll(initArgs, String.valueOf(SeckillStockShards.portion(voucher.getStock(), shards, shard)),
+                String.valueOf(toMillis(voucher.getBeginTime())), String.valueOf(endMillis),
+                String.valueOf(endMillis + SECKILL_KEY_RETAIN_MILLIS));
+        return redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.execute(script, keys, initArgs.toArray()), () -> null);
+    }
 
-        // 5.1 查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        // 5.2 判断是否存在
-        if (count > 0) {
-            // 用户已经购买过了
-            return Result.fail("用户已经购买过了");
+    // 归还秒杀资格：库存还给扣减的分片，再移除用户所属分片的下单记录；窃取来的库存先在被窃取的分片上原子地归还并作废这次窃取
+    private void rollback(Long voucherId, Long userId, long orderId, int shards, int home, int stockShard, List<String> keys) {
+        if (stockShard == home) {
+            redisCircuitBreaker.run(() -> stringRedisTemplate.execute(SECKILL_ROLLBACK_SCRIPT, keys.subList(0, 2), userId.toString()));
+            return;
         }
+        seckillStealReconciler.giveBack(voucherId, userId, orderId, shards, home, stockShard);
+    }
 
-        // 6. 扣减库存，这里用乐观锁的思路解决超卖问题
-        boolean success = seckillVoucherService.update()   //mybatisplus给的模版写法
-                .setSql("stock = stock - 1")    //set stock = stock - 1
-                .eq("voucher_id", voucherId)
-                .gt("stock", 0)        //where id = ? and stock > ?
+    @Override
+    @Transactional  // 订单新增和库存扣减，涉及到两张表的业务，所以要加上事务，如果出现问题，可以回滚
+    public void createVoucherOrder(VoucherOrder voucherOrder) {
+        // 1. 扣减库存，redis已经判断过库存，这里的条件更新是防止两边不一致时超卖；
+        //    扣不了时抛出异常，订单不会被当成已经写入：stream中的留在pending里重试，最后转入死信
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .gt("stock", 0)
                 .update();
         if (!success) {
-            //扣库存失败
-            return Result.fail("库存不足！");
-        }
-
-        // 7. 创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        // 7.1 订单id
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        // 7.2 用户id
-        voucherOrder.setUserId(userId);
-        // 7.3 优惠券id
-        voucherOrder.setVoucherId(voucherId);
-        // 7.4 把订单写入数据库
+            throw new IllegalStateException("优惠券" + voucherOrder.getVoucherId() + "的数据库库存不足，订单" + voucherOrder.getId() + "没有创建");
+        }
+
+        // 2. 创建订单，一人一单由redis保证，(user_id, voucher_id)唯一索引兜底，重复时抛出异常回滚库存
         save(voucherOrder);
+    }
 
-        // 8. 反回订单id
-        return Result.ok(orderId);
+    @Override
+    @Transactional
+    public int createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1. 去掉已经写入过的订单（上次写入后没来得及ACK就宕机，消息被重新投递）
+        List<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existing = query().select("id").in("id", ids).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> orders = voucherOrders.stream()
+                .filter(order -> !existing.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (orders.isEmpty()) {
+            return 0;
+        }
+
+        // 2. 每个优惠券只扣一次库存，按优惠券id的顺序更新，多个消费者之间不会死锁；扣不了说明和redis不一致，抛出异常回滚，由调用方逐个写入
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        counts.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("优惠券" + voucherId + "的数据库库存不足" + count);
+            }
+        });
+
+        // 3. 一条多行INSERT写入所有订单，有重复的用户时唯一索引报错，整批回滚
+        getBaseMapper().insertBatch(orders);
+        return orders.size();
     }
 
+    private static long code(List<?> result) {
+        return ((Number) result.get(0)).longValue();
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -1,21 +1,40 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheableEntity;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.CircuitBreaker;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.TransactionHooks;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderStreamConsumer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -28,15 +47,124 @@ import java.util.List;
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    // 库存hash不存在时才初始化
+    private static final DefaultRedisScript<Long> SECKILL_INIT_SCRIPT;
+    static {
+        SECKILL_INIT_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_INIT_SCRIPT.setLocation(new ClassPathResource("seckill_init.lua"));
+        SECKILL_INIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final byte[] STOCK_FIELD = "stock".getBytes(StandardCharsets.UTF_8);
+
+    // 店铺的优惠券列表：缓存里没有秒杀库存，新增优惠券时删除
+    private static final CacheClient.Policy SHOP_VOUCHER_POLICY = new CacheClient.Policy(
+            CacheableEntity.Strategy.MUTEX, 30, TimeUnit.MINUTES, 0.1,
+            true, TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL), false);
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private CircuitBreaker mysqlCircuitBreaker;
+
+    @Resource
+    private VoucherOrderStreamConsumer voucherOrderStreamConsumer;
+
+    // 没有指定库存分片数的秒杀券默认的分片数，1表示不分片
+    @Value("${hmdp.seckill.shard.count:1}")
+    private int defaultStockShards;
+
+    // 店铺页的热门请求，未命中时用互斥锁重建；秒杀库存变化太快，不放进缓存，每次从redis的库存hash读取
     @Override
-    public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
+    public List<Voucher> queryVoucherOfShop(Long shopId) {
+        // 1. 查询优惠券信息
+        List<Voucher> vouchers = cacheClient.query(RedisConstants.CACHE_SHOP_VOUCHER_KEY + shopId, SHOP_VOUCHER_POLICY,
+                raw -> cacheCodec.decodeRedisDataList(raw, Voucher.class), () -> loadVoucherOfShop(shopId), ArrayList::new);
+        // 2. 填上秒杀券当前的库存
+        fillSeckillStock(vouchers);
+        return vouchers;
+    }
+
+    private List<Voucher> loadVoucherOfShop(Long shopId) {
         List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
-        // 返回结果
-        return Result.ok(vouchers);
+        vouchers.forEach(voucher -> voucher.setStock(null));
+        return vouchers;
+    }
+
+    // 秒杀券的库存是redis中各个分片的库存之和，和秒杀扣减的是同一份；
+    // 有分片还没加载到redis（还没人抢过）或者redis不可用时，用数据库中的库存（订单写入后才扣减，稍有滞后）
+    private void fillSeckillStock(List<Voucher> vouchers) {
+        List<Voucher> seckillVouchers = vouchers.stream()
+                .filter(voucher -> voucher.getBeginTime() != null)
+                .collect(Collectors.toList());
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        List<byte[]> keys = new ArrayList<>();
+        for (Voucher voucher : seckillVouchers) {
+            int shards = SeckillStockShards.count(voucher.getStockShards());
+            for (int shard = 0; shard < shards; shard++) {
+                keys.add(SeckillStockShards.stockKey(voucher.getId(), shards, shard).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        List<Object> stocks = redisCircuitBreaker.execute(() -> stringRedisTemplate.executePipelined(
+                (RedisCallback<Object>) connection -> {
+                    for (byte[] key : keys) {
+                        connection.hashCommands().hGet(key, STOCK_FIELD);
+                    }
+                    return null;
+                }), () -> null);
+
+        List<Voucher> missing = new ArrayList<>();
+        int index = 0;
+        for (Voucher voucher : seckillVouchers) {
+            int shards = SeckillStockShards.count(voucher.getStockShards());
+            int stock = 0;
+            boolean loaded = stocks != null;
+            for (int shard = 0; shard < shards; shard++, index++) {
+                Object value = stocks == null ? null : stocks.get(index);
+                if (value == null) {
+                    loaded = false;
+                } else {
+                    stock += Integer.parseInt(value.toString());
+                }
+            }
+            if (loaded) {
+                voucher.setStock(stock);
+            } else {
+                missing.add(voucher);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        List<Long> ids = missing.stream().map(Voucher::getId).collect(Collectors.toList());
+        Map<Long, Integer> dbStocks = mysqlCircuitBreaker.execute(() -> seckillVoucherService.listByIds(ids), ArrayList<SeckillVoucher>::new)
+                .stream().collect(Collectors.toMap(SeckillVoucher::getVoucherId, SeckillVoucher::getStock));
+        missing.forEach(voucher -> voucher.setStock(dbStocks.get(voucher.getId())));
+    }
+
+    @Override
+    public boolean save(Voucher voucher) {
+        boolean success = super.save(voucher);
+        if (success) {
+            // 店铺的优惠券列表变了，删除缓存（在事务中调用时，提交后才删除）
+            cacheClient.evict(RedisConstants.CACHE_SHOP_VOUCHER_KEY + voucher.getShopId());
+        }
+        return success;
     }
 
     @Override
@@ -50,7 +178,34 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        // 库存分片数，创建之后不能再改
+        seckillVoucher.setStockShards(SeckillStockShards.count(
+                voucher.getStockShards() != null ? voucher.getStockShards() : defaultStockShards));
         seckillVoucherService.save(seckillVoucher);
+        // 事务提交后把库存和秒杀时间写入redis（分片时拆到各个分片），供seckill.lua判断，并登记订单stream；
+        // 写失败也没关系，第一次秒杀时会从数据库加载
+        TransactionHooks.afterCommit(() -> redisCircuitBreaker.run(() -> saveSeckillStock(seckillVoucher)));
+    }
+
+    private void saveSeckillStock(SeckillVoucher seckillVoucher) {
+        int shards = seckillVoucher.getStockShards();
+        long endMillis = toMillis(seckillVoucher.getEndTime());
+        // 秒杀结束一天后过期，和VoucherOrderServiceImpl中初始化时一致
+        long expireAt = endMillis + TimeUnit.DAYS.toMillis(1);
+        for (int shard = 0; shard < shards; shard++) {
+            String key = SeckillStockShards.stockKey(seckillVoucher.getVoucherId(), shards, shard);
+            // 事务提交到这里之间可能已经有人秒杀过，seckill.lua按数据库初始化了库存并扣减，不能覆盖
+            stringRedisTemplate.execute(SECKILL_INIT_SCRIPT, Collections.singletonList(key),
+                    String.valueOf(SeckillStockShards.portion(seckillVoucher.getStock(), shards, shard)),
+                    String.valueOf(toMillis(seckillVoucher.getBeginTime())),
+                    String.valueOf(endMillis),
+                    String.valueOf(expireAt));
+        }
+        voucherOrderStreamConsumer.register(seckillVoucher.getVoucherId(), shards, expireAt);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
 
@@ -0,0 +1,309 @@
+package com.hmdp.utils;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 实体的紧凑二进制格式，字段按声明顺序写入，不写字段名：
+ *  1.开头是一个varint位图，标记哪些字段非null，null字段不占空间
+ *  2.整数用zigzag+varint（小数字只占1~2字节），double固定8字节，时间写成UTC秒数+纳秒
+ *  3.字符串写长度+UTF-8字节；标记为可压缩的大字段超过阈值时用LZ4压缩，长度的最低位标记是否压缩
+ * 字段只能在末尾追加，不能删除或调整顺序，否则旧数据无法解析
+ */
+public class BinarySchema<T> {
+
+    private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private final Supplier<T> constructor;
+    private final List<Field<T, ?>> fields = new ArrayList<>();
+
+    public BinarySchema(Supplier<T> constructor) {
+        this.constructor = constructor;
+    }
+
+    public BinarySchema<T> longField(Function<T, Long> getter, BiConsumer<T, Long> setter) {
+        return add(Kind.LONG, getter, setter, false);
+    }
+
+    public BinarySchema<T> intField(Function<T, Integer> getter, BiConsumer<T, Integer> setter) {
+        return add(Kind.INT, getter, setter, false);
+    }
+
+    public BinarySchema<T> doubleField(Function<T, Double> getter, BiConsumer<T, Double> setter) {
+        return add(Kind.DOUBLE, getter, setter, false);
+    }
+
+    public BinarySchema<T> booleanField(Function<T, Boolean> getter, BiConsumer<T, Boolean> setter) {
+        return add(Kind.BOOLEAN, getter, setter, false);
+    }
+
+    public BinarySchema<T> stringField(Function<T, String> getter, BiConsumer<T, String> setter) {
+        return add(Kind.STRING, getter, setter, false);
+    }
+
+    /**
+     * 可压缩的大字段，例如Blog.content、Shop.images
+     */
+    public BinarySchema<T> compressibleStringField(Function<T, String> getter, BiConsumer<T, String> setter) {
+        return add(Kind.STRING, getter, setter, true);
+    }
+
+    public BinarySchema<T> dateTimeField(Function<T, LocalDateTime> getter, BiConsumer<T, LocalDateTime> setter) {
+        return add(Kind.DATETIME, getter, setter, false);
+    }
+
+    private <F> BinarySchema<T> add(Kind kind, Function<T, F> getter, BiConsumer<T, F> setter, boolean compressible) {
+        if (fields.size() >= 63) {
+            throw new IllegalStateException("最多支持63个字段");
+        }
+        fields.add(new Field<>(kind, getter, setter, compressible));
+        return this;
+    }
+
+    public void write(T value, Output out, int compressThreshold) {
+        long presence = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).getter.apply(value) != null) {
+                presence |= 1L << i;
+            }
+        }
+        out.writeVarLong(presence);
+        for (int i = 0; i < fields.size(); i++) {
+            if ((presence & (1L << i)) != 0) {
+                fields.get(i).write(value, out, compressThreshold);
+            }
+        }
+    }
+
+    public T read(Input in) {
+        T value = constructor.get();
+        long presence = in.readVarLong();
+        for (int i = 0; i < fields.size(); i++) {
+            if ((presence & (1L << i)) != 0) {
+                fields.get(i).read(value, in);
+            }
+        }
+        return value;
+    }
+
+    private enum Kind {LONG, INT, DOUBLE, BOOLEAN, STRING, DATETIME}
+
+    private static class Field<T, F> {
+        private final Kind kind;
+        private final Function<T, F> getter;
+        private final BiConsumer<T, F> setter;
+        private final boolean compressible;
+
+        Field(Kind kind, Function<T, F> getter, BiConsumer<T, F> setter, boolean compressible) {
+            this.kind = kind;
+            this.getter = getter;
+            this.setter = setter;
+            this.compressible = compressible;
+        }
+
+        void write(T value, Output out, int compressThreshold) {
+            Object v = getter.apply(value);
+            switch (kind) {
+                case LONG:
+                    out.writeVarLong(zigzag((Long) v));
+                    break;
+                case INT:
+                    out.writeVarLong(zigzag((Integer) v));
+                    break;
+                case DOUBLE:
+                    out.writeFixedLong(Double.doubleToRawLongBits((Double) v));
+                    break;
+                case BOOLEAN:
+                    out.writeByte((Boolean) v ? 1 : 0);
+                    break;
+                case STRING:
+                    out.writeString((String) v, compressible ? compressThreshold : Integer.MAX_VALUE);
+                    break;
+                case DATETIME:
+                    LocalDateTime time = (LocalDateTime) v;
+                    out.writeVarLong(zigzag(time.toEpochSecond(ZoneOffset.UTC)));
+                    out.writeVarLong(time.getNano());
+                    break;
+                default:
+                    throw new IllegalStateException("未知的字段类型：" + kind);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void read(T value, Input in) {
+            Object v;
+            switch (kind) {
+                case LONG:
+                    v = unzigzag(in.readVarLong());
+                    break;
+                case INT:
+                    v = (int) unzigzag(in.readVarLong());
+                    break;
+                case DOUBLE:
+                    v = Double.longBitsToDouble(in.readFixedLong());
+                    break;
+                case BOOLEAN:
+                    v = in.readByte() != 0;
+                    break;
+                case STRING:
+                    v = in.readString();
+                    break;
+                case DATETIME:
+                    long seconds = unzigzag(in.readVarLong());
+                    v = LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+                    break;
+                default:
+                    throw new IllegalStateException("未知的字段类型：" + kind);
+            }
+            setter.accept(value, (F) v);
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * 可扩容的字节输出
+     */
+    public static class Output {
+        private byte[] buf;
+        private int pos;
+
+        public Output(int initialSize) {
+            this.buf = new byte[Math.max(16, initialSize)];
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        public void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+
+        public void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        public void writeFixedLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i << 3));
+            }
+        }
+
+        public void writeString(String s, int compressThreshold) {
+            byte[] raw = s.getBytes(StandardCharsets.UTF_8);
+            if (raw.length >= compressThreshold) {
+                byte[] compressed = new byte[LZ4_COMPRESSOR.maxCompressedLength(raw.length)];
+                int compressedLength = LZ4_COMPRESSOR.compress(raw, 0, raw.length, compressed, 0, compressed.length);
+                // 压缩后没有变小（例如已经是随机字符串）就存原文
+                if (compressedLength < raw.length) {
+                    writeVarLong(((long) compressedLength << 1) | 1);
+                    writeVarLong(raw.length);
+                    writeBytes(compressed, 0, compressedLength);
+                    return;
+                }
+            }
+            writeVarLong((long) raw.length << 1);
+            writeBytes(raw, 0, raw.length);
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+    }
+
+    /**
+     * 字节输入，越界时抛出IllegalArgumentException
+     */
+    public static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        public Input(byte[] buf, int offset) {
+            this.buf = buf;
+            this.pos = offset;
+        }
+
+        public int readByte() {
+            check(1);
+            return buf[pos++] & 0xFF;
+        }
+
+        public long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("varint格式错误");
+        }
+
+        public long readFixedLong() {
+            check(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        public String readString() {
+            long header = readVarLong();
+            int length = (int) (header >>> 1);
+            if ((header & 1) == 0) {
+                check(length);
+                String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+                pos += length;
+                return s;
+            }
+            int rawLength = (int) readVarLong();
+            check(length);
+            byte[] raw = new byte[rawLength];
+            LZ4_DECOMPRESSOR.decompress(buf, pos, raw, 0, rawLength);
+            pos += length;
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+
+        private void check(int n) {
+            if (n < 0 || pos + n > buf.length) {
+                throw new IllegalArgumentException("数据长度不足");
+            }
+        }
+    }
+}
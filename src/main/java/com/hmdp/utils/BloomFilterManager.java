@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * 店铺、博客、用户id的布隆过滤器，用于在查询缓存和数据库之前拦截不存在的id（解决缓存穿透）：
+ *  1.启动时从redis加载本地镜像，redis中没有或配置变化时，按id分批从数据库流式重建
+ *  2.新增数据时立即写入本地镜像；事务提交后再经过redis熔断器写入redis并通过pub/sub通知其它节点，
+ *    redis不可用不会让已经写入数据库的新增失败或者回滚
+ *  3.定时同步：补写没写进redis的id，并把redis的位图合并进本地镜像，丢失的通知不会让新数据在其它节点上一直被拦截
+ */
+@Slf4j
+@Component
+public class BloomFilterManager implements ApplicationRunner {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    // 从数据库重建时每批读取的id数量
+    private static final int REBUILD_BATCH_SIZE = 1000;
+
+    @Value("${hmdp.bloom.shop.expected-insertions:100000}")
+    private long shopExpectedInsertions;
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double shopFpp;
+    @Value("${hmdp.bloom.blog.expected-insertions:1000000}")
+    private long blogExpectedInsertions;
+    @Value("${hmdp.bloom.blog.fpp:0.01}")
+    private double blogFpp;
+    @Value("${hmdp.bloom.user.expected-insertions:1000000}")
+    private long userExpectedInsertions;
+    @Value("${hmdp.bloom.user.fpp:0.01}")
+    private double userFpp;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private UserMapper userMapper;
+
+    private final Map<String, RedisBloomFilter> filters = new LinkedHashMap<>();
+    private final Map<String, BaseMapper<?>> mappers = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        filters.put(SHOP, new RedisBloomFilter(SHOP, shopExpectedInsertions, shopFpp, stringRedisTemplate));
+        filters.put(BLOG, new RedisBloomFilter(BLOG, blogExpectedInsertions, blogFpp, stringRedisTemplate));
+        filters.put(USER, new RedisBloomFilter(USER, userExpectedInsertions, userFpp, stringRedisTemplate));
+        mappers.put(SHOP, shopMapper);
+        mappers.put(BLOG, blogMapper);
+        mappers.put(USER, userMapper);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        for (RedisBloomFilter filter : filters.values()) {
+            try {
+                if (!filter.loadFromRedis()) {
+                    rebuild(filter.getName());
+                }
+            } catch (Exception e) {
+                // 加载失败时过滤器保持"全部放行"，不影响正常查询
+                log.error("布隆过滤器{}加载失败", filter.getName(), e);
+            }
+        }
+    }
+
+    public boolean mightContain(String name, Long id) {
+        return id != null && filters.get(name).mightContain(id);
+    }
+
+    /**
+     * 新增数据后调用：本地镜像立即生效（事务回滚时多出来的id只会多放行），事务提交后写入redis并通知其它节点
+     */
+    public void put(String name, Long id) {
+        if (id == null) {
+            return;
+        }
+        RedisBloomFilter filter = filters.get(name);
+        filter.putLocal(id);
+        TransactionHooks.afterCommit(() -> publish(filter, id));
+    }
+
+    // 写redis并通知其它节点，失败时记下来，定时同步时补写（其它节点同步时从redis合并）
+    private void publish(RedisBloomFilter filter, long id) {
+        boolean published;
+        try {
+            published = redisCircuitBreaker.execute(() -> {
+                filter.putRedis(id);
+                stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, filter.getName() + ":" + id);
+                return true;
+            }, () -> false);
+        } catch (RuntimeException e) {
+            log.warn("布隆过滤器{}写入redis失败：{}", filter.getName(), e.getMessage());
+            published = false;
+        }
+        if (!published) {
+            filter.retryLater(id);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.bloom.sync-interval:60000}")
+    public void sync() {
+        for (RedisBloomFilter filter : filters.values()) {
+            try {
+                redisCircuitBreaker.run(filter::sync);
+            } catch (RuntimeException e) {
+                log.warn("布隆过滤器{}同步失败：{}", filter.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 收到其它节点的新增通知，格式为 name:id
+     */
+    public void onRemotePut(String message) {
+        int index = message.indexOf(':');
+        RedisBloomFilter filter = index > 0 ? filters.get(message.substring(0, index)) : null;
+        if (filter == null) {
+            log.warn("无效的布隆过滤器消息：{}", message);
+            return;
+        }
+        filter.putLocal(Long.parseLong(message.substring(index + 1)));
+    }
+
+    /**
+     * 按主键分批读取所有id（WHERE id > ? ORDER BY id LIMIT n，只查id列），流式重建过滤器
+     */
+    public void rebuild(String name) {
+        BaseMapper<?> mapper = mappers.get(name);
+        long begin = System.currentTimeMillis();
+        long[] count = {0};
+        filters.get(name).rebuild(consumer -> count[0] = scanIds(mapper, consumer));
+        log.info("布隆过滤器{}重建完成，共{}个id，耗时{}ms", name, count[0], System.currentTimeMillis() - begin);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private long scanIds(BaseMapper mapper, LongConsumer consumer) {
+        long lastId = 0;
+        long count = 0;
+        while (true) {
+            QueryWrapper wrapper = new QueryWrapper<>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + REBUILD_BATCH_SIZE);
+            List<Object> ids = mapper.selectObjs(wrapper);
+            for (Object id : ids) {
+                lastId = ((Number) id).longValue();
+                consumer.accept(lastId);
+            }
+            count += ids.size();
+            if (ids.size() < REBUILD_BATCH_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        filters.forEach((name, filter) -> map.put(name, filter.stats()));
+        return map;
+    }
+}
@@ -0,0 +1,344 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 通用的缓存读取，四种策略共用一套实现（见CacheableEntity）：
+ *  1.所有值都以RedisData信封写入，记录过期时间和重建耗时；数据库不存在时写入空值
+ *  2.未命中时，除PASS_THROUGH外都合并本节点的并发请求，并用redis互斥锁保证跨节点只有一个线程查询数据库
+ *  3.LOGICAL_EXPIRE过期、REFRESH_AHEAD快过期时交给CacheRebuildExecutor异步重建，本次返回旧值
+ *  4.每次redis调用单独经过redis熔断器，每次调用loader都在mysql熔断器的并发限制内；
+ *    redis不可用时先用本地缓存（过期了也先用着），再查数据库，数据库也不可用时返回调用方给的降级结果，不抛异常
+ */
+@Component
+public class CacheClient {
+
+    // 等待他人重建缓存的最长时间
+    private static final long REBUILD_WAIT_MILLIS = 1000L;
+
+    @Resource
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private DistributedLock distributedLock;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private CacheInvalidationOutbox cacheInvalidationOutbox;
+
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private CircuitBreaker mysqlCircuitBreaker;
+
+    @Value("${hmdp.cache.refresh-ahead.beta:1.0}")
+    private double refreshAheadBeta;
+
+    private final SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+
+    /**
+     * 缓存策略，由CacheableEntity注解转换而来
+     */
+    public static class Policy {
+        private final CacheableEntity.Strategy strategy;
+        private final long ttlMillis;
+        private final double jitter;
+        private final boolean cacheNull;
+        private final long nullTtlSeconds;
+        private final boolean forceJson;
+
+        public Policy(CacheableEntity.Strategy strategy, long ttl, TimeUnit unit, double jitter,
+                      boolean cacheNull, long nullTtlSeconds, boolean forceJson) {
+            this.strategy = strategy;
+            this.ttlMillis = unit.toMillis(ttl);
+            this.jitter = jitter;
+            this.cacheNull = cacheNull;
+            this.nullTtlSeconds = nullTtlSeconds;
+            this.forceJson = forceJson;
+        }
+
+        public static Policy of(CacheableEntity annotation) {
+            return new Policy(annotation.strategy(), annotation.ttl(), annotation.unit(), annotation.jitter(),
+                    annotation.cacheNull(), annotation.nullTtlSeconds(),
+                    annotation.format() == CacheableEntity.Format.JSON);
+        }
+    }
+
+    /**
+     * 本地一级缓存：LOGICAL_EXPIRE的值逻辑时间未过期时直接返回，不访问redis；
+     * redis不可用时任何策略都先用本地的值（过期了也先用着）
+     */
+    public interface LocalCache<R> {
+        RedisData<R> get();
+
+        void put(RedisData<R> redisData);
+    }
+
+    /**
+     * 按策略读取缓存
+     * @param decoder 把redis中的值解码为信封（普通值返回expireTime为null的信封）
+     * @param loader 未命中时加载数据，通常是查询数据库
+     * @param fallback redis和数据库都不可用时返回的降级结果，不会写入缓存
+     */
+    public <R> R query(String key, Policy policy, Function<byte[], RedisData<R>> decoder, Supplier<R> loader,
+                       Supplier<R> fallback) {
+        return query(key, policy, decoder, loader, null, fallback);
+    }
+
+    /**
+     * 按策略读取缓存，带本地一级缓存
+     * @param localCache 可以为null
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R query(String key, Policy policy, Function<byte[], RedisData<R>> decoder, Supplier<R> loader,
+                       LocalCache<R> localCache, Supplier<R> fallback) {
+        boolean logical = policy.strategy == CacheableEntity.Strategy.LOGICAL_EXPIRE;
+        // 0. 逻辑过期的值先查本地缓存，逻辑时间未过期则直接返回
+        if (logical && localCache != null) {
+            RedisData<R> localData = localCache.get();
+            if (localData != null && localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                return localData.getData();
+            }
+        }
+
+        // 1. 从redis中查询，redis不可用时降级
+        Optional<byte[]> cached = read(key);
+        if (cached == null) {
+            return degrade(policy, loader, localCache, fallback);
+        }
+
+        // 2. 命中
+        byte[] raw = cached.orElse(null);
+        if (raw != null) {
+            // 2.1 命中的是空值
+            if (CacheCodec.isEmpty(raw)) {
+                return null;
+            }
+            RedisData<R> redisData = decoder.apply(raw);
+            if (logical) {
+                // 2.2 逻辑过期的（或者是还没有过期时间的普通值），异步重建，先返回旧值；未过期的放入本地缓存
+                if (redisData.getExpireTime() == null || redisData.getExpireTime().isBefore(LocalDateTime.now())) {
+                    rebuildAsync(key, policy, decoder, loader, localCache, raw);
+                } else if (localCache != null) {
+                    localCache.put(redisData);
+                }
+            }
+            // 2.3 快过期的，按概率提前异步刷新
+            if (policy.strategy == CacheableEntity.Strategy.REFRESH_AHEAD && shouldRefreshEarly(redisData)) {
+                cacheRebuildExecutor.submit(key, () -> loadAndSave(key, policy, loader, localCache, () -> null));
+            }
+            return redisData.getData();
+        }
+
+        // 3. 未命中
+        if (policy.strategy == CacheableEntity.Strategy.PASS_THROUGH) {
+            return loadAndSave(key, policy, loader, localCache, fallback);
+        }
+        // 3.1 合并本节点同一个key的并发请求，再用互斥锁防止多个节点同时查询数据库；等待超时的请求自己在并发限制内查询
+        return (R) singleFlight.execute(
+                key,
+                () -> loadWithMutex(key, policy, decoder, loader, localCache, fallback),
+                REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS,
+                () -> loadOrFallback(loader, fallback)
+        );
+    }
+
+    /**
+     * 删除缓存：通过事务发件箱，在事务提交之后删除，并延迟再删一次
+     */
+    public void evict(String key) {
+        cacheInvalidationOutbox.record(key);
+    }
+
+    /**
+     * XFetch：当 delta * beta * -ln(rand) >= 剩余时间 时刷新，-ln(rand)服从指数分布，
+     * 越接近过期、重建耗时delta越大，提前刷新的概率越高，并发请求里通常只有一个会触发。
+     * 没有记录重建耗时的信封只在过期后刷新
+     */
+    public boolean shouldRefreshEarly(RedisData<?> redisData) {
+        if (redisData.getExpireTime() == null) {
+            return false;
+        }
+        long remainingMillis = Duration.between(LocalDateTime.now(), redisData.getExpireTime()).toMillis();
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        return delta * refreshAheadBeta * -Math.log(random) >= remainingMillis;
+    }
+
+    private <R> R loadWithMutex(String key, Policy policy, Function<byte[], RedisData<R>> decoder, Supplier<R> loader,
+                                LocalCache<R> localCache, Supplier<R> fallback) {
+        String lockKey = RedisConstants.LOCK_KEY_PREFIX + key;
+        // 1. 获取互斥锁，其它节点正在重建时等待它释放锁；等锁主要是本地等待，不占用redis熔断器的并发名额
+        if (!tryLock(lockKey, REBUILD_WAIT_MILLIS)) {
+            // 1.1 等待超时，再查一次redis，仍然没有则在并发限制内查询返回，不写缓存（缓存交给持锁者重建）
+            Optional<byte[]> cached = read(key);
+            if (cached == null) {
+                return degrade(policy, loader, localCache, fallback);
+            }
+            byte[] raw = cached.orElse(null);
+            if (raw != null) {
+                return CacheCodec.isEmpty(raw) ? null : decoder.apply(raw).getData();
+            }
+            return loadOrFallback(loader, fallback);
+        }
+        try {
+            // 2. DoubleCheck，拿到锁的时候可能别人已经写好了
+            Optional<byte[]> cached = read(key);
+            if (cached == null) {
+                return degrade(policy, loader, localCache, fallback);
+            }
+            byte[] raw = cached.orElse(null);
+            if (raw != null) {
+                return CacheCodec.isEmpty(raw) ? null : decoder.apply(raw).getData();
+            }
+            // 3. 查询数据库并写入redis
+            return loadAndSave(key, policy, loader, localCache, fallback);
+        } finally {
+            unlock(lockKey);
+        }
+    }
+
+    // 在重建线程中获取锁，拿不到说明其它节点正在重建，放弃
+    private <R> void rebuildAsync(String key, Policy policy, Function<byte[], RedisData<R>> decoder, Supplier<R> loader,
+                                  LocalCache<R> localCache, byte[] staleRaw) {
+        cacheRebuildExecutor.submit(key, () -> {
+            String lockKey = RedisConstants.LOCK_KEY_PREFIX + key;
+            if (!tryLock(lockKey, 0)) {
+                return null;
+            }
+            try {
+                // DoubleCheck：内容和请求读到的不一样并且逻辑时间未过期，说明已经被其它节点重建
+                Optional<byte[]> cached = read(key);
+                if (cached == null) {
+                    return null;
+                }
+                byte[] raw = cached.orElse(null);
+                if (!CacheCodec.isEmpty(raw) && !Arrays.equals(raw, staleRaw)) {
+                    RedisData<R> redisData = decoder.apply(raw);
+                    if (redisData.getExpireTime() != null && redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+                        if (localCache != null) {
+                            localCache.put(redisData);
+                        }
+                        return redisData.getData();
+                    }
+                }
+                return loadAndSave(key, policy, loader, localCache, () -> null);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+    }
+
+    // 在并发限制内查询，数据库不可用或舱壁已满时返回降级结果；查到的值不写缓存
+    private <R> R loadOrFallback(Supplier<R> loader, Supplier<R> fallback) {
+        Optional<R> loaded = load(loader);
+        return loaded == null ? fallback.get() : loaded.orElse(null);
+    }
+
+    // redis不可用：先用本地缓存（过期了也先用着），没有再在并发限制内查询数据库，查到的值放入本地缓存
+    private <R> R degrade(Policy policy, Supplier<R> loader, LocalCache<R> localCache, Supplier<R> fallback) {
+        if (localCache != null) {
+            RedisData<R> localData = localCache.get();
+            if (localData != null) {
+                return localData.getData();
+            }
+        }
+        Optional<R> loaded = load(loader);
+        if (loaded == null) {
+            return fallback.get();
+        }
+        R value = loaded.orElse(null);
+        if (value != null && localCache != null) {
+            localCache.put(envelope(policy, value, 0));
+        }
+        return value;
+    }
+
+    private <R> R loadAndSave(String key, Policy policy, Supplier<R> loader, LocalCache<R> localCache, Supplier<R> fallback) {
+        long begin = System.currentTimeMillis();
+        Optional<R> loaded = load(loader);
+        // 数据库不可用时不写缓存，不能把降级结果当成“不存在”缓存起来
+        if (loaded == null) {
+            return fallback.get();
+        }
+        R value = loaded.orElse(null);
+        long delta = System.currentTimeMillis() - begin;
+        if (value == null) {
+            if (policy.cacheNull) {
+                redisCircuitBreaker.run(() -> binaryRedisTemplate.opsForValue()
+                        .set(key, CacheCodec.NULL_VALUE, policy.nullTtlSeconds, TimeUnit.SECONDS));
+            }
+            return null;
+        }
+        RedisData<R> redisData = envelope(policy, value, delta);
+        byte[] bytes = cacheCodec.encodeRedisData(redisData, policy.forceJson);
+        if (policy.strategy == CacheableEntity.Strategy.LOGICAL_EXPIRE) {
+            redisCircuitBreaker.run(() -> binaryRedisTemplate.opsForValue().set(key, bytes));
+            if (localCache != null) {
+                localCache.put(redisData);
+            }
+        } else {
+            long ttlMillis = Duration.between(LocalDateTime.now(), redisData.getExpireTime()).toMillis();
+            redisCircuitBreaker.run(() -> binaryRedisTemplate.opsForValue()
+                    .set(key, bytes, Math.max(1, ttlMillis), TimeUnit.MILLISECONDS));
+        }
+        return value;
+    }
+
+    // 有效期加上随机抖动
+    private <R> RedisData<R> envelope(Policy policy, R value, long deltaMillis) {
+        long ttlMillis = policy.ttlMillis + (long) (policy.ttlMillis * policy.jitter * ThreadLocalRandom.current().nextDouble());
+        RedisData<R> redisData = new RedisData<>();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plus(ttlMillis, ChronoUnit.MILLIS));
+        redisData.setDelta(deltaMillis);
+        return redisData;
+    }
+
+    // 读取redis，只有这一次调用在redis熔断器内；redis不可用时返回null
+    private Optional<byte[]> read(String key) {
+        return redisCircuitBreaker.execute(() -> Optional.ofNullable(binaryRedisTemplate.opsForValue().get(key)), () -> null);
+    }
+
+    // 调用loader，在mysql熔断器的并发限制内；数据库不可用或舱壁已满时返回null
+    private <R> Optional<R> load(Supplier<R> loader) {
+        return mysqlCircuitBreaker.execute(() -> Optional.ofNullable(loader.get()), () -> null);
+    }
+
+    // redis故障时按取锁失败处理
+    private boolean tryLock(String lockKey, long waitMillis) {
+        try {
+            return distributedLock.tryLock(lockKey, waitMillis, TimeUnit.MILLISECONDS);
+        } catch (DataAccessException e) {
+            return false;
+        }
+    }
+
+    private void unlock(String lockKey) {
+        try {
+            distributedLock.unlock(lockKey);
+        } catch (DataAccessException e) {
+            // 本地锁已经释放，redis中的锁由租期兜底
+        }
+    }
+}
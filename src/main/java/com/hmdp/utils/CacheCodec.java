@@ -0,0 +1,293 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.util.ReflectUtil;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 缓存值的编解码：
+ *  1.写入格式由 hmdp.cache.codec.format 决定，json为原来的hutool JSON文本，binary为BinarySchema定义的紧凑二进制
+ *  2.读取时自动识别两种格式（迁移模式）：二进制以0xC1开头，这个字节不可能出现在UTF-8文本里
+ *  3.二进制格式为 [0xC1][类型标记][字段数据]，RedisData信封为 [0xC1][0x10][逻辑过期时间][内层类型标记][内层数据]，
+ *    带重建耗时的信封为 [0xC1][0x11][逻辑过期时间][重建耗时][内层类型标记][内层数据]
+ * 同一个key可能在普通TTL缓存和逻辑过期之间切换（热点key的升级、降级），两种解码方法都能读对方的格式
+ * 滚动发布时先用json格式把新版本发布到所有节点，再切换为binary
+ */
+@Component
+public class CacheCodec {
+
+    private static final int MAGIC = 0xC1;
+    private static final int TAG_NULL = 0;
+    private static final int TAG_REDIS_DATA = 0x10;
+    private static final int TAG_REDIS_DATA_DELTA = 0x11;
+    private static final String EXPIRE_TIME_FIELD = "expireTime";
+
+    // 二进制格式下，对象存入hash时只占用这一个字段
+    private static final String BINARY_HASH_FIELD = "_b";
+
+    // 缓存空值（防止缓存穿透）
+    public static final byte[] NULL_VALUE = new byte[0];
+
+    private final Map<Class<?>, Integer> tags = new HashMap<>();
+    private final Map<Integer, BinarySchema<?>> schemas = new HashMap<>();
+
+    @Value("${hmdp.cache.codec.format:binary}")
+    private String format;
+
+    @Value("${hmdp.cache.codec.compress-threshold:512}")
+    private int compressThreshold;
+
+    public CacheCodec() {
+        register(1, Shop.class, new BinarySchema<>(Shop::new)
+                .longField(Shop::getId, Shop::setId)
+                .stringField(Shop::getName, Shop::setName)
+                .longField(Shop::getTypeId, Shop::setTypeId)
+                .compressibleStringField(Shop::getImages, Shop::setImages)
+                .stringField(Shop::getArea, Shop::setArea)
+                .stringField(Shop::getAddress, Shop::setAddress)
+                .doubleField(Shop::getX, Shop::setX)
+                .doubleField(Shop::getY, Shop::setY)
+                .longField(Shop::getAvgPrice, Shop::setAvgPrice)
+                .intField(Shop::getSold, Shop::setSold)
+                .intField(Shop::getComments, Shop::setComments)
+                .intField(Shop::getScore, Shop::setScore)
+                .stringField(Shop::getOpenHours, Shop::setOpenHours)
+                .dateTimeField(Shop::getCreateTime, Shop::setCreateTime)
+                .dateTimeField(Shop::getUpdateTime, Shop::setUpdateTime));
+        register(2, ShopType.class, new BinarySchema<>(ShopType::new)
+                .longField(ShopType::getId, ShopType::setId)
+                .stringField(ShopType::getName, ShopType::setName)
+                .stringField(ShopType::getIcon, ShopType::setIcon)
+                .intField(ShopType::getSort, ShopType::setSort)
+                .dateTimeField(ShopType::getCreateTime, ShopType::setCreateTime)
+                .dateTimeField(ShopType::getUpdateTime, ShopType::setUpdateTime));
+        register(3, Blog.class, new BinarySchema<>(Blog::new)
+                .longField(Blog::getId, Blog::setId)
+                .longField(Blog::getShopId, Blog::setShopId)
+                .longField(Blog::getUserId, Blog::setUserId)
+                .stringField(Blog::getTitle, Blog::setTitle)
+                .compressibleStringField(Blog::getImages, Blog::setImages)
+                .compressibleStringField(Blog::getContent, Blog::setContent)
+                .intField(Blog::getLiked, Blog::setLiked)
+                .intField(Blog::getComments, Blog::setComments)
+                .dateTimeField(Blog::getCreateTime, Blog::setCreateTime)
+                .dateTimeField(Blog::getUpdateTime, Blog::setUpdateTime)
+                .stringField(Blog::getIcon, Blog::setIcon)
+                .stringField(Blog::getName, Blog::setName));
+        register(4, UserDTO.class, new BinarySchema<>(UserDTO::new)
+                .longField(UserDTO::getId, UserDTO::setId)
+                .stringField(UserDTO::getNickName, UserDTO::setNickName)
+                .stringField(UserDTO::getIcon, UserDTO::setIcon));
+    }
+
+    private <T> void register(int tag, Class<T> type, BinarySchema<T> schema) {
+        tags.put(type, tag);
+        schemas.put(tag, schema);
+    }
+
+    public static boolean isEmpty(byte[] raw) {
+        return raw == null || raw.length == 0;
+    }
+
+    public static boolean isBinary(byte[] raw) {
+        return raw != null && raw.length > 1 && (raw[0] & 0xFF) == MAGIC;
+    }
+
+    private boolean writeBinary(Class<?> type) {
+        return "binary".equalsIgnoreCase(format) && tags.containsKey(type);
+    }
+
+    public byte[] encode(Object value) {
+        if (!writeBinary(value.getClass())) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        BinarySchema.Output out = new BinarySchema.Output(128);
+        out.writeByte(MAGIC);
+        writeTagged(value, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码普通值；如果读到的是RedisData信封（该key按逻辑过期缓存），直接取出其中的数据
+     */
+    public <T> T decode(byte[] raw, Class<T> type) {
+        if (isEmpty(raw)) {
+            return null;
+        }
+        if (!isBinary(raw)) {
+            JSONObject json = JSONUtil.parseObj(new String(raw, StandardCharsets.UTF_8));
+            if (json.containsKey(EXPIRE_TIME_FIELD)) {
+                JSONObject data = json.getJSONObject("data");
+                return data == null ? null : data.toBean(type);
+            }
+            return json.toBean(type);
+        }
+        BinarySchema.Input in = new BinarySchema.Input(raw, 1);
+        if (isRedisDataTag(raw[1] & 0xFF)) {
+            readEnvelopeHeader(in, null);
+        }
+        return readTagged(in, type);
+    }
+
+    public byte[] encodeRedisData(RedisData<?> redisData) {
+        return encodeRedisData(redisData, false);
+    }
+
+    /**
+     * @param forceJson 为true时忽略配置，总是写成JSON
+     */
+    public byte[] encodeRedisData(RedisData<?> redisData, boolean forceJson) {
+        Object data = redisData.getData();
+        if (forceJson || !"binary".equalsIgnoreCase(format) || (data != null && !tags.containsKey(data.getClass()))) {
+            return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        }
+        BinarySchema.Output out = new BinarySchema.Output(128);
+        out.writeByte(MAGIC);
+        Long delta = redisData.getDelta();
+        out.writeByte(delta == null ? TAG_REDIS_DATA : TAG_REDIS_DATA_DELTA);
+        LocalDateTime expireTime = redisData.getExpireTime();
+        out.writeVarLong(expireTime == null ? 0 : expireTime.toInstant(ZoneOffset.UTC).toEpochMilli());
+        if (delta != null) {
+            out.writeVarLong(delta);
+        }
+        if (data == null) {
+            out.writeByte(TAG_NULL);
+        } else {
+            writeTagged(data, out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码RedisData信封；如果读到的是普通值（该key按TTL缓存），返回expireTime为null的信封
+     */
+    public <T> RedisData<T> decodeRedisData(byte[] raw, Class<T> type) {
+        if (isEmpty(raw)) {
+            return null;
+        }
+        RedisData<T> redisData = new RedisData<>();
+        if (!isBinary(raw)) {
+            // JSON格式：{"expireTime":..., "data":{...}}，data为null时hutool不会输出该字段
+            JSONObject json = JSONUtil.parseObj(new String(raw, StandardCharsets.UTF_8));
+            if (!json.containsKey(EXPIRE_TIME_FIELD)) {
+                redisData.setData(json.toBean(type));
+                return redisData;
+            }
+            redisData.setExpireTime(json.get(EXPIRE_TIME_FIELD, LocalDateTime.class));
+            redisData.setDelta(json.getLong("delta"));
+            JSONObject data = json.getJSONObject("data");
+            redisData.setData(data == null ? null : data.toBean(type));
+            return redisData;
+        }
+        BinarySchema.Input in = new BinarySchema.Input(raw, 1);
+        if (!isRedisDataTag(raw[1] & 0xFF)) {
+            redisData.setData(readTagged(in, type));
+            return redisData;
+        }
+        readEnvelopeHeader(in, redisData);
+        redisData.setData(readTagged(in, type));
+        return redisData;
+    }
+
+    /**
+     * 解码数据为List的RedisData信封；列表没有二进制格式，总是JSON。读到普通的JSON数组时返回expireTime为null的信封
+     */
+    public <T> RedisData<List<T>> decodeRedisDataList(byte[] raw, Class<T> elementType) {
+        if (isEmpty(raw)) {
+            return null;
+        }
+        String text = new String(raw, StandardCharsets.UTF_8);
+        RedisData<List<T>> redisData = new RedisData<>();
+        if (JSONUtil.isJsonArray(text)) {
+            redisData.setData(JSONUtil.toList(text, elementType));
+            return redisData;
+        }
+        JSONObject json = JSONUtil.parseObj(text);
+        redisData.setExpireTime(json.get(EXPIRE_TIME_FIELD, LocalDateTime.class));
+        redisData.setDelta(json.getLong("delta"));
+        JSONArray data = json.getJSONArray("data");
+        redisData.setData(data == null ? null : JSONUtil.toList(data, elementType));
+        return redisData;
+    }
+
+    private static boolean isRedisDataTag(int tag) {
+        return tag == TAG_REDIS_DATA || tag == TAG_REDIS_DATA_DELTA;
+    }
+
+    // 读取信封的类型标记、逻辑过期时间和重建耗时，redisData为null时只跳过
+    private static void readEnvelopeHeader(BinarySchema.Input in, RedisData<?> redisData) {
+        int tag = in.readByte();
+        long expireMillis = in.readVarLong();
+        Long delta = tag == TAG_REDIS_DATA_DELTA ? in.readVarLong() : null;
+        if (redisData != null) {
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneOffset.UTC));
+            redisData.setDelta(delta);
+        }
+    }
+
+    /**
+     * 对象转为hash的字段：json格式下每个属性一个字段（值都转为字符串），binary格式下只有一个字段
+     */
+    public Map<String, byte[]> encodeHash(Object value) {
+        if (writeBinary(value.getClass())) {
+            return Collections.singletonMap(BINARY_HASH_FIELD, encode(value));
+        }
+        Map<String, Object> fields = BeanUtil.beanToMap(value, new HashMap<>(),
+                CopyOptions.create().setIgnoreNullValue(true));
+        Map<String, byte[]> hash = new HashMap<>(fields.size());
+        fields.forEach((k, v) -> hash.put(k, v.toString().getBytes(StandardCharsets.UTF_8)));
+        return hash;
+    }
+
+    public <T> T decodeHash(Map<Object, Object> hash, Class<T> type) {
+        if (hash == null || hash.isEmpty()) {
+            return null;
+        }
+        Object binary = hash.get(BINARY_HASH_FIELD);
+        if (binary != null) {
+            return decode((byte[]) binary, type);
+        }
+        Map<String, Object> fields = new HashMap<>(hash.size());
+        hash.forEach((k, v) -> fields.put(k.toString(),
+                v instanceof byte[] ? new String((byte[]) v, StandardCharsets.UTF_8) : v));
+        return BeanUtil.fillBeanWithMap(fields, ReflectUtil.newInstance(type), false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeTagged(Object value, BinarySchema.Output out) {
+        int tag = tags.get(value.getClass());
+        out.writeByte(tag);
+        ((BinarySchema<Object>) schemas.get(tag)).write(value, out, compressThreshold);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T readTagged(BinarySchema.Input in, Class<T> type) {
+        int tag = in.readByte();
+        if (tag == TAG_NULL) {
+            return null;
+        }
+        Integer expected = tags.get(type);
+        if (expected == null || expected != tag) {
+            throw new IllegalArgumentException("缓存类型不匹配：期望" + type.getSimpleName() + "，实际标记" + tag);
+        }
+        return ((BinarySchema<T>) schemas.get(tag)).read(in);
+    }
+}
@@ -0,0 +1,212 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存失效的事务发件箱，替代在事务里直接删除缓存：
+ *  1.record()把要删除的key写入tb_cache_outbox，和业务数据在同一个事务中提交，事务回滚时也不会留下记录
+ *  2.事务提交后立即唤醒投递任务，另外按固定间隔轮询兜底（进程重启、唤醒丢失时不会漏删）
+ *  3.投递时一批key通过管道发送UNLINK；失败的记录按指数退避重试，不会因为一次redis异常丢失
+ *  4.第一次删除成功后，延迟second-delete-delay再删一次（延迟双删），清掉提交前后被并发读请求用旧数据回填的缓存
+ * 多个节点同时投递同一条记录只会重复删除，没有副作用
+ */
+@Slf4j
+@Component
+public class CacheInvalidationOutbox {
+
+    private static final int STATUS_PENDING = 0;
+    private static final int STATUS_SECOND_DELETE = 1;
+
+    @Value("${hmdp.cache.outbox.batch-size:200}")
+    private int batchSize;
+
+    @Value("${hmdp.cache.outbox.second-delete-delay:1000}")
+    private long secondDeleteDelayMillis;
+
+    @Value("${hmdp.cache.outbox.max-backoff:60}")
+    private long maxBackoffSeconds;
+
+    @Resource
+    private CacheOutboxMapper cacheOutboxMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ShopLocalCache shopLocalCache;
+
+    // 事务提交后唤醒投递用的单线程，排队的唤醒最多一个，多余的丢弃（下一次投递会一并处理）
+    private ThreadPoolExecutor wakeUpExecutor;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        wakeUpExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1),
+                r -> {
+                    Thread thread = new Thread(r, "cache-outbox-relay");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        wakeUpExecutor.shutdown();
+    }
+
+    /**
+     * 记录需要删除的缓存key，必须在业务事务中调用
+     */
+    public void record(String key) {
+        CacheOutbox outbox = new CacheOutbox()
+                .setCacheKey(key)
+                .setStatus(STATUS_PENDING)
+                .setRetryCount(0)
+                .setNextTime(LocalDateTime.now());
+        cacheOutboxMapper.insert(outbox);
+        recorded.increment();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    wakeUpExecutor.execute(CacheInvalidationOutbox.this::relay);
+                }
+            });
+        } else {
+            wakeUpExecutor.execute(this::relay);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.poll-interval:1000}")
+    public void scheduledRelay() {
+        relay();
+    }
+
+    /**
+     * 投递到期的记录，直到没有到期的记录为止；同一个节点同一时间只会有一次在执行
+     */
+    public void relay() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<CacheOutbox> batch;
+            do {
+                batch = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>()
+                        .le("next_time", LocalDateTime.now())
+                        .orderByAsc("id")
+                        .last("limit " + batchSize));
+                if (!batch.isEmpty() && !deliver(batch)) {
+                    // redis不可用，等下次轮询
+                    break;
+                }
+            } while (batch.size() >= batchSize);
+        } catch (Exception e) {
+            log.error("缓存失效发件箱投递异常", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private boolean deliver(List<CacheOutbox> batch) {
+        // 1. 同一批里重复的key只删一次
+        Set<String> keys = new LinkedHashSet<>();
+        for (CacheOutbox outbox : batch) {
+            keys.add(outbox.getCacheKey());
+        }
+
+        // 2. 管道发送UNLINK（在后台线程释放内存，不阻塞redis）
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    connection.unlink(key.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            failed.add(batch.size());
+            log.warn("删除缓存失败，{}条记录稍后重试", batch.size(), e);
+            for (CacheOutbox outbox : batch) {
+                int retryCount = outbox.getRetryCount() + 1;
+                long backoff = Math.min(1L << Math.min(retryCount, 20), maxBackoffSeconds);
+                cacheOutboxMapper.updateById(new CacheOutbox()
+                        .setId(outbox.getId())
+                        .setRetryCount(retryCount)
+                        .setNextTime(LocalDateTime.now().plusSeconds(backoff)));
+            }
+            return false;
+        }
+        deleted.add(keys.size());
+
+        // 3. 删除本地缓存并通知其它节点
+        for (String key : keys) {
+            if (key.startsWith(RedisConstants.CACHE_SHOP_KEY)) {
+                shopLocalCache.invalidate(Long.valueOf(key.substring(RedisConstants.CACHE_SHOP_KEY.length())));
+            }
+        }
+
+        // 4. 第一次删除的记录延迟后再删一次，第二次删除的记录完成，从发件箱移除
+        List<Long> finished = new ArrayList<>();
+        List<Long> firstDone = new ArrayList<>();
+        for (CacheOutbox outbox : batch) {
+            if (outbox.getStatus() == STATUS_PENDING && secondDeleteDelayMillis > 0) {
+                firstDone.add(outbox.getId());
+            } else {
+                finished.add(outbox.getId());
+            }
+        }
+        if (!firstDone.isEmpty()) {
+            cacheOutboxMapper.update(new CacheOutbox()
+                            .setStatus(STATUS_SECOND_DELETE)
+                            .setNextTime(LocalDateTime.now().plusNanos(secondDeleteDelayMillis * 1_000_000)),
+                    new QueryWrapper<CacheOutbox>().in("id", firstDone));
+        }
+        if (!finished.isEmpty()) {
+            cacheOutboxMapper.deleteBatchIds(finished);
+        }
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("backlog", cacheOutboxMapper.selectCount(null));
+        map.put("recorded", recorded.sum());
+        map.put("deletedKeys", deleted.sum());
+        map.put("failed", failed.sum());
+        return map;
+    }
+}
@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存异步重建的线程池，替代原来的 Executors.newFixedThreadPool(10)：
+ *  1.同一个key已经在排队或执行中时不会重复提交（例如锁过期后又有请求抢到了锁）
+ *  2.队列有上限，满了直接放弃本次重建：调用方继续返回旧数据，之后的请求会再次触发重建
+ *  3.任务里的异常会被记录下来，不会像submit()那样被future吞掉
+ *  4.随Spring容器关闭：不再接收新任务，等待已提交的任务完成（在redis、数据库连接关闭之前）
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor implements SmartLifecycle {
+
+    @Value("${hmdp.cache.rebuild.pool-size:10}")
+    private int poolSize;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${hmdp.cache.rebuild.shutdown-timeout:30}")
+    private long shutdownTimeoutSeconds;
+
+    private volatile ThreadPoolExecutor executor;
+
+    // 排队或执行中的key
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * 提交重建任务
+     * @return false表示没有提交（同一个key已在排队，或者队列已满）
+     */
+    public boolean submit(String key, Callable<?> task) {
+        ThreadPoolExecutor current = executor;
+        if (current == null || current.isShutdown()) {
+            rejected.increment();
+            return false;
+        }
+        if (!pendingKeys.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            current.execute(() -> run(key, task));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingKeys.remove(key);
+            rejected.increment();
+            log.warn("缓存重建队列已满，放弃重建：{}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Callable<?> task) {
+        long begin = System.nanoTime();
+        try {
+            task.call();
+            succeeded.increment();
+        } catch (Throwable e) {
+            failed.increment();
+            log.error("缓存重建失败：{}", key, e);
+        } finally {
+            long cost = System.nanoTime() - begin;
+            totalLatencyNanos.add(cost);
+            maxLatencyNanos.accumulate(cost);
+            pendingKeys.remove(key);
+        }
+    }
+
+    @Override
+    public void start() {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        executor = new ThreadPoolExecutor(
+                poolSize, poolSize,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    @Override
+    public void stop() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                log.warn("缓存重建任务未能在{}秒内完成，强制关闭，剩余{}个任务", shutdownTimeoutSeconds, current.getQueue().size());
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        ThreadPoolExecutor current = executor;
+        return current != null && !current.isShutdown();
+    }
+
+    // 阶段越小越晚停止，放在web服务器和消息监听之后
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+
+    public Map<String, Object> stats() {
+        ThreadPoolExecutor current = executor;
+        long completed = succeeded.sum() + failed.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("queueDepth", current == null ? 0 : current.getQueue().size());
+        map.put("queueCapacity", queueCapacity);
+        map.put("activeCount", current == null ? 0 : current.getActiveCount());
+        map.put("pendingKeys", pendingKeys.size());
+        map.put("submitted", submitted.sum());
+        map.put("deduplicated", deduplicated.sum());
+        map.put("rejected", rejected.sum());
+        map.put("succeeded", succeeded.sum());
+        map.put("failed", failed.sum());
+        map.put("avgLatencyMillis", completed == 0 ? 0 : totalLatencyNanos.sum() / completed / 1_000_000.0);
+        map.put("maxLatencyMillis", maxLatencyNanos.get() / 1_000_000.0);
+        return map;
+    }
+}
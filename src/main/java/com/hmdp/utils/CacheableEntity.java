@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 标在service方法上，方法的返回值按指定策略缓存到redis，由CacheableEntityAspect和CacheClient实现：
+ *  PASS_THROUGH：普通TTL缓存，数据库不存在时缓存空值（防止缓存穿透）
+ *  MUTEX：在PASS_THROUGH的基础上，未命中时只有拿到互斥锁的线程查询数据库（防止缓存击穿）
+ *  LOGICAL_EXPIRE：redis中不设TTL，过期后返回旧值并异步重建，适合热点数据
+ *  REFRESH_AHEAD：在MUTEX的基础上，快过期时按XFetch概率提前异步刷新
+ * 方法必须通过Spring代理调用（同一个类内部调用不会生效），返回值为List时需要指定elementType
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CacheableEntity {
+
+    enum Strategy {PASS_THROUGH, MUTEX, LOGICAL_EXPIRE, REFRESH_AHEAD}
+
+    enum Format {
+        /** 由 hmdp.cache.codec.format 决定 */
+        DEFAULT,
+        /** 总是写成JSON，便于排查或者和其它语言的服务共享 */
+        JSON
+    }
+
+    /**
+     * key前缀，例如 RedisConstants.CACHE_BLOG_KEY
+     */
+    String prefix();
+
+    /**
+     * 拼在前缀后面的SpEL表达式，可以用参数名或者#p0、#p1
+     */
+    String key() default "#p0";
+
+    Strategy strategy() default Strategy.PASS_THROUGH;
+
+    /**
+     * 有效期（LOGICAL_EXPIRE时为逻辑过期时间）
+     */
+    long ttl() default 30;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    /**
+     * 有效期随机增加 0~jitter 的比例，避免同一批写入的key同时过期
+     */
+    double jitter() default 0.1;
+
+    /**
+     * 是否缓存null，以及空值的有效期（秒）
+     */
+    boolean cacheNull() default true;
+
+    long nullTtlSeconds() default 120;
+
+    /**
+     * 返回值为List时的元素类型
+     */
+    Class<?> elementType() default Void.class;
+
+    Format format() default Format.DEFAULT;
+}
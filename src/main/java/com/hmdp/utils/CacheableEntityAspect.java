@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 处理 @CacheableEntity：解析key和策略（每个方法只解析一次），把方法本身作为loader交给CacheClient
+ */
+@Aspect
+@Component
+public class CacheableEntityAspect {
+
+    private final SpelExpressionParser parser = new SpelExpressionParser();
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+    private final Map<Method, Binding> bindings = new ConcurrentHashMap<>();
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    // 一个被注解方法解析后的结果
+    private static class Binding {
+        private final Expression key;
+        private final CacheClient.Policy policy;
+        private final Function<byte[], RedisData<Object>> decoder;
+        // redis和数据库都不可用时的降级结果：List返回空列表，其它返回null
+        private final Supplier<Object> fallback;
+
+        Binding(Expression key, CacheClient.Policy policy, Function<byte[], RedisData<Object>> decoder,
+                Supplier<Object> fallback) {
+            this.key = key;
+            this.policy = policy;
+            this.decoder = decoder;
+            this.fallback = fallback;
+        }
+    }
+
+    @Around("@annotation(cacheableEntity)")
+    public Object around(ProceedingJoinPoint joinPoint, CacheableEntity cacheableEntity) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Binding binding = bindings.computeIfAbsent(method, m -> bind(m, cacheableEntity));
+        Object[] args = joinPoint.getArgs();
+        Object keyValue = binding.key.getValue(
+                new MethodBasedEvaluationContext(null, method, args, parameterNameDiscoverer));
+        String key = cacheableEntity.prefix() + keyValue;
+        return cacheClient.query(key, binding.policy, binding.decoder, () -> proceed(joinPoint, args),
+                binding.fallback);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Binding bind(Method method, CacheableEntity cacheableEntity) {
+        Class<?> returnType = method.getReturnType();
+        Function<byte[], RedisData<Object>> decoder;
+        Supplier<Object> fallback = () -> null;
+        if (List.class.isAssignableFrom(returnType)) {
+            Class<?> elementType = cacheableEntity.elementType();
+            if (elementType == Void.class) {
+                throw new IllegalStateException("@CacheableEntity返回List时必须指定elementType：" + method);
+            }
+            decoder = raw -> (RedisData<Object>) (RedisData<?>) cacheCodec.decodeRedisDataList(raw, elementType);
+            fallback = ArrayList::new;
+        } else {
+            decoder = raw -> (RedisData<Object>) cacheCodec.decodeRedisData(raw, returnType);
+        }
+        return new Binding(parser.parseExpression(cacheableEntity.key()), CacheClient.Policy.of(cacheableEntity), decoder,
+                fallback);
+    }
+
+    private static Object proceed(ProceedingJoinPoint joinPoint, Object[] args) {
+        try {
+            return joinPoint.proceed(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
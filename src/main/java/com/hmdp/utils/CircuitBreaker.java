@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 单个外部依赖（redis、mysql）的熔断器 + 舱壁：
+ *  1.CLOSED：记录最近windowSize次调用的结果，调用次数达到minimumCalls且失败率超过阈值时打开
+ *  2.OPEN：不再调用依赖，直接走降级逻辑；openMillis之后进入HALF_OPEN
+ *  3.HALF_OPEN：只放halfOpenCalls个试探请求，全部成功则关闭，有一个失败就重新打开
+ *  4.舱壁：同时调用依赖的线程数不超过maxConcurrent，拿不到许可的请求等待bulkheadWaitMillis后走降级，
+ *    依赖变慢时最多占住maxConcurrent个Tomcat线程，而不是全部
+ * 只有isFailure判断为依赖故障的异常（连接失败、超时）才计入失败并降级，其它异常原样抛出
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final String name;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openMillis;
+    private final int halfOpenCalls;
+    private final long bulkheadWaitMillis;
+    private final Semaphore bulkhead;
+    private final Predicate<Throwable> isFailure;
+
+    // 最近windowSize次调用的结果，环形数组，true表示失败
+    private final boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    private volatile LocalDateTime lastTransitionTime;
+    private int halfOpenPermitted;
+    private int halfOpenSucceeded;
+
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder notPermitted = new LongAdder();
+    private final LongAdder bulkheadRejected = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder transitions = new LongAdder();
+
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold, long openMillis,
+                          int halfOpenCalls, int maxConcurrent, long bulkheadWaitMillis, Predicate<Throwable> isFailure) {
+        this.name = name;
+        this.window = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = halfOpenCalls;
+        this.bulkhead = new Semaphore(maxConcurrent);
+        this.bulkheadWaitMillis = bulkheadWaitMillis;
+        this.isFailure = isFailure;
+    }
+
+    /**
+     * 调用依赖，熔断打开、舱壁已满或者依赖故障时返回fallback的结果
+     */
+    public <T> T execute(Supplier<T> action, Supplier<T> fallback) {
+        if (!tryAcquirePermission()) {
+            notPermitted.increment();
+            fallbacks.increment();
+            return fallback.get();
+        }
+        boolean acquired;
+        try {
+            acquired = bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            // 没有真正调用依赖，不计入成功或失败，但要归还半开状态的试探名额
+            releasePermission();
+            bulkheadRejected.increment();
+            fallbacks.increment();
+            return fallback.get();
+        }
+        T result;
+        try {
+            result = action.get();
+        } catch (RuntimeException e) {
+            if (!isFailure.test(e)) {
+                onSuccess();
+                throw e;
+            }
+            onFailure(e);
+            fallbacks.increment();
+            return fallback.get();
+        } finally {
+            bulkhead.release();
+        }
+        onSuccess();
+        return result;
+    }
+
+    /**
+     * 不需要返回值的调用（例如刷新过期时间），失败时直接忽略
+     */
+    public void run(Runnable action) {
+        execute(() -> {
+            action.run();
+            return null;
+        }, () -> null);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    private synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermitted >= halfOpenCalls) {
+                return false;
+            }
+            halfOpenPermitted++;
+        }
+        return true;
+    }
+
+    private synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && halfOpenPermitted > 0) {
+            halfOpenPermitted--;
+        }
+    }
+
+    private synchronized void onSuccess() {
+        successes.increment();
+        if (state == State.HALF_OPEN) {
+            if (++halfOpenSucceeded >= halfOpenCalls) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        record(false);
+    }
+
+    private synchronized void onFailure(Throwable e) {
+        failures.increment();
+        if (state == State.HALF_OPEN) {
+            log.warn("{}半开试探失败：{}", name, e.toString());
+            transitionTo(State.OPEN);
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && windowCount >= minimumCalls
+                && (double) windowFailures / windowCount >= failureRateThreshold) {
+            log.warn("{}失败率{}/{}，熔断打开：{}", name, windowFailures, windowCount, e.toString());
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void record(boolean failed) {
+        if (windowCount == window.length) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+    }
+
+    private void transitionTo(State newState) {
+        log.warn("{}熔断器状态：{} -> {}", name, state, newState);
+        state = newState;
+        lastTransitionTime = LocalDateTime.now();
+        transitions.increment();
+        halfOpenPermitted = 0;
+        halfOpenSucceeded = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        }
+        if (newState == State.CLOSED) {
+            windowIndex = 0;
+            windowCount = 0;
+            windowFailures = 0;
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", name);
+        map.put("state", state);
+        map.put("lastTransitionTime", lastTransitionTime);
+        map.put("transitions", transitions.sum());
+        map.put("windowCalls", windowCount);
+        map.put("windowFailureRate", windowCount == 0 ? 0 : (double) windowFailures / windowCount);
+        map.put("availableConcurrency", bulkhead.availablePermits());
+        map.put("successes", successes.sum());
+        map.put("failures", failures.sum());
+        map.put("notPermitted", notPermitted.sum());
+        map.put("bulkheadRejected", bulkheadRejected.sum());
+        map.put("fallbacks", fallbacks.sum());
+        return map;
+    }
+}
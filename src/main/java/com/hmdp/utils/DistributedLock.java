@@ -0,0 +1,332 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于redis的可重入分布式锁，替代原来 setIfAbsent(key, "1") + delete(key) 的互斥锁：
+ *  1.redis中锁的值是本节点的id，释放时用lua脚本比较后再删除，锁过期后被其它节点拿到时不会被误删
+ *  2.节点内每个key对应一个本地ReentrantLock，同一节点的线程先在本地排队，不访问redis；重入只增加本地计数
+ *  3.本地还有线程在等待时，释放者不删除redis中的锁，直接交给下一个本地线程，连续交接max-handoffs次后必须释放，避免其它节点饿死；
+ *    交接的目标恰好等待超时、没人接手时，由超时的线程或者释放者立即删除redis中的锁，不用等看门狗
+ *  4.锁被其它节点持有时，订阅释放通知等待，最多等到锁的剩余租期后再试一次，不用轮询
+ *  5.看门狗定时给本节点持有的锁续期，持有者还活着锁就不会过期；节点宕机后租期到了自动释放
+ * 持有锁的线程必须自己释放，不能交给其它线程释放
+ */
+@Slf4j
+@Component
+public class DistributedLock {
+
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        ACQUIRE_SCRIPT = new DefaultRedisScript<>();
+        ACQUIRE_SCRIPT.setLocation(new ClassPathResource("lock_acquire.lua"));
+        ACQUIRE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("lock_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    // 锁没有租期（不是本类写入的）时，两次尝试之间最多等待的时间
+    private static final long MAX_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Value("${hmdp.lock.lease-millis:30000}")
+    private long leaseMillis;
+    @Value("${hmdp.lock.max-handoffs:16}")
+    private int maxHandoffs;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 本节点的id，写入redis作为持有者标识
+    private final String owner = UUID.randomUUID().toString();
+    // 正在使用（持有或者等待）的key
+    private final Map<String, LocalLock> locks = new ConcurrentHashMap<>();
+    private ScheduledExecutorService watchdog;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder reentered = new LongAdder();
+    private final LongAdder handedOff = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder remoteWaits = new LongAdder();
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder renewed = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder orphaned = new LongAdder();
+
+    /**
+     * 一个key在本节点的状态，redisHeld只在持有local时修改（看门狗发现租期丢失时除外）
+     */
+    private static class LocalLock {
+        private final ReentrantLock local = new ReentrantLock();
+        // 收到释放通知时加一个许可
+        private final Semaphore released = new Semaphore(0);
+        // 正在使用这个key的调用次数，归零且没有持有redis锁时从locks中移除，由locks.compute保护
+        private int refs;
+        private volatile boolean redisHeld;
+        private int handoffs;
+    }
+
+    @PostConstruct
+    public void init() {
+        watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lock-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, leaseMillis / 3);
+        watchdog.scheduleWithFixedDelay(this::renewAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 尝试获取锁，不等待
+     */
+    public boolean tryLock(String key) {
+        return tryLock(key, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取锁，最多等待waitTime
+     * @return 是否获取成功，成功后必须由当前线程调用unlock
+     */
+    public boolean tryLock(String key, long waitTime, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        LocalLock lock = retain(key);
+        boolean localLocked = false;
+        boolean success = false;
+        try {
+            // 1. 重入，只增加本地计数
+            if (lock.local.isHeldByCurrentThread()) {
+                lock.local.lock();
+                reentered.increment();
+                success = true;
+                return true;
+            }
+
+            // 2. 本节点的其它线程持有时在本地等待
+            localLocked = lock.local.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (!localLocked) {
+                timedOut.increment();
+                // 释放者可能正把redis中的锁交给自己
+                releaseIfOrphaned(key, lock);
+                return false;
+            }
+
+            // 3. 上一个本地持有者没有释放redis中的锁，直接接手
+            if (lock.redisHeld) {
+                lock.handoffs++;
+                handedOff.increment();
+                success = true;
+                return true;
+            }
+
+            // 4. 获取redis中的锁
+            success = acquireRemote(key, lock, deadline);
+            return success;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (!success) {
+                if (localLocked) {
+                    lock.local.unlock();
+                }
+                release(key);
+            }
+        }
+    }
+
+    // 被其它节点持有时等待释放通知，最多等到剩余租期结束再试
+    private boolean acquireRemote(String key, LocalLock lock, long deadline) throws InterruptedException {
+        while (true) {
+            lock.released.drainPermits();
+            Long ttl = stringRedisTemplate.execute(ACQUIRE_SCRIPT, Collections.singletonList(key),
+                    owner, String.valueOf(leaseMillis));
+            if (ttl == null) {
+                lock.redisHeld = true;
+                lock.handoffs = 0;
+                acquired.increment();
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                timedOut.increment();
+                return false;
+            }
+            remoteWaits.increment();
+            long waitNanos = ttl > 0 ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ttl)) : Math.min(remaining, MAX_RETRY_NANOS);
+            if (lock.released.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                wakeups.increment();
+            }
+        }
+    }
+
+    /**
+     * 释放锁，重入时只减少本地计数
+     * @throws IllegalMonitorStateException 当前线程没有持有这个锁
+     */
+    public void unlock(String key) {
+        LocalLock lock = locks.get(key);
+        if (lock == null || !lock.local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("当前线程没有持有锁：" + key);
+        }
+        boolean handoff = false;
+        try {
+            // 1. 最后一次释放，本地没有线程等待或者已经连续交接太多次，删除redis中的锁
+            if (lock.local.getHoldCount() == 1 && lock.redisHeld) {
+                handoff = lock.local.hasQueuedThreads() && lock.handoffs < maxHandoffs;
+                if (!handoff) {
+                    lock.redisHeld = false;
+                    Long released = stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(key),
+                            owner, RedisConstants.LOCK_CHANNEL);
+                    if (released == null || released == 0) {
+                        log.warn("锁{}的租期已经丢失，没有删除", key);
+                    }
+                }
+            }
+        } finally {
+            // 2. 释放本地锁，交接给本地等待的线程；等待的线程已经超时走了时收回来释放
+            lock.local.unlock();
+            if (handoff) {
+                releaseIfOrphaned(key, lock);
+            }
+            release(key);
+        }
+    }
+
+    public boolean isHeldByCurrentThread(String key) {
+        LocalLock lock = locks.get(key);
+        return lock != null && lock.local.isHeldByCurrentThread();
+    }
+
+    /**
+     * 收到其它节点的释放通知，唤醒本节点等待这个key的线程
+     */
+    public void onReleased(String key) {
+        LocalLock lock = locks.get(key);
+        if (lock != null) {
+            lock.released.release();
+        }
+    }
+
+    /**
+     * redis中的锁是本节点的，但是本地没有线程持有、也没有线程在等待（交接的目标等待超时了），立即释放；
+     * 等待超时的线程和释放者在本地锁的两边各检查一次，总有一方能发现
+     */
+    private void releaseIfOrphaned(String key, LocalLock lock) {
+        if (!lock.redisHeld || lock.local.hasQueuedThreads() || !lock.local.tryLock()) {
+            return;
+        }
+        try {
+            if (lock.redisHeld) {
+                lock.redisHeld = false;
+                stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(key), owner, RedisConstants.LOCK_CHANNEL);
+                orphaned.increment();
+            }
+        } catch (RuntimeException e) {
+            // 留给看门狗再释放
+            lock.redisHeld = true;
+            log.warn("释放没人接手的锁{}失败：{}", key, e.getMessage());
+        } finally {
+            lock.local.unlock();
+        }
+    }
+
+    private LocalLock retain(String key) {
+        return locks.compute(key, (k, lock) -> {
+            if (lock == null) {
+                lock = new LocalLock();
+            }
+            lock.refs++;
+            return lock;
+        });
+    }
+
+    private void release(String key) {
+        locks.computeIfPresent(key, (k, lock) -> --lock.refs == 0 && !lock.redisHeld ? null : lock);
+    }
+
+    // 看门狗：给持有的锁续期；交接给本地线程时那个线程恰好等待超时，redis中的锁没人持有，在这里释放
+    private void renewAll() {
+        for (Map.Entry<String, LocalLock> entry : locks.entrySet()) {
+            String key = entry.getKey();
+            LocalLock lock = entry.getValue();
+            if (!lock.redisHeld) {
+                continue;
+            }
+            try {
+                if (lock.local.tryLock()) {
+                    try {
+                        if (lock.redisHeld) {
+                            lock.redisHeld = false;
+                            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(key),
+                                    owner, RedisConstants.LOCK_CHANNEL);
+                        }
+                    } finally {
+                        lock.local.unlock();
+                        locks.computeIfPresent(key, (k, l) -> l.refs == 0 && !l.redisHeld ? null : l);
+                    }
+                    continue;
+                }
+                Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                        owner, String.valueOf(leaseMillis));
+                if (result != null && result == 1) {
+                    renewed.increment();
+                } else {
+                    // 续期失败说明租期已经过了（redis不可用太久），锁可能已经被其它节点拿到
+                    lock.redisHeld = false;
+                    lost.increment();
+                    log.error("锁{}的租期已经丢失，持有者还在执行", key);
+                }
+            } catch (Exception e) {
+                log.warn("锁{}续期失败：{}", key, e.getMessage());
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("owner", owner);
+        map.put("leaseMillis", leaseMillis);
+        map.put("active", locks.size());
+        map.put("acquired", acquired.sum());
+        map.put("reentered", reentered.sum());
+        map.put("handedOff", handedOff.sum());
+        map.put("timedOut", timedOut.sum());
+        map.put("remoteWaits", remoteWaits.sum());
+        map.put("wakeups", wakeups.sum());
+        map.put("renewed", renewed.sum());
+        map.put("lost", lost.sum());
+        map.put("orphaned", orphaned.sum());
+        return map;
+    }
+}
@@ -0,0 +1,505 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的geohash网格索引，查询附近的点不需要访问redis：
+ *  1.经度、纬度各量化为BITS位，交错成geohash格子编码（纬度方向一格约300米）
+ *  2.快照：所有点按格子编码排序后存放在几个平行的long/double数组里，查询某个格子时二分查找它的区间，不创建对象
+ *  3.增量：快照之后新增、修改、删除的点放在覆盖表里，查询时覆盖表优先；覆盖表超过compactThreshold时在后台线程合并成新快照。
+ *    每次增量带一个递增的版本号，全量加载期间发生的增量比加载到的数据新，替换快照时保留
+ *  4.kNN：从中心格子一圈一圈往外扫描，已经找到count个、且下一圈的最近距离超过第count个的距离时停止
+ * 距离和redis GEO一样按球面距离计算，单位为米
+ */
+public class GeoGridIndex {
+
+    // 每个方向的量化位数，格子编码共2*BITS位，排序时低位留给数组下标
+    private static final int BITS = 16;
+    private static final int CELLS = 1 << BITS;
+    private static final double CELL_LON = 360.0 / CELLS;
+    private static final double CELL_LAT = 180.0 / CELLS;
+    // 和redis GEO使用同一个地球半径，两边算出的距离一致
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+    private static final int SLOT_BITS = 64 - 1 - 2 * BITS;
+    // 不限类型
+    private static final long ANY_TYPE = Long.MIN_VALUE;
+
+    private final int compactThreshold;
+
+    private volatile Snapshot snapshot = new Builder(0).snapshot();
+    // 快照之后的变化，removed为true表示删除
+    private final Map<Long, Point> overlay = new ConcurrentHashMap<>();
+    // 最近一次增量的版本号
+    private final AtomicLong version = new AtomicLong();
+    private final Object compactLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    public GeoGridIndex(int compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * 一条查询结果，distance单位为米
+     */
+    public static class Hit {
+        private final long id;
+        private final double distance;
+
+        public Hit(long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+
+    private static class Point {
+        private final long type;
+        private final double x;
+        private final double y;
+        private final boolean removed;
+        private final long version;
+
+        private Point(long type, double x, double y, boolean removed, long version) {
+            this.type = type;
+            this.x = x;
+            this.y = y;
+            this.removed = removed;
+            this.version = version;
+        }
+    }
+
+    /**
+     * 不可变的快照，下标i的点：cells[i]为格子编码，其余数组为它的属性，按cells升序
+     */
+    private static class Snapshot {
+        private final int size;
+        private final long[] cells;
+        private final long[] ids;
+        private final long[] types;
+        private final double[] xs;
+        private final double[] ys;
+
+        private Snapshot(int size, long[] cells, long[] ids, long[] types, double[] xs, double[] ys) {
+            this.size = size;
+            this.cells = cells;
+            this.ids = ids;
+            this.types = types;
+            this.xs = xs;
+            this.ys = ys;
+        }
+    }
+
+    /**
+     * 批量构建快照，数组按需扩容
+     */
+    public static class Builder {
+        private int size;
+        private long[] ids;
+        private long[] types;
+        private double[] xs;
+        private double[] ys;
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(16, expectedSize);
+            ids = new long[capacity];
+            types = new long[capacity];
+            xs = new double[capacity];
+            ys = new double[capacity];
+        }
+
+        public Builder add(long id, long type, double x, double y) {
+            if (size == ids.length) {
+                int capacity = size + (size >> 1);
+                ids = Arrays.copyOf(ids, capacity);
+                types = Arrays.copyOf(types, capacity);
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+            }
+            ids[size] = id;
+            types[size] = type;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private Snapshot snapshot() {
+            // 格子编码放高位、原下标放低位，一次基本类型排序得到按格子排列的顺序
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = (cell(xs[i], ys[i]) << SLOT_BITS) | i;
+            }
+            Arrays.sort(keys);
+            long slotMask = (1L << SLOT_BITS) - 1;
+            long[] cells = new long[size];
+            long[] sortedIds = new long[size];
+            long[] sortedTypes = new long[size];
+            double[] sortedXs = new double[size];
+            double[] sortedYs = new double[size];
+            for (int i = 0; i < size; i++) {
+                int slot = (int) (keys[i] & slotMask);
+                cells[i] = keys[i] >>> SLOT_BITS;
+                sortedIds[i] = ids[slot];
+                sortedTypes[i] = types[slot];
+                sortedXs[i] = xs[slot];
+                sortedYs[i] = ys[slot];
+            }
+            return new Snapshot(size, cells, sortedIds, sortedTypes, sortedXs, sortedYs);
+        }
+    }
+
+    /**
+     * 当前的增量版本号，全量加载开始前记下，加载完成后传给reset
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * 用全量数据替换索引，之前的增量一并丢弃
+     */
+    public void reset(Builder builder) {
+        reset(builder, Long.MAX_VALUE);
+    }
+
+    /**
+     * 用全量数据替换索引：丢弃版本号不超过sinceVersion的增量（已经包含在全量数据里），
+     * 之后的增量是加载期间发生的，可能比加载到的数据新，保留在覆盖表里
+     */
+    public void reset(Builder builder, long sinceVersion) {
+        synchronized (compactLock) {
+            Snapshot next = builder.snapshot();
+            snapshot = next;
+            overlay.values().removeIf(point -> point.version <= sinceVersion);
+        }
+    }
+
+    public void put(long id, long type, double x, double y) {
+        overlay.put(id, new Point(type, x, y, false, version.incrementAndGet()));
+        compactIfNecessary();
+    }
+
+    public void remove(long id) {
+        overlay.put(id, new Point(0, 0, 0, true, version.incrementAndGet()));
+        compactIfNecessary();
+    }
+
+    public int size() {
+        return snapshot.size + overlay.size();
+    }
+
+    /**
+     * 查询(lastDistance, lastId)之后、maxRadius之内最近的count个点
+     * @param typeFilter 只查这个类型，为null时不限类型
+     * @param lastDistance 上一页最后一个点的距离，第一页传负数
+     * @return 按(距离, id)升序的结果
+     */
+    public List<Hit> nearest(Long typeFilter, double x, double y, double lastDistance, long lastId, int count, double maxRadius) {
+        Snapshot s = snapshot;
+        long type = typeFilter == null ? ANY_TYPE : typeFilter;
+        TopK topK = new TopK(count);
+        Collector collector = (id, distance) -> {
+            if (distance <= maxRadius && (distance > lastDistance || (distance == lastDistance && id > lastId))) {
+                topK.offer(id, distance);
+            }
+        };
+        int cx = cellX(x);
+        int cy = cellY(y);
+        double cellMeters = minCellMeters(y, maxRadius);
+        int maxRing = (int) Math.ceil(maxRadius / cellMeters) + 1;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // 第ring圈的点和中心点之间至少隔着ring-1个完整的格子
+            double ringDistance = ring == 0 ? 0 : (ring - 1) * cellMeters;
+            if (ringDistance > maxRadius || (topK.isFull() && ringDistance > topK.worst())) {
+                break;
+            }
+            scanRing(s, cx, cy, ring, type, x, y, collector);
+        }
+        scanOverlay(type, x, y, collector);
+        return topK.sorted();
+    }
+
+    /**
+     * 查询radius之内的所有点
+     * @param typeFilter 只查这个类型，为null时不限类型
+     * @return 按(距离, id)升序的结果
+     */
+    public List<Hit> within(Long typeFilter, double x, double y, double radius) {
+        Snapshot s = snapshot;
+        long type = typeFilter == null ? ANY_TYPE : typeFilter;
+        List<Hit> hits = new ArrayList<>();
+        Collector collector = (id, distance) -> {
+            if (distance <= radius) {
+                hits.add(new Hit(id, distance));
+            }
+        };
+        int cx = cellX(x);
+        int cy = cellY(y);
+        int maxRing = (int) Math.ceil(radius / minCellMeters(y, radius)) + 1;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            scanRing(s, cx, cy, ring, type, x, y, collector);
+        }
+        scanOverlay(type, x, y, collector);
+        hits.sort(Comparator.comparingDouble(Hit::getDistance).thenComparingLong(Hit::getId));
+        return hits;
+    }
+
+    private interface Collector {
+        void accept(long id, double distance);
+    }
+
+    private void scanRing(Snapshot s, int cx, int cy, int ring, long type, double x, double y, Collector collector) {
+        if (ring == 0) {
+            scanCell(s, cx, cy, type, x, y, collector);
+            return;
+        }
+        for (int dx = -ring; dx <= ring; dx++) {
+            scanCell(s, cx + dx, cy - ring, type, x, y, collector);
+            scanCell(s, cx + dx, cy + ring, type, x, y, collector);
+        }
+        for (int dy = -ring + 1; dy <= ring - 1; dy++) {
+            scanCell(s, cx - ring, cy + dy, type, x, y, collector);
+            scanCell(s, cx + ring, cy + dy, type, x, y, collector);
+        }
+    }
+
+    private void scanCell(Snapshot s, int cx, int cy, long type, double x, double y, Collector collector) {
+        if (cy < 0 || cy >= CELLS) {
+            return;
+        }
+        // 经度方向跨过180度时回绕
+        long cell = interleave(cx & (CELLS - 1), cy);
+        int from = lowerBound(s.cells, s.size, cell);
+        boolean checkOverlay = !overlay.isEmpty();
+        for (int i = from; i < s.size && s.cells[i] == cell; i++) {
+            if (type != ANY_TYPE && s.types[i] != type) {
+                continue;
+            }
+            if (checkOverlay && overlay.containsKey(s.ids[i])) {
+                continue;
+            }
+            collector.accept(s.ids[i], distance(x, y, s.xs[i], s.ys[i]));
+        }
+    }
+
+    private void scanOverlay(long type, double x, double y, Collector collector) {
+        for (Map.Entry<Long, Point> entry : overlay.entrySet()) {
+            Point point = entry.getValue();
+            if (!point.removed && (type == ANY_TYPE || point.type == type)) {
+                collector.accept(entry.getKey(), distance(x, y, point.x, point.y));
+            }
+        }
+    }
+
+    private void compactIfNecessary() {
+        if (overlay.size() < compactThreshold || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                compact();
+            } finally {
+                compacting.set(false);
+            }
+        }, "geo-grid-compact");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 把覆盖表合并进新的快照
+     */
+    public void compact() {
+        synchronized (compactLock) {
+            Snapshot s = snapshot;
+            Map<Long, Point> merged = new HashMap<>(overlay);
+            Builder builder = new Builder(s.size + merged.size());
+            for (int i = 0; i < s.size; i++) {
+                if (!merged.containsKey(s.ids[i])) {
+                    builder.add(s.ids[i], s.types[i], s.xs[i], s.ys[i]);
+                }
+            }
+            merged.forEach((id, point) -> {
+                if (!point.removed) {
+                    builder.add(id, point.type, point.x, point.y);
+                }
+            });
+            snapshot = builder.snapshot();
+            // 只移除已经合并的那个版本，合并期间又被修改的点保留在覆盖表里
+            merged.forEach(overlay::remove);
+        }
+    }
+
+    /**
+     * 固定容量的大顶堆，保留距离最小的count个点
+     */
+    private static class TopK {
+        private final int capacity;
+        private final long[] ids;
+        private final double[] distances;
+        private int size;
+
+        private TopK(int capacity) {
+            this.capacity = capacity;
+            this.ids = new long[capacity];
+            this.distances = new double[capacity];
+        }
+
+        private boolean isFull() {
+            return size == capacity;
+        }
+
+        private double worst() {
+            return distances[0];
+        }
+
+        private void offer(long id, double distance) {
+            if (size < capacity) {
+                ids[size] = id;
+                distances[size] = distance;
+                siftUp(size++);
+            } else if (capacity > 0 && less(id, distance, ids[0], distances[0])) {
+                ids[0] = id;
+                distances[0] = distance;
+                siftDown(0);
+            }
+        }
+
+        private List<Hit> sorted() {
+            List<Hit> hits = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                hits.add(new Hit(ids[i], distances[i]));
+            }
+            hits.sort(Comparator.comparingDouble(Hit::getDistance).thenComparingLong(Hit::getId));
+            return hits;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(ids[parent], distances[parent], ids[i], distances[i])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && less(ids[largest], distances[largest], ids[left], distances[left])) {
+                    largest = left;
+                }
+                if (right < size && less(ids[largest], distances[largest], ids[right], distances[right])) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long id = ids[a];
+            ids[a] = ids[b];
+            ids[b] = id;
+            double distance = distances[a];
+            distances[a] = distances[b];
+            distances[b] = distance;
+        }
+
+        // 按(距离, id)比较
+        private static boolean less(long id1, double d1, long id2, double d2) {
+            return d1 < d2 || (d1 == d2 && id1 < id2);
+        }
+    }
+
+    private static int lowerBound(long[] cells, int size, long cell) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cells[mid] < cell) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 以y为中心、radius范围内一个格子最短边的长度（米），经度方向的格子越靠近两极越窄
+     */
+    private static double minCellMeters(double y, double radius) {
+        double maxLat = Math.min(89.9, Math.abs(y) + radius / METERS_PER_DEGREE + CELL_LAT);
+        double width = CELL_LON * METERS_PER_DEGREE * Math.cos(Math.toRadians(maxLat));
+        return Math.min(width, CELL_LAT * METERS_PER_DEGREE);
+    }
+
+    private static long cell(double x, double y) {
+        return interleave(cellX(x), cellY(y));
+    }
+
+    private static int cellX(double x) {
+        return Math.min(CELLS - 1, Math.max(0, (int) ((x + 180) / CELL_LON)));
+    }
+
+    private static int cellY(double y) {
+        return Math.min(CELLS - 1, Math.max(0, (int) ((y + 90) / CELL_LAT)));
+    }
+
+    /**
+     * 经度、纬度的位交错排列（经度在高位），即geohash的二进制形式
+     */
+    private static long interleave(int cx, int cy) {
+        return (spread(cx) << 1) | spread(cy);
+    }
+
+    private static long spread(int v) {
+        long x = v & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    /**
+     * 两点之间的球面距离（haversine），单位为米
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double sinLat = Math.sin((lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(x2 - x1) / 2);
+        double a = sinLat * sinLat + Math.cos(lat1) * Math.cos(lat2) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(a));
+    }
+}
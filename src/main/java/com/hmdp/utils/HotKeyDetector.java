@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * 基于Count-Min Sketch的热点key识别：
+ *  1.按采样率记录访问，depth行、每行width个计数器，某个key的估计次数取各行的最小值（只会高估，不会低估）
+ *  2.定期衰减：所有计数器减半，估计次数相当于最近几个周期的指数加权访问量
+ *  3.估计次数达到hotThreshold时升级为热点，衰减后低于coolThreshold时降级，两个阈值不同避免在边界反复切换
+ *  4.热点数量不超过maxHotKeys：升级前先用CAS占一个名额，并发升级也不会超出
+ * 降级回调抛出异常时这个key仍然是热点，下一次衰减时重试
+ */
+@Slf4j
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    private final int width;
+    private final int mask;
+    private final int sampleRate;
+    private final int hotThreshold;
+    private final int coolThreshold;
+    private final int maxHotKeys;
+    private final AtomicIntegerArray counters;
+
+    private final Set<Long> hotKeys = ConcurrentHashMap.newKeySet();
+    // 已经占用的热点名额，先于hotKeys增加、晚于hotKeys减少，不小于hotKeys.size()
+    private final AtomicInteger hotCount = new AtomicInteger();
+    private final LongConsumer onPromote;
+    private final LongConsumer onDemote;
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+
+    /**
+     * @param width 每行计数器数量，会向上取整为2的幂
+     * @param sampleRate 每sampleRate次访问采样一次，计数时乘回去
+     * @param onPromote 升级为热点时的回调
+     * @param onDemote 降级时的回调
+     */
+    public HotKeyDetector(int width, int sampleRate, int hotThreshold, int coolThreshold, int maxHotKeys,
+                          LongConsumer onPromote, LongConsumer onDemote) {
+        int w = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+        this.width = w;
+        this.mask = w - 1;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.hotThreshold = hotThreshold;
+        this.coolThreshold = coolThreshold;
+        this.maxHotKeys = maxHotKeys;
+        this.counters = new AtomicIntegerArray(DEPTH * w);
+        this.onPromote = onPromote;
+        this.onDemote = onDemote;
+    }
+
+    /**
+     * 记录一次访问
+     * @return 该key当前是否为热点
+     */
+    public boolean record(long key) {
+        if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            samples.increment();
+            long estimate = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = i * width + index(key, i);
+                estimate = Math.min(estimate, counters.incrementAndGet(index));
+            }
+            if (estimate * sampleRate >= hotThreshold && !hotKeys.contains(key) && acquireSlot()) {
+                if (hotKeys.add(key)) {
+                    promotions.increment();
+                    onPromote.accept(key);
+                } else {
+                    hotCount.decrementAndGet();
+                }
+            }
+        }
+        return hotKeys.contains(key);
+    }
+
+    public boolean isHot(long key) {
+        return hotKeys.contains(key);
+    }
+
+    public long estimate(long key) {
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.get(i * width + index(key, i)));
+        }
+        return estimate * sampleRate;
+    }
+
+    /**
+     * 衰减：所有计数器减半，然后把冷却下来的key降级
+     */
+    public void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            if (counters.get(i) != 0) {
+                counters.updateAndGet(i, current -> current >>> 1);
+            }
+        }
+        for (Long key : hotKeys) {
+            if (estimate(key) < coolThreshold && hotKeys.remove(key)) {
+                try {
+                    onDemote.accept(key);
+                    demotions.increment();
+                    hotCount.decrementAndGet();
+                } catch (RuntimeException e) {
+                    log.warn("热点key{}降级失败，下次衰减时重试：{}", key, e.getMessage());
+                    // 名额还占着；期间被重新升级的不用放回，释放多占的名额
+                    if (!hotKeys.add(key)) {
+                        hotCount.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean acquireSlot() {
+        while (true) {
+            int count = hotCount.get();
+            if (count >= maxHotKeys) {
+                return false;
+            }
+            if (hotCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        List<Map<String, Object>> keys = new ArrayList<>();
+        for (Long key : hotKeys) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("key", key);
+            entry.put("estimate", estimate(key));
+            keys.add(entry);
+        }
+        keys.sort((a, b) -> Long.compare((Long) b.get("estimate"), (Long) a.get("estimate")));
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("hotKeyCount", hotKeys.size());
+        map.put("samples", samples.sum());
+        map.put("promotions", promotions.sum());
+        map.put("demotions", demotions.sum());
+        map.put("hotKeys", keys.size() > 20 ? keys.subList(0, 20) : keys);
+        return map;
+    }
+
+    private int index(long key, int row) {
+        long h = key * 0x9E3779B97F4A7C15L + row * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        return (int) h & mask;
+    }
+}
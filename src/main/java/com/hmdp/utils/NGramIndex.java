@@ -0,0 +1,421 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 店铺名称、商圈的n-gram倒排索引，代替 LIKE '%name%'：
+ *  1.名称和商圈转为小写后切成单字和相邻两字（按UTF-16字符），每个gram对应一个倒排表，记录包含它的文档下标
+ *  2.倒排表是升序的文档下标，存为差值+变长整数编码的byte[]，大多数差值只占1个字节
+ *  3.查询时取关键字的所有gram，从最短的倒排表开始求交集，再用contains校验候选文档（两字gram相邻不代表整个关键字相邻），
+ *    结果按 名称完全相同 > 名称前缀 > 名称包含 > 商圈包含 排序，同一档按id升序
+ *  4.增量：快照之后新增、修改的文档放在覆盖表里，查询时覆盖表优先；覆盖表超过compactThreshold时在后台线程合并成新快照。
+ *    每次增量带一个递增的版本号，全量加载期间发生的增量比加载到的数据新，替换快照时保留
+ */
+public class NGramIndex {
+
+    private static final int RANK_EQUALS = 0;
+    private static final int RANK_PREFIX = 1;
+    private static final int RANK_NAME = 2;
+    private static final int RANK_AREA = 3;
+    // 排序键：高8位为排名，低56位为id
+    private static final int RANK_SHIFT = 56;
+    private static final long ID_MASK = (1L << RANK_SHIFT) - 1;
+
+    private final int compactThreshold;
+
+    private volatile Snapshot snapshot = new Builder(0).snapshot();
+    // 快照之后的变化，removed为true表示删除
+    private final Map<Long, Doc> overlay = new ConcurrentHashMap<>();
+    // 最近一次增量的版本号
+    private final AtomicLong version = new AtomicLong();
+    private final Object compactLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    public NGramIndex(int compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    private static class Doc {
+        private final String name;
+        private final String area;
+        private final boolean removed;
+        private final long version;
+
+        private Doc(String name, String area, boolean removed, long version) {
+            this.name = name;
+            this.area = area;
+            this.removed = removed;
+            this.version = version;
+        }
+    }
+
+    /**
+     * 不可变的快照，文档下标i：ids[i]为店铺id，names[i]、areas[i]为转为小写后的文本
+     */
+    private static class Snapshot {
+        private final int size;
+        private final long[] ids;
+        private final String[] names;
+        private final String[] areas;
+        private final Map<Integer, byte[]> postings;
+        private final long postingBytes;
+
+        private Snapshot(int size, long[] ids, String[] names, String[] areas, Map<Integer, byte[]> postings) {
+            this.size = size;
+            this.ids = ids;
+            this.names = names;
+            this.areas = areas;
+            this.postings = postings;
+            long bytes = 0;
+            for (byte[] posting : postings.values()) {
+                bytes += posting.length;
+            }
+            this.postingBytes = bytes;
+        }
+    }
+
+    /**
+     * 批量构建快照
+     */
+    public static class Builder {
+        private int size;
+        private long[] ids;
+        private String[] names;
+        private String[] areas;
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(16, expectedSize);
+            ids = new long[capacity];
+            names = new String[capacity];
+            areas = new String[capacity];
+        }
+
+        public Builder add(long id, String name, String area) {
+            if (size == ids.length) {
+                int capacity = size + (size >> 1);
+                ids = Arrays.copyOf(ids, capacity);
+                names = Arrays.copyOf(names, capacity);
+                areas = Arrays.copyOf(areas, capacity);
+            }
+            ids[size] = id;
+            names[size] = normalize(name);
+            areas[size] = normalize(area);
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private Snapshot snapshot() {
+            // 文档按下标顺序加入，同一个文档的gram重复时倒排表的最后一个元素就是它，直接跳过
+            Map<Integer, IntList> lists = new HashMap<>();
+            for (int doc = 0; doc < size; doc++) {
+                addGrams(lists, names[doc], doc);
+                addGrams(lists, areas[doc], doc);
+            }
+            Map<Integer, byte[]> postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+            lists.forEach((gram, list) -> postings.put(gram, list.encode()));
+            return new Snapshot(size, Arrays.copyOf(ids, size), Arrays.copyOf(names, size),
+                    Arrays.copyOf(areas, size), postings);
+        }
+
+        private static void addGrams(Map<Integer, IntList> lists, String text, int doc) {
+            for (int i = 0; i < text.length(); i++) {
+                lists.computeIfAbsent(unigram(text.charAt(i)), k -> new IntList()).addIfAbsent(doc);
+                if (i + 1 < text.length()) {
+                    lists.computeIfAbsent(bigram(text.charAt(i), text.charAt(i + 1)), k -> new IntList()).addIfAbsent(doc);
+                }
+            }
+        }
+    }
+
+    /**
+     * 构建时使用的升序int列表
+     */
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void addIfAbsent(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            values[size++] = value;
+        }
+
+        // 差值+变长整数编码，每个字节低7位存数据，最高位表示后面还有字节
+        private byte[] encode() {
+            byte[] buffer = new byte[size * 5];
+            int pos = 0;
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                int delta = values[i] - previous;
+                previous = values[i];
+                while ((delta & ~0x7F) != 0) {
+                    buffer[pos++] = (byte) ((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                buffer[pos++] = (byte) delta;
+            }
+            return Arrays.copyOf(buffer, pos);
+        }
+    }
+
+    /**
+     * 当前的增量版本号，全量加载开始前记下，加载完成后传给reset
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * 用全量数据替换索引，之前的增量一并丢弃
+     */
+    public void reset(Builder builder) {
+        reset(builder, Long.MAX_VALUE);
+    }
+
+    /**
+     * 用全量数据替换索引：丢弃版本号不超过sinceVersion的增量（已经包含在全量数据里），
+     * 之后的增量是加载期间发生的，可能比加载到的数据新，保留在覆盖表里
+     */
+    public void reset(Builder builder, long sinceVersion) {
+        synchronized (compactLock) {
+            Snapshot next = builder.snapshot();
+            snapshot = next;
+            overlay.values().removeIf(doc -> doc.version <= sinceVersion);
+        }
+    }
+
+    public void put(long id, String name, String area) {
+        overlay.put(id, new Doc(normalize(name), normalize(area), false, version.incrementAndGet()));
+        compactIfNecessary();
+    }
+
+    public void remove(long id) {
+        overlay.put(id, new Doc("", "", true, version.incrementAndGet()));
+        compactIfNecessary();
+    }
+
+    /**
+     * 查询名称或商圈包含keyword的所有店铺
+     * @return 按排名、id排序的店铺id
+     */
+    public List<Long> search(String keyword) {
+        long[] keys = searchKeys(keyword);
+        List<Long> ids = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            ids.add(idOf(key));
+        }
+        return ids;
+    }
+
+    /**
+     * 查询名称或商圈包含keyword的所有店铺
+     * @return 升序的排序键（高位为排名、低位为店铺id），可以直接作为滚动分页的游标，用idOf取出店铺id
+     */
+    public long[] searchKeys(String keyword) {
+        String query = normalize(keyword);
+        if (query.isEmpty()) {
+            return new long[0];
+        }
+        Snapshot s = snapshot;
+        long[] keys = new long[16];
+        int count = 0;
+
+        // 1. 快照：倒排表求交集得到候选文档，再逐个校验
+        int[] candidates = intersect(s, query);
+        boolean checkOverlay = !overlay.isEmpty();
+        for (int doc : candidates) {
+            if (checkOverlay && overlay.containsKey(s.ids[doc])) {
+                continue;
+            }
+            int rank = rank(query, s.names[doc], s.areas[doc]);
+            if (rank >= 0) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count << 1);
+                }
+                keys[count++] = ((long) rank << RANK_SHIFT) | s.ids[doc];
+            }
+        }
+
+        // 2. 覆盖表：数量很少，直接逐个校验
+        for (Map.Entry<Long, Doc> entry : overlay.entrySet()) {
+            Doc doc = entry.getValue();
+            int rank = doc.removed ? -1 : rank(query, doc.name, doc.area);
+            if (rank >= 0) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count << 1);
+                }
+                keys[count++] = ((long) rank << RANK_SHIFT) | entry.getKey();
+            }
+        }
+
+        // 3. 排名在高位，一次基本类型排序
+        Arrays.sort(keys, 0, count);
+        return Arrays.copyOf(keys, count);
+    }
+
+    public static long idOf(long key) {
+        return key & ID_MASK;
+    }
+
+    private static int[] intersect(Snapshot s, String query) {
+        // 单字查单字gram，多个字查所有相邻两字gram
+        int gramCount = query.length() == 1 ? 1 : query.length() - 1;
+        byte[][] lists = new byte[gramCount][];
+        for (int i = 0; i < gramCount; i++) {
+            int gram = query.length() == 1 ? unigram(query.charAt(0)) : bigram(query.charAt(i), query.charAt(i + 1));
+            lists[i] = s.postings.get(gram);
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        // 从最短的开始求交集，候选集合只会越来越小
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        int[] result = decode(lists[0]);
+        int size = result.length;
+        for (int i = 1; i < lists.length && size > 0; i++) {
+            size = retain(result, size, lists[i]);
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static int[] decode(byte[] posting) {
+        int[] values = new int[posting.length];
+        int count = 0;
+        int pos = 0;
+        int previous = 0;
+        while (pos < posting.length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = posting[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += delta;
+            values[count++] = previous;
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * 边解码posting边和values[0, size)归并，只保留两边都有的，返回保留的数量
+     */
+    private static int retain(int[] values, int size, byte[] posting) {
+        int kept = 0;
+        int i = 0;
+        int pos = 0;
+        int current = 0;
+        while (i < size && pos < posting.length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = posting[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += delta;
+            while (i < size && values[i] < current) {
+                i++;
+            }
+            if (i < size && values[i] == current) {
+                values[kept++] = current;
+                i++;
+            }
+        }
+        return kept;
+    }
+
+    private static int rank(String query, String name, String area) {
+        if (name.equals(query)) {
+            return RANK_EQUALS;
+        }
+        if (name.startsWith(query)) {
+            return RANK_PREFIX;
+        }
+        if (name.contains(query)) {
+            return RANK_NAME;
+        }
+        return area.contains(query) ? RANK_AREA : -1;
+    }
+
+    private void compactIfNecessary() {
+        if (overlay.size() < compactThreshold || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                compact();
+            } finally {
+                compacting.set(false);
+            }
+        }, "ngram-index-compact");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 把覆盖表合并进新的快照
+     */
+    public void compact() {
+        synchronized (compactLock) {
+            Snapshot s = snapshot;
+            Map<Long, Doc> merged = new HashMap<>(overlay);
+            Builder builder = new Builder(s.size + merged.size());
+            for (int i = 0; i < s.size; i++) {
+                if (!merged.containsKey(s.ids[i])) {
+                    builder.add(s.ids[i], s.names[i], s.areas[i]);
+                }
+            }
+            merged.forEach((id, doc) -> {
+                if (!doc.removed) {
+                    builder.add(id, doc.name, doc.area);
+                }
+            });
+            snapshot = builder.snapshot();
+            // 只移除已经合并的那个版本，合并期间又被修改的文档保留在覆盖表里
+            merged.forEach(overlay::remove);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Snapshot s = snapshot;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("docs", s.size);
+        map.put("grams", s.postings.size());
+        map.put("postingBytes", s.postingBytes);
+        map.put("overlay", overlay.size());
+        return map;
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    private static int unigram(char c) {
+        return c;
+    }
+
+    // 两个字符各16位拼成一个int，第一个字符不为0，不会和单字gram冲突
+    private static int bigram(char first, char second) {
+        return (first << 16) | second;
+    }
+}
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 不可变的前缀树，每个节点预先算好以它为前缀的权重最高的topK个条目，查询只需要沿着前缀走到对应节点，O(前缀长度)：
+ *  1.条目按小写后的key排序，每个节点对应排序后连续的一段条目，同一个节点的子节点在数组中连续存放，按字符二分查找
+ *  2.节点用几个平行的基本类型数组表示，topK存在共享的int数组里，整棵树构建完成后不再修改，
+ *    重建时构建一棵新树再整体替换引用，查询不需要加锁
+ */
+public class PrefixTrie<T> {
+
+    private final int topK;
+    private final T[] values;
+    private final int nodeCount;
+    private final char[] labels;
+    private final int[] firstChild;
+    private final int[] childCount;
+    private final int[] topStart;
+    private final byte[] topCount;
+    private final int[] tops;
+
+    @SuppressWarnings("unchecked")
+    private PrefixTrie(int topK, List<Entry<T>> entries) {
+        this.topK = topK;
+        int n = entries.size();
+        String[] keys = new String[n];
+        long[] weights = new long[n];
+        this.values = (T[]) new Object[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = entries.get(i).key;
+            weights[i] = entries.get(i).weight;
+            values[i] = entries.get(i).value;
+        }
+
+        // 节点数不超过所有key的长度之和+1
+        int capacity = 1;
+        for (String key : keys) {
+            capacity += key.length();
+        }
+        char[] labels = new char[capacity];
+        int[] firstChild = new int[capacity];
+        int[] childCount = new int[capacity];
+        int[] topStart = new int[capacity];
+        byte[] topCount = new byte[capacity];
+        int[] tops = new int[capacity * Math.min(topK, 4)];
+        int topSize = 0;
+
+        // 广度优先构建：队列里是(节点, 条目区间, 深度)，子节点连续分配
+        int[] rangeFrom = new int[capacity];
+        int[] rangeTo = new int[capacity];
+        int[] depths = new int[capacity];
+        rangeTo[0] = n;
+        int count = 1;
+        int[] best = new int[topK];
+        for (int node = 0; node < count; node++) {
+            int from = rangeFrom[node];
+            int to = rangeTo[node];
+            int depth = depths[node];
+
+            // 1. 区间内权重最高的topK个条目
+            int size = selectTop(weights, from, to, best);
+            if (topSize + size > tops.length) {
+                tops = Arrays.copyOf(tops, Math.max(tops.length << 1, topSize + size));
+            }
+            System.arraycopy(best, 0, tops, topSize, size);
+            topStart[node] = topSize;
+            topCount[node] = (byte) size;
+            topSize += size;
+
+            // 2. 按第depth个字符分组，生成子节点（key更短的条目排在前面，到这个节点为止）
+            int i = from;
+            while (i < to && keys[i].length() == depth) {
+                i++;
+            }
+            firstChild[node] = count;
+            while (i < to) {
+                char c = keys[i].charAt(depth);
+                int j = i + 1;
+                while (j < to && keys[j].charAt(depth) == c) {
+                    j++;
+                }
+                labels[count] = c;
+                rangeFrom[count] = i;
+                rangeTo[count] = j;
+                depths[count] = depth + 1;
+                count++;
+                i = j;
+            }
+            childCount[node] = count - firstChild[node];
+        }
+
+        this.nodeCount = count;
+        this.labels = Arrays.copyOf(labels, count);
+        this.firstChild = Arrays.copyOf(firstChild, count);
+        this.childCount = Arrays.copyOf(childCount, count);
+        this.topStart = Arrays.copyOf(topStart, count);
+        this.topCount = Arrays.copyOf(topCount, count);
+        this.tops = Arrays.copyOf(tops, topSize);
+    }
+
+    private static class Entry<T> {
+        private final String key;
+        private final long weight;
+        private final T value;
+
+        private Entry(String key, long weight, T value) {
+            this.key = key;
+            this.weight = weight;
+            this.value = value;
+        }
+    }
+
+    public static class Builder<T> {
+        private final int topK;
+        private final List<Entry<T>> entries = new ArrayList<>();
+
+        /**
+         * @param topK 每个节点保留的条目数，不超过127
+         */
+        public Builder(int topK) {
+            this.topK = Math.max(1, Math.min(topK, Byte.MAX_VALUE));
+        }
+
+        public Builder<T> add(String key, long weight, T value) {
+            if (key != null && !key.isEmpty()) {
+                entries.add(new Entry<>(normalize(key), weight, value));
+            }
+            return this;
+        }
+
+        public PrefixTrie<T> build() {
+            entries.sort(Comparator.comparing(entry -> entry.key));
+            return new PrefixTrie<>(topK, entries);
+        }
+    }
+
+    /**
+     * 以prefix开头、权重最高的limit个条目，按权重降序
+     */
+    public List<T> suggest(String prefix, int limit) {
+        String key = normalize(prefix);
+        if (key.isEmpty() || nodeCount == 0) {
+            return Collections.emptyList();
+        }
+        int node = 0;
+        for (int i = 0; i < key.length(); i++) {
+            node = child(node, key.charAt(i));
+            if (node < 0) {
+                return Collections.emptyList();
+            }
+        }
+        int size = Math.min(limit, topCount[node]);
+        List<T> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(values[tops[topStart[node] + i]]);
+        }
+        return result;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public int topK() {
+        return topK;
+    }
+
+    private int child(int node, char c) {
+        int low = firstChild[node];
+        int high = low + childCount[node] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (labels[mid] < c) {
+                low = mid + 1;
+            } else if (labels[mid] > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 选出[from, to)中权重最高的best.length个下标，按权重降序写入best，返回数量
+     */
+    private static int selectTop(long[] weights, int from, int to, int[] best) {
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            if (size < best.length) {
+                best[size++] = i;
+            } else if (weights[i] > weights[best[size - 1]]) {
+                best[size - 1] = i;
+            } else {
+                continue;
+            }
+            // 插入排序，best始终按权重降序
+            for (int j = size - 1; j > 0 && weights[best[j]] > weights[best[j - 1]]; j--) {
+                int tmp = best[j];
+                best[j] = best[j - 1];
+                best[j - 1] = tmp;
+            }
+        }
+        return size;
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,286 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * 以Redis的bitmap为准、在本地保存一份镜像的布隆过滤器，判断id是否"可能存在"：
+ *  1.查询只读本地镜像，不访问redis
+ *  2.新增id时先写本地，再写redis（SETBIT走管道）；没写进redis的id记下来，定时同步时重试
+ *  3.定时同步时把redis的位图合并进本地镜像，补上丢失的新增通知（位只会增加，合并用按位或）
+ *  4.位数m和哈希次数k由预期元素数n和误判率p计算：m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+ * 注意：redis的bitmap中第0位是第一个字节的最高位，本地镜像按同样的位序换算
+ */
+public class RedisBloomFilter {
+
+    private final String name;
+    private final String key;
+    private final long expectedInsertions;
+    private final double fpp;
+    private final long numBits;
+    private final int numHashFunctions;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private volatile AtomicLongArray bits;
+
+    // 镜像是否已经从redis或数据库加载完成，未完成之前一律认为"可能存在"，避免误拦正常请求
+    private volatile boolean ready = false;
+
+    // 重建期间新增的id，重建完成后补进新位图
+    private volatile Queue<Long> addedDuringRebuild;
+
+    // 没能写进redis的id，定时同步时重试
+    private final Queue<Long> unsynced = new ConcurrentLinkedQueue<>();
+
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        this.name = name;
+        this.key = RedisConstants.BLOOM_KEY + name;
+        this.expectedInsertions = Math.max(expectedInsertions, 1);
+        this.fpp = fpp;
+        long m = (long) Math.ceil(-this.expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 按64位对齐，方便本地用long数组保存
+        this.numBits = Math.max(64, (m + 63) / 64 * 64);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / this.expectedInsertions * Math.log(2)));
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.bits = new AtomicLongArray((int) (numBits / 64));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public boolean mightContain(long id) {
+        if (!ready) {
+            return true;
+        }
+        AtomicLongArray current = bits;
+        long[] indexes = indexes(id);
+        for (long index : indexes) {
+            if ((current.get((int) (index >>> 6)) & (1L << (index & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增id：写本地镜像和redis，由调用方负责通知其它节点
+     */
+    public void put(long id) {
+        putLocal(id);
+        putRedis(id);
+    }
+
+    /**
+     * 只写redis中的位图，本地镜像已经写过
+     */
+    public void putRedis(long id) {
+        long[] indexes = indexes(id);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.setBit(rawKey, index, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 其它节点新增了id，只更新本地镜像
+     */
+    public void putLocal(long id) {
+        Queue<Long> pending = addedDuringRebuild;
+        if (pending != null) {
+            pending.add(id);
+        }
+        setLocal(bits, indexes(id));
+    }
+
+    /**
+     * 写redis失败的id，等下次同步时重试
+     */
+    public void retryLater(long id) {
+        unsynced.add(id);
+    }
+
+    /**
+     * 定时同步：先把没写进redis的id补上，再把redis的位图合并进本地镜像；redis异常时原样抛出，剩下的id下次再试
+     */
+    public synchronized void sync() {
+        if (!ready) {
+            return;
+        }
+        for (int i = unsynced.size(); i > 0; i--) {
+            Long id = unsynced.poll();
+            if (id == null) {
+                break;
+            }
+            try {
+                putRedis(id);
+            } catch (RuntimeException e) {
+                unsynced.add(id);
+                throw e;
+            }
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        // 不存在或者长度不对（其它节点改了配置正在重建）时不合并
+        if (bytes == null || bytes.length != numBits / 8) {
+            return;
+        }
+        AtomicLongArray remote = fromRedisBytes(bytes);
+        AtomicLongArray current = bits;
+        for (int i = 0; i < remote.length(); i++) {
+            long word = remote.get(i);
+            if (word != 0) {
+                current.getAndAccumulate(i, word, (a, b) -> a | b);
+            }
+        }
+    }
+
+    /**
+     * 从redis加载本地镜像
+     * @return redis中不存在该bitmap，或者长度与当前配置不一致（配置改过）时返回false，需要重建
+     */
+    public boolean loadFromRedis() {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (bytes == null || bytes.length != numBits / 8) {
+            return false;
+        }
+        bits = fromRedisBytes(bytes);
+        ready = true;
+        return true;
+    }
+
+    /**
+     * 从数据库流式重建：先在本地构建新的位图，整体写入临时key后RENAME，最后替换本地镜像
+     * @param source 按批次把所有存在的id交给consumer
+     */
+    public synchronized void rebuild(Consumer<LongConsumer> source) {
+        addedDuringRebuild = new ConcurrentLinkedQueue<>();
+        try {
+            AtomicLongArray fresh = new AtomicLongArray((int) (numBits / 64));
+            source.accept(id -> setLocal(fresh, indexes(id)));
+
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            byte[] tmpKey = (key + ":rebuilding").getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = toRedisBytes(fresh);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(tmpKey, bytes);
+                connection.rename(tmpKey, rawKey);
+                return null;
+            });
+
+            // 先替换镜像，再补上重建期间新增的id（本地和redis都补）
+            bits = fresh;
+            ready = true;
+            Queue<Long> pending = addedDuringRebuild;
+            addedDuringRebuild = null;
+            for (Long id : pending) {
+                put(id);
+            }
+        } finally {
+            addedDuringRebuild = null;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        AtomicLongArray current = bits;
+        long bitCount = 0;
+        for (int i = 0; i < current.length(); i++) {
+            bitCount += Long.bitCount(current.get(i));
+        }
+        double fillRatio = (double) bitCount / numBits;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ready", ready);
+        map.put("expectedInsertions", expectedInsertions);
+        map.put("configuredFpp", fpp);
+        map.put("numBits", numBits);
+        map.put("numHashFunctions", numHashFunctions);
+        map.put("memoryBytes", numBits / 8);
+        map.put("bitCount", bitCount);
+        map.put("unsynced", unsynced.size());
+        // 根据置位比例估算已插入的元素数和当前的实际误判率
+        map.put("approximateElementCount", Math.round(-(double) numBits / numHashFunctions * Math.log(1 - fillRatio)));
+        map.put("expectedFpp", Math.pow(fillRatio, numHashFunctions));
+        return map;
+    }
+
+    // 双重哈希：index_i = h1 + i * h2，h1和h2由两次splitmix64得到
+    private long[] indexes(long id) {
+        long h1 = mix(id);
+        long h2 = mix(id ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] indexes = new long[numHashFunctions];
+        for (int i = 0; i < numHashFunctions; i++) {
+            long combined = h1 + i * h2;
+            indexes[i] = (combined & Long.MAX_VALUE) % numBits;
+        }
+        return indexes;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void setLocal(AtomicLongArray array, long[] indexes) {
+        for (long index : indexes) {
+            long mask = 1L << (index & 63);
+            array.getAndAccumulate((int) (index >>> 6), mask, (a, b) -> a | b);
+        }
+    }
+
+    // 本地第index位对应redis的第index位：字节index/8中从高位数第index%8位
+    private static AtomicLongArray fromRedisBytes(byte[] bytes) {
+        AtomicLongArray array = new AtomicLongArray(bytes.length / 8);
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b == 0) {
+                continue;
+            }
+            long word = 0;
+            for (int j = 0; j < 8; j++) {
+                if ((b & (0x80 >>> j)) != 0) {
+                    word |= 1L << (((i & 7) << 3) + j);
+                }
+            }
+            array.getAndAccumulate(i >>> 3, word, (a, c) -> a | c);
+        }
+        return array;
+    }
+
+    private static byte[] toRedisBytes(AtomicLongArray array) {
+        byte[] bytes = new byte[array.length() * 8];
+        for (int w = 0; w < array.length(); w++) {
+            long word = array.get(w);
+            if (word == 0) {
+                continue;
+            }
+            for (int k = 0; k < 8; k++) {
+                int b = 0;
+                for (int j = 0; j < 8; j++) {
+                    if ((word & (1L << ((k << 3) + j))) != 0) {
+                        b |= 0x80 >>> j;
+                    }
+                }
+                bytes[(w << 3) + k] = (byte) b;
+            }
+        }
+        return bytes;
+    }
+}
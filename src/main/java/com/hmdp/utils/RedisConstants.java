@@ -3,6 +3,7 @@ package com.hmdp.utils;
 public class RedisConstants {
 
     public static final String TYPE_LIST_KEY = "cache:typelist";
+    public static final String SHOP_TYPE_CHANNEL = "channel:shop:type";
     public static final String LOGIN_CODE_KEY = "login:code:";
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
@@ -12,13 +13,41 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_LOGICAL_TTL = 20L; // 逻辑过期时间，单位秒
+    public static final String CACHE_SHOP_INVALIDATE_CHANNEL = "channel:cache:shop:invalidate";
+    // 按类型分页的店铺id缓存：{typeId}作为hash tag，保证同一个类型的版本号和各页在同一个slot，lua脚本可以一起访问
+    public static final String CACHE_SHOP_TYPE_PAGE_KEY = "cache:shop:type:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    // @CacheableEntity缓存的key，以及重建时的互斥锁（锁的key为 "lock:" + 缓存key）
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_USER_INFO_KEY = "cache:user:info:";
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:voucher:shop:";
+    public static final String LOCK_KEY_PREFIX = "lock:";
+    // DistributedLock释放锁时的通知频道，消息内容是锁的key
+    public static final String LOCK_CHANNEL = "channel:lock";
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "channel:bloom:add";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 分片库存的窃取记录，每个分片一个hash：seckill:stolen:{voucherId:分片}，订单id -> 1 已经扣减；0 已经作废
+    public static final String SECKILL_STOLEN_KEY = "seckill:stolen:";
+    // 秒杀订单stream，每个优惠券（分片）一个，和库存在同一个槽位：stream:seckill:orders:{voucherId}
+    public static final String SECKILL_ORDER_STREAM = "stream:seckill:orders:";
+    // 所有订单stream的zset，分数是stream的过期时间（毫秒），消费者按它读取
+    public static final String SECKILL_ORDER_STREAMS_KEY = "stream:seckill:streams";
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream:seckill:orders:dead";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_CHANNEL = "channel:shop:geo";
+    public static final String SHOP_RANK_KEY = "shop:rank:";
+    public static final String SHOP_RANK_REBUILD_KEY = "shop:rank:rebuild";
+    public static final Long SHOP_RANK_REBUILD_TTL = 60L; // 重建标识和临时key的过期时间，单位分钟
+    public static final String SHOP_SEARCH_CHANNEL = "channel:shop:search";
     public static final String USER_SIGN_KEY = "sign:";
 }
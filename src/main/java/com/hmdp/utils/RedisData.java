@@ -8,4 +8,5 @@ import java.time.LocalDateTime;
 public class RedisData<T> {
     private LocalDateTime expireTime;  //逻辑过期时间
     private T data;  //对应的数据，相当于本类对原数据进行一次封装
+    private Long delta;  //重建这份数据的耗时（毫秒），用于提前刷新，可以为null
 }
@@ -28,23 +28,41 @@ public class RedisIdWorker {
 
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    CircuitBreaker redisCircuitBreaker;
     public long nextId(String keyPrefix) {
 
         // 1. 生成时间戳: 当前时间-初始时间  （同一秒钟的时间戳是一样的）
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp(now);
 
         // 2. 生成序列号
         // redis自增长的上限是2的64次方，64位的，不能一直用同一个数据来自增来形成数据（不能只有一个key）
         // 就算是同一个业务也不能一直用一个key的来做自增长来生成序列号
         // 这里采用一天一个key，不仅不用担心超过上限，也方便日后做每日订单的统计
         // 2.1 获取当前日期，精确到天 : eg 20221124
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String key = counterKey(keyPrefix, now);
         // 2.2 自增长
-        Long count = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date);
+        //     序列号只能由redis保证全局唯一，没有降级方案，redis不可用时快速失败，不占住请求线程
+        Long count = redisCircuitBreaker.execute(
+                () -> stringRedisTemplate.opsForValue().increment(key),
+                () -> {
+                    throw new IllegalStateException("redis不可用，暂时无法生成id");
+                });
 
         // 3. 拼成返回
+        return compose(timestamp, count);
+    }
+
+    private static long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    private static String counterKey(String keyPrefix, LocalDateTime now) {
+        return "icr" + keyPrefix + ":" + now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+    }
+
+    private static long compose(long timestamp, long count) {
         // 位运算：将时间戳左移动32位，再填入序列号(或运算：原本是0还是0，原本是1还是1)
         return timestamp << COUNT_BITS | count;
     }
@@ -1,9 +1,10 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
@@ -15,10 +16,21 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     //本类对象不是由Spring创建的，是我们手动创建的，所以这里不能用@Autowire或@Resource来依赖注入
     //所以就是哪里用了哪里注入，通过在我们自己手动创建时，调用构造函数注入
-    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisTemplate<String, byte[]> binaryRedisTemplate;
+    private final CacheCodec cacheCodec;
+    private final CircuitBreaker redisCircuitBreaker;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    // 最近验证过的token，redis不可用时用这份快照识别用户，已登录的用户不会被踢下线
+    private final Cache<String, UserDTO> loginSnapshot = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES)
+            .build();
+
+    public RefreshTokenInterceptor(RedisTemplate<String, byte[]> binaryRedisTemplate, CacheCodec cacheCodec,
+                                   CircuitBreaker redisCircuitBreaker) {
+        this.binaryRedisTemplate = binaryRedisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.redisCircuitBreaker = redisCircuitBreaker;
     }
 
     @Override
@@ -33,21 +45,32 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         }
         // 2. 基于token获取到redis中的用户
         String key = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        //    redis熔断或超时返回null，改用本地快照
+        Map<Object, Object> userMap = redisCircuitBreaker.execute(
+                () -> binaryRedisTemplate.opsForHash().entries(key), () -> null);
+        if (userMap == null) {
+            UserDTO snapshot = loginSnapshot.getIfPresent(token);
+            if (snapshot != null) {
+                UserHolder.saveUser(snapshot);
+            }
+            return true;
+        }
 
         // 3. 判断用户是否存在
         if(userMap.isEmpty()) {
             //4. 不存在，不拦截，直接放行（ThreadLocal中不会存下user）
+            loginSnapshot.invalidate(token);
             return true;
         }
-        // 5. 将查询到的HashMap数据，再转为userDTO对象
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        // 5. 将查询到的HashMap数据，再转为userDTO对象（兼容每个字段一个hash字段的旧格式和二进制格式）
+        UserDTO userDTO = cacheCodec.decodeHash(userMap, UserDTO.class);
 
         // 6. 存在，将用户信息保存在ThreadLocal（为了保证线程安全，这里没太懂）
         UserHolder.saveUser(userDTO);
+        loginSnapshot.put(token, userDTO);
 
-        // 7. 刷新token有效期
-        stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        // 7. 刷新token有效期（失败了也不影响本次请求）
+        redisCircuitBreaker.run(() -> binaryRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES));
 
         // 8. 放行
         return true;
@@ -0,0 +1,199 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 预分配槽位的环形队列（多生产者、单消费者），发布数据不创建对象：
+ *  1.槽位在构造时一次性创建，生产者CAS领取一个序号，往这个序号的槽位里写字段，写完后publish；每个序号只有领取它的生产者会写
+ *  2.每个槽位记录最近一次发布的轮次（序号/容量），消费者据此判断一段连续的序号是否都已经发布，不需要锁
+ *  3.消费者处理完一段序号后release，生产者领取序号时不能超过 已release的序号+容量，否则队列已满，tryNext返回-1
+ *  4.消费者没有数据时按WaitStrategy等待：忙等、让出CPU、短暂休眠或者阻塞等待生产者唤醒
+ */
+public class RingBuffer<E> {
+
+    private final Object[] entries;
+    private final int mask;
+    private final int indexShift;
+    // 已经领取的最大序号
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // 每个槽位最近一次发布的轮次
+    private final AtomicIntegerArray published;
+    // 消费者已经处理完的最大序号
+    private volatile long released = -1;
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * @param size 容量，向上取整为2的幂
+     * @param factory 创建槽位对象
+     */
+    public RingBuffer(int size, Supplier<E> factory, WaitStrategy waitStrategy) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.entries = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = factory.get();
+        }
+        this.mask = capacity - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(capacity);
+        this.published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 领取下一个序号
+     * @return 序号，队列已满时返回-1
+     */
+    public long tryNext() {
+        while (true) {
+            long current = cursor.get();
+            long next = current + 1;
+            if (next - entries.length > released) {
+                return -1;
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * 槽位写完后发布，消费者才能看到
+     */
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+        waitStrategy.signalAll();
+    }
+
+    public boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+    }
+
+    /**
+     * 消费者处理完sequence及之前的槽位，生产者可以重新使用
+     */
+    public void release(long sequence) {
+        released = sequence;
+    }
+
+    /**
+     * 等待sequence发布，最多等到deadline（System.nanoTime()）
+     * @param limit 最多检查到这个序号，消费者一批处理不了更多时不必往后检查
+     * @return 从sequence开始连续发布的最大序号，不超过limit；超时返回sequence-1
+     */
+    public long waitFor(long sequence, long limit, long deadline) {
+        int counter = 0;
+        while (!isPublished(sequence)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return sequence - 1;
+            }
+            waitStrategy.idle(counter++, deadline);
+        }
+        long highest = sequence;
+        long end = Math.min(limit, cursor.get());
+        while (highest < end && isPublished(highest + 1)) {
+            highest++;
+        }
+        return highest;
+    }
+
+    public long cursor() {
+        return cursor.get();
+    }
+
+    public long released() {
+        return released;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * 消费者没有数据时的等待方式
+     */
+    public interface WaitStrategy {
+        /**
+         * 没有数据时调用一次
+         * @param counter 本次连续等待的次数
+         * @param deadline 最晚等到的时间（System.nanoTime()）
+         */
+        void idle(int counter, long deadline);
+
+        /**
+         * 生产者发布后调用，只有阻塞等待的策略需要唤醒消费者
+         */
+        default void signalAll() {
+        }
+    }
+
+    /**
+     * @param name busy-spin：一直自旋，延迟最低，独占一个CPU；yielding：自旋一段时间后让出CPU；
+     *             sleeping：自旋、让出之后短暂休眠，默认；blocking：加锁等待生产者唤醒，CPU占用最低，发布时要加锁
+     */
+    public static WaitStrategy waitStrategy(String name) {
+        switch (name) {
+            case "busy-spin":
+                return (counter, deadline) -> {
+                };
+            case "yielding":
+                return (counter, deadline) -> {
+                    if (counter > 100) {
+                        Thread.yield();
+                    }
+                };
+            case "blocking":
+                return new BlockingWaitStrategy();
+            case "sleeping":
+                return (counter, deadline) -> {
+                    if (counter > 200) {
+                        LockSupport.parkNanos(1000);
+                    } else if (counter > 100) {
+                        Thread.yield();
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("未知的等待策略：" + name);
+        }
+    }
+
+    private static class BlockingWaitStrategy implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+
+        @Override
+        public void idle(int counter, long deadline) {
+            lock.lock();
+            try {
+                // 等待期间可能已经发布了，最多等1ms再检查一次，不会错过唤醒太久
+                published.awaitNanos(Math.min(TimeUnit.MILLISECONDS.toNanos(1), Math.max(0, deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            lock.lock();
+            try {
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
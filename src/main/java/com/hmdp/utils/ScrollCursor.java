@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 滚动分页的游标：把上一页最后一条记录的排序值和id编码成不透明的字符串交给前端，
+ * 下一页从这个位置之后继续查，不需要OFFSET，前端也不应该解析它
+ */
+public class ScrollCursor {
+
+    private static final String SEPARATOR = ",";
+
+    private ScrollCursor() {
+    }
+
+    public static String encode(Object... parts) {
+        String text = StrUtil.join(SEPARATOR, parts);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param size 期望的字段数量
+     * @return 解码后的各个字段，游标为空返回空数组，格式不对返回null
+     */
+    public static String[] decode(String cursor, int size) {
+        if (StrUtil.isBlank(cursor)) {
+            return new String[0];
+        }
+        try {
+            String text = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = text.split(SEPARATOR, -1);
+            return parts.length == size ? parts : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 字段都是整数的游标
+     * @return 解码后的各个字段，游标为空返回空数组，格式不对返回null
+     */
+    public static long[] decodeLongs(String cursor, int size) {
+        String[] parts = decode(cursor, size);
+        if (parts == null) {
+            return null;
+        }
+        long[] values = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,155 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分片库存窃取的对账：窃取脚本的结果未知（redis超时），或者窃取来的库存需要归还（订单没能放进进程内队列）时，
+ * 用户还留在所属分片的下单记录里，不处理的话这场秒杀都买不了：
+ *  1.在被窃取的分片上执行seckill_unsteal.lua，按订单id查窃取记录：已经扣减的保留（订单已经在stream里）或者归还；
+ *    没有扣减的写入作废标记，之后才到达redis的窃取脚本直接返回，不会再扣减
+ *  2.窃取作废后移除用户所属分片的下单记录，用户可以重新抢；两步都可以重复执行
+ *  3.redis不可用时记在内存队列里并打印错误日志（节点重启时按日志人工处理），按固定间隔重试，直到有确定的结果
+ */
+@Slf4j
+@Component
+public class SeckillStealReconciler {
+
+    private static final DefaultRedisScript<Long> UNSTEAL_SCRIPT;
+    static {
+        UNSTEAL_SCRIPT = new DefaultRedisScript<>();
+        UNSTEAL_SCRIPT.setLocation(new ClassPathResource("seckill_unsteal.lua"));
+        UNSTEAL_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    // 还没有确定结果的窃取，按提交的顺序重试
+    private final Queue<Steal> pending = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder kept = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+
+    /**
+     * 一次窃取：用户所属的分片home，扣减（可能扣减了）库存的分片shard
+     */
+    private static class Steal {
+        final long voucherId;
+        final long userId;
+        final long orderId;
+        final int shards;
+        final int home;
+        final int shard;
+        // 已经扣减时是否归还库存：订单没有写入stream、也没有放进进程内队列时归还
+        final boolean giveBack;
+
+        Steal(long voucherId, long userId, long orderId, int shards, int home, int shard, boolean giveBack) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+            this.orderId = orderId;
+            this.shards = shards;
+            this.home = home;
+            this.shard = shard;
+            this.giveBack = giveBack;
+        }
+
+        @Override
+        public String toString() {
+            return "优惠券" + voucherId + " 用户" + userId + " 订单" + orderId + " 分片" + home + "->" + shard;
+        }
+    }
+
+    /**
+     * 窃取脚本的结果未知时立即对账一次，已经扣减的保留
+     * @param giveBackLater 这次确定不了、之后重试时，已经扣减的是否归还（进程内队列的订单只在请求线程里发布，之后不会再写入）
+     * @return true 已经扣减，订单有效；false 这次窃取已经作废，下单记录已经移除；null 结果还不确定，已经记下来重试
+     */
+    public Boolean resolve(long voucherId, long userId, long orderId, int shards, int home, int shard, boolean giveBackLater) {
+        Boolean stolen = reconcile(new Steal(voucherId, userId, orderId, shards, home, shard, false));
+        if (stolen == null) {
+            enqueue(new Steal(voucherId, userId, orderId, shards, home, shard, giveBackLater));
+        }
+        return stolen;
+    }
+
+    /**
+     * 归还窃取来的库存并移除下单记录，redis不可用时记下来重试
+     */
+    public void giveBack(long voucherId, long userId, long orderId, int shards, int home, int shard) {
+        Steal steal = new Steal(voucherId, userId, orderId, shards, home, shard, true);
+        if (reconcile(steal) == null) {
+            enqueue(steal);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.shard.reconcile-interval:1000}")
+    public void retry() {
+        // 只处理这一轮开始时已有的，失败的放回队尾，redis不可用时不空转
+        for (int i = pending.size(); i > 0; i--) {
+            Steal steal = pending.poll();
+            if (steal == null) {
+                return;
+            }
+            if (reconcile(steal) == null) {
+                pending.add(steal);
+                return;
+            }
+            log.info("秒杀窃取对账完成：{}", steal);
+        }
+    }
+
+    private void enqueue(Steal steal) {
+        log.error("秒杀窃取的结果未知，等待对账：{}", steal);
+        queued.increment();
+        pending.add(steal);
+    }
+
+    // 1. 在被窃取的分片上确定结果；2. 作废时移除用户所属分片的下单记录；redis不可用时返回null
+    private Boolean reconcile(Steal steal) {
+        Long result = redisCircuitBreaker.execute(() -> stringRedisTemplate.execute(UNSTEAL_SCRIPT,
+                Arrays.asList(SeckillStockShards.stockKey(steal.voucherId, steal.shards, steal.shard),
+                        SeckillStockShards.stolenKey(steal.voucherId, steal.shards, steal.shard)),
+                String.valueOf(steal.orderId), steal.giveBack ? "1" : "0"), () -> null);
+        if (result == null) {
+            return null;
+        }
+        if (result == 1) {
+            kept.increment();
+            return true;
+        }
+        Long removed = redisCircuitBreaker.execute(() -> stringRedisTemplate.opsForSet().remove(
+                SeckillStockShards.orderKey(steal.voucherId, steal.shards, steal.home), String.valueOf(steal.userId)),
+                () -> null);
+        if (removed == null) {
+            return null;
+        }
+        cancelled.increment();
+        return false;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("pending", pending.size());
+        map.put("queued", queued.sum());
+        map.put("kept", kept.sum());
+        map.put("cancelled", cancelled.sum());
+        return map;
+    }
+}
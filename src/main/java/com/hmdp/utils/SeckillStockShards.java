@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+/**
+ * 秒杀库存分片：热门优惠券的库存拆到N个hash（seckill:stock:{voucherId:分片}）里，每个分片有自己的下单用户set和订单stream，
+ * hash tag不同，可以落在redis集群的不同节点上，买家不再全部排在同一个key上：
+ *  1.用户按id的哈希固定属于一个分片，一人一单只在这个分片的set里判断
+ *  2.自己的分片卖完后，先在set里记下用户，再依次到其它分片扣减库存（工作窃取），所有分片都卖完才算卖完
+ *  3.窃取按订单id记在被窃取分片的窃取记录里，结果未知时由SeckillStealReconciler在这个分片上确定结果
+ * 分片数为1时就是原来不分片的key
+ */
+public final class SeckillStockShards {
+
+    // 分片数的上限
+    public static final int MAX_SHARDS = 64;
+
+    private SeckillStockShards() {
+    }
+
+    /**
+     * 规范化分片数，null或者小于1时不分片
+     */
+    public static int count(Integer shards) {
+        if (shards == null || shards < 1) {
+            return 1;
+        }
+        return Math.min(shards, MAX_SHARDS);
+    }
+
+    public static String stockKey(long voucherId, int shards, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + hashTag(voucherId, shards, shard);
+    }
+
+    public static String orderKey(long voucherId, int shards, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + hashTag(voucherId, shards, shard);
+    }
+
+    public static String stolenKey(long voucherId, int shards, int shard) {
+        return RedisConstants.SECKILL_STOLEN_KEY + hashTag(voucherId, shards, shard);
+    }
+
+    public static String streamKey(long voucherId, int shards, int shard) {
+        return RedisConstants.SECKILL_ORDER_STREAM + hashTag(voucherId, shards, shard);
+    }
+
+    private static String hashTag(long voucherId, int shards, int shard) {
+        return shards <= 1 ? "{" + voucherId + "}" : "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 用户所属的分片，先打散再取模，连续的用户id均匀地分到各个分片
+     */
+    public static int home(long userId, int shards) {
+        return shards <= 1 ? 0 : Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    /**
+     * 第i次（从1开始）窃取的分片：从用户所属分片的下一个开始依次往后，不同分片的用户不会同时挤到同一个分片上
+     */
+    public static int stealShard(int home, int shards, int i) {
+        return (home + i) % shards;
+    }
+
+    /**
+     * 第shard个分片的库存，除不尽的部分分给前面的分片
+     */
+    public static int portion(int stock, int shards, int shard) {
+        return stock / shards + (shard < stock % shards ? 1 : 0);
+    }
+}
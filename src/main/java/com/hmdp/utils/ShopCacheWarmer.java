@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 店铺缓存预热：把店铺以RedisData<Shop>（逻辑过期）的形式批量写入redis
+ *  1.启动时执行：预热进度达到 ready-fraction 之前ApplicationRunner不返回，Spring Boot在此之后才把就绪状态置为ACCEPTING_TRAFFIC，
+ *    新节点不会在缓存还是空的时候接流量，既不会误报"店铺不存在"，也不会把请求都打到数据库
+ *  2.按cron定时执行，刷新逻辑过期时间；预热写入的逻辑过期时间按cron的间隔计算（间隔的1.5倍），下一次预热之前不会过期
+ *  3.mode=all时按id分批流式读取全部店铺；mode=hot时只预热按销量、评分排序的前hot-size个店铺
+ *  4.每批店铺通过管道发送若干个MSET写入
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner {
+
+    // 每个MSET命令包含的key数量
+    private static final int MSET_CHUNK_SIZE = 100;
+
+    @Value("${hmdp.cache.warmup.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.warmup.mode:all}")
+    private String mode;
+    @Value("${hmdp.cache.warmup.hot-size:1000}")
+    private int hotSize;
+    @Value("${hmdp.cache.warmup.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.cache.warmup.ready-fraction:0.9}")
+    private double readyFraction;
+    @Value("${hmdp.cache.warmup.ready-timeout:120}")
+    private long readyTimeoutSeconds;
+    @Value("${hmdp.cache.warmup.cron:0 0/10 * * * ?}")
+    private String cron;
+    @Value("${hmdp.cache.warmup.logical-ttl:0}")
+    private long logicalTtlSeconds;
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+    @Resource
+    private CacheCodec cacheCodec;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong warmed = new AtomicLong();
+    private volatile long total;
+    private volatile boolean ready;
+    private volatile LocalDateTime lastStartTime;
+    private volatile long lastCostMillis;
+    // 两次定时预热的间隔（秒）
+    private long intervalSeconds;
+
+    @PostConstruct
+    public void init() {
+        // 逻辑过期时间没有配置时取cron间隔的1.5倍，配置得比间隔还短时也按这个值，否则预热的店铺在下一次预热之前就过期了
+        CronSequenceGenerator generator = new CronSequenceGenerator(cron);
+        Date next = generator.next(new Date());
+        intervalSeconds = (generator.next(next).getTime() - next.getTime()) / 1000;
+        logicalTtlSeconds = Math.max(logicalTtlSeconds, intervalSeconds + intervalSeconds / 2);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            ready = true;
+            return;
+        }
+        CountDownLatch readyLatch = new CountDownLatch(1);
+        Thread thread = new Thread(() -> warmUp(readyLatch), "shop-cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        // 剩下的部分在后台线程继续预热
+        if (!readyLatch.await(readyTimeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("店铺缓存预热在{}秒内未达到{}%，不再等待", readyTimeoutSeconds, readyFraction * 100);
+        }
+        ready = true;
+    }
+
+    @Scheduled(cron = "${hmdp.cache.warmup.cron:0 0/10 * * * ?}")
+    public void scheduledWarmUp() {
+        if (enabled) {
+            warmUp(null);
+        }
+    }
+
+    /**
+     * 执行一次预热，同一时间只会有一次在执行
+     * @param readyLatch 进度达到ready-fraction时countDown，可以为null
+     */
+    public void warmUp(CountDownLatch readyLatch) {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        lastStartTime = LocalDateTime.now();
+        warmed.set(0);
+        try {
+            long count = shopMapper.selectCount(null);
+            total = "hot".equalsIgnoreCase(mode) ? Math.min(count, hotSize) : count;
+            long readyCount = (long) Math.ceil(total * readyFraction);
+            if ("hot".equalsIgnoreCase(mode)) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .orderByDesc("sold", "score")
+                        .last("limit " + hotSize));
+                for (int from = 0; from < shops.size(); from += batchSize) {
+                    writeBatch(shops.subList(from, Math.min(from + batchSize, shops.size())), readyLatch, readyCount);
+                }
+            } else {
+                long lastId = 0;
+                while (true) {
+                    List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                            .gt("id", lastId)
+                            .orderByAsc("id")
+                            .last("limit " + batchSize));
+                    if (shops.isEmpty()) {
+                        break;
+                    }
+                    writeBatch(shops, readyLatch, readyCount);
+                    lastId = shops.get(shops.size() - 1).getId();
+                    if (shops.size() < batchSize) {
+                        break;
+                    }
+                }
+            }
+            lastCostMillis = System.currentTimeMillis() - begin;
+            log.info("店铺缓存预热完成，模式{}，共{}个，耗时{}ms", mode, warmed.get(), lastCostMillis);
+        } catch (Exception e) {
+            log.error("店铺缓存预热失败，已完成{}/{}", warmed.get(), total, e);
+        } finally {
+            running.set(false);
+            // 失败或者店铺数量为0时也要放行，避免一直阻塞启动
+            if (readyLatch != null) {
+                readyLatch.countDown();
+            }
+        }
+    }
+
+    private void writeBatch(List<Shop> shops, CountDownLatch readyLatch, long readyCount) {
+        LocalDateTime now = LocalDateTime.now();
+        binaryRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            Map<byte[], byte[]> chunk = new HashMap<>();
+            for (Shop shop : shops) {
+                RedisData<Shop> redisData = new RedisData<>();
+                redisData.setData(shop);
+                // 逻辑过期时间加上随机抖动，避免同一批预热的key同时过期、同时重建
+                long jitter = RandomUtil.randomLong(0, logicalTtlSeconds / 5 + 1);
+                redisData.setExpireTime(now.plusSeconds(logicalTtlSeconds + jitter));
+                chunk.put((RedisConstants.CACHE_SHOP_KEY + shop.getId()).getBytes(StandardCharsets.UTF_8),
+                        cacheCodec.encodeRedisData(redisData));
+                if (chunk.size() >= MSET_CHUNK_SIZE) {
+                    connection.mSet(chunk);
+                    chunk = new HashMap<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                connection.mSet(chunk);
+            }
+            return null;
+        });
+        long done = warmed.addAndGet(shops.size());
+        if (readyLatch != null && done >= readyCount) {
+            readyLatch.countDown();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public long getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    public long getLogicalTtlSeconds() {
+        return logicalTtlSeconds;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("mode", mode);
+        map.put("running", running.get());
+        map.put("ready", ready);
+        map.put("intervalSeconds", intervalSeconds);
+        map.put("logicalTtlSeconds", logicalTtlSeconds);
+        map.put("total", total);
+        map.put("warmed", warmed.get());
+        map.put("progress", total == 0 ? 1.0 : (double) warmed.get() / total);
+        map.put("lastStartTime", lastStartTime);
+        map.put("lastCostMillis", lastCostMillis);
+        return map;
+    }
+}
@@ -0,0 +1,261 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 按店铺类型维护的redis GEO集合（shop:geo:{typeId}，member为店铺id），用于按距离查询附近的店铺：
+ *  1.启动时在后台线程按id分批读取tb_shop（只查id、type_id、x、y），通过管道GEOADD写入，GEOADD是幂等的
+ *  2.新增、修改店铺时在事务提交后增量更新，类型变化时从旧类型的集合中移除
+ *  3.查询时从游标位置开始按半径圆搜索（升序、带距离），不够一页时半径翻倍，最大不超过max-radius，
+ *    结果按(距离, id)排序后取游标之后的部分，翻页不需要OFFSET
+ *  4.engine=local时，启动加载的同时在本进程建一份GeoGridIndex，查询不访问redis（加载完成前以及redis模式下仍查redis）；
+ *    店铺的坐标变化通过pub/sub通知所有节点更新各自的网格索引
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements ApplicationRunner {
+
+    private static final String ENGINE_LOCAL = "local";
+
+    // 启动加载时每批读取的店铺数量
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    @Value("${hmdp.geo.load-on-startup:true}")
+    private boolean loadOnStartup;
+    @Value("${hmdp.geo.initial-radius:1000}")
+    private double initialRadius;
+    @Value("${hmdp.geo.max-radius:5000}")
+    private double maxRadius;
+    @Value("${hmdp.geo.engine:local}")
+    private String engine;
+    @Value("${hmdp.geo.compact-threshold:1024}")
+    private int compactThreshold;
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    private GeoGridIndex gridIndex;
+    private volatile boolean gridReady;
+
+    @PostConstruct
+    public void init() {
+        gridIndex = new GeoGridIndex(compactThreshold);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!loadOnStartup) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                load();
+            } catch (Exception e) {
+                log.error("店铺GEO集合加载失败", e);
+            }
+        }, "shop-geo-load");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 按主键分批读取全部店铺的坐标，写入各自类型的GEO集合
+     */
+    public void load() {
+        long begin = System.currentTimeMillis();
+        long lastId = 0;
+        long count = 0;
+        // 加载期间收到的坐标变化比读到的数据新，替换快照时保留
+        long version = gridIndex.version();
+        GeoGridIndex.Builder builder = new GeoGridIndex.Builder(LOAD_BATCH_SIZE);
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_BATCH_SIZE));
+            if (shops.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Shop shop : shops) {
+                    if (hasLocation(shop)) {
+                        connection.geoAdd(key(shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                                new Point(shop.getX(), shop.getY()),
+                                shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return null;
+            });
+            for (Shop shop : shops) {
+                if (hasLocation(shop)) {
+                    builder.add(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+                }
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+            count += shops.size();
+            if (shops.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+        }
+        gridIndex.reset(builder, version);
+        gridReady = true;
+        log.info("店铺GEO集合加载完成，共{}个店铺，耗时{}ms", count, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 新增店铺后调用
+     */
+    public void add(Shop shop) {
+        if (!hasLocation(shop)) {
+            return;
+        }
+        TransactionHooks.afterCommit(() -> {
+            redisCircuitBreaker.run(() -> stringRedisTemplate.opsForGeo().add(key(shop.getTypeId()),
+                    new Point(shop.getX(), shop.getY()), shop.getId().toString()));
+            publish(shop);
+        });
+    }
+
+    /**
+     * 修改店铺后调用
+     * @param old 修改前的店铺
+     * @param changed 本次修改的字段，为null的字段表示没有修改
+     */
+    public void move(Shop old, Shop changed) {
+        Shop current = new Shop()
+                .setId(old.getId())
+                .setTypeId(changed.getTypeId() != null ? changed.getTypeId() : old.getTypeId())
+                .setX(changed.getX() != null ? changed.getX() : old.getX())
+                .setY(changed.getY() != null ? changed.getY() : old.getY());
+        TransactionHooks.afterCommit(() -> {
+            redisCircuitBreaker.run(() -> {
+                if (old.getTypeId() != null && !Objects.equals(old.getTypeId(), current.getTypeId())) {
+                    stringRedisTemplate.opsForZSet().remove(key(old.getTypeId()), old.getId().toString());
+                }
+                if (hasLocation(current)) {
+                    stringRedisTemplate.opsForGeo().add(key(current.getTypeId()),
+                            new Point(current.getX(), current.getY()), current.getId().toString());
+                }
+            });
+            publish(current);
+        });
+    }
+
+    /**
+     * 收到店铺坐标变化的通知（包括本节点自己发出的），格式为 id,typeId,x,y，typeId为空表示没有坐标
+     */
+    public void onRemoteChange(String message) {
+        String[] parts = message.split(",", -1);
+        if (parts.length != 4) {
+            log.warn("无效的店铺坐标消息：{}", message);
+            return;
+        }
+        long id = Long.parseLong(parts[0]);
+        if (parts[1].isEmpty()) {
+            gridIndex.remove(id);
+        } else {
+            gridIndex.put(id, Long.parseLong(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+        }
+    }
+
+    private void publish(Shop shop) {
+        // 本节点立即更新，其它节点收到通知后更新
+        String message = hasLocation(shop)
+                ? shop.getId() + "," + shop.getTypeId() + "," + shop.getX() + "," + shop.getY()
+                : shop.getId() + ",,,";
+        onRemoteChange(message);
+        redisCircuitBreaker.run(() -> stringRedisTemplate.convertAndSend(RedisConstants.SHOP_GEO_CHANNEL, message));
+    }
+
+    /**
+     * 查询(lastDistance, lastId)之后最近的count个店铺
+     * @param lastDistance 上一页最后一个店铺的距离，第一页传负数
+     * @return 按(距离, id)升序的结果；redis不可用时返回null
+     */
+    public List<GeoGridIndex.Hit> search(long typeId, double x, double y, double lastDistance, long lastId, int count) {
+        if (ENGINE_LOCAL.equals(engine) && gridReady) {
+            return gridIndex.nearest(typeId, x, y, lastDistance, lastId, count, maxRadius);
+        }
+        String key = key(typeId);
+        return redisCircuitBreaker.execute(() -> {
+            // 从游标所在的位置往外搜索，半径至少要覆盖游标
+            double radius = Math.min(Math.max(initialRadius, lastDistance * 2), maxRadius);
+            while (true) {
+                List<GeoGridIndex.Hit> hits = searchWithin(key, x, y, radius, lastDistance, lastId);
+                // 半径圆内的点是完整的，够一页或者已经到最大半径时就可以返回
+                if (hits.size() >= count || radius >= maxRadius) {
+                    return hits.size() > count ? new ArrayList<>(hits.subList(0, count)) : hits;
+                }
+                radius = Math.min(radius * 2, maxRadius);
+            }
+        }, () -> null);
+    }
+
+    private List<GeoGridIndex.Hit> searchWithin(String key, double x, double y, double radius, double lastDistance, long lastId) {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                key,
+                new Circle(new Point(x, y), new Distance(radius, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending());
+        List<GeoGridIndex.Hit> hits = new ArrayList<>();
+        if (results == null) {
+            return hits;
+        }
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : results) {
+            long id = Long.parseLong(result.getContent().getName());
+            double distance = result.getDistance().getValue();
+            // 只要游标之后的
+            if (distance > lastDistance || (distance == lastDistance && id > lastId)) {
+                hits.add(new GeoGridIndex.Hit(id, distance));
+            }
+        }
+        // 距离相同时redis的顺序不固定，按id排序保证翻页稳定
+        hits.sort(Comparator.comparingDouble(GeoGridIndex.Hit::getDistance).thenComparingLong(GeoGridIndex.Hit::getId));
+        return hits;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("engine", engine);
+        map.put("gridReady", gridReady);
+        map.put("gridSize", gridIndex.size());
+        return map;
+    }
+
+    private static boolean hasLocation(Shop shop) {
+        return shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+    }
+
+    private static String key(Long typeId) {
+        return RedisConstants.SHOP_GEO_KEY + typeId;
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 商铺的本地一级缓存（L1），位于Redis（L2）之前：
+ *  1.容量按条目的估算字节数加权，超出后由Caffeine的W-TinyLFU策略决定淘汰和准入，偶发访问的店铺挤不掉热点店铺
+ *  2.缓存的是RedisData<Shop>整个信封，逻辑过期时间一起保存，未过期的热点店铺读请求不需要离开JVM
+ *  3.店铺更新时通过Redis的pub/sub通知所有节点删除本地缓存
+ *  4.被识别为热点的店铺会被固定（pin）：条目单独保存，不参与容量淘汰，降级后解除固定
+ */
+@Slf4j
+@Component
+public class ShopLocalCache {
+
+    // 每个条目的固定开销估算（对象头、Long、LocalDateTime、包装类型等），字符串按每字符2字节另算
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    @Value("${hmdp.cache.local.max-weight:67108864}")
+    private long maxWeight;
+
+    @Value("${hmdp.cache.local.expire-after-write:600}")
+    private long expireAfterWriteSeconds;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private Cache<Long, RedisData<Shop>> cache;
+
+    // 被固定的热点店铺id，以及它们的条目（数量由热点识别的max-hot-keys限制）
+    private final Set<Long> pinnedIds = ConcurrentHashMap.newKeySet();
+    private final Map<Long, RedisData<Shop>> pinnedEntries = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((Long id, RedisData<Shop> redisData) -> weigh(redisData))
+                // 兜底过期：即使错过了失效消息，也不会一直读到旧数据
+                .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public RedisData<Shop> get(Long id) {
+        RedisData<Shop> pinned = pinnedEntries.get(id);
+        return pinned != null ? pinned : cache.getIfPresent(id);
+    }
+
+    public void put(Long id, RedisData<Shop> redisData) {
+        if (redisData == null || redisData.getData() == null) {
+            return;
+        }
+        if (pinnedIds.contains(id)) {
+            pinnedEntries.put(id, redisData);
+        } else {
+            cache.put(id, redisData);
+        }
+    }
+
+    /**
+     * 固定热点店铺：已有的条目从Caffeine移到固定区，之后写入的条目也放在固定区
+     */
+    public void pin(Long id) {
+        pinnedIds.add(id);
+        RedisData<Shop> existing = cache.getIfPresent(id);
+        if (existing != null) {
+            pinnedEntries.put(id, existing);
+            cache.invalidate(id);
+        }
+    }
+
+    /**
+     * 解除固定，条目直接丢弃，之后按普通TTL缓存的方式读取
+     */
+    public void unpin(Long id) {
+        pinnedIds.remove(id);
+        pinnedEntries.remove(id);
+    }
+
+    /**
+     * 删除本节点的缓存，并广播给其它节点（本节点也会收到消息，重复删除没有影响）
+     */
+    public void invalidate(Long id) {
+        cache.invalidate(id);
+        pinnedEntries.remove(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_SHOP_INVALIDATE_CHANNEL, id.toString());
+    }
+
+    /**
+     * 只删除本节点的缓存，由pub/sub监听器调用
+     */
+    public void invalidateLocal(Long id) {
+        cache.invalidate(id);
+        pinnedEntries.remove(id);
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", cache.estimatedSize());
+        map.put("maxWeight", maxWeight);
+        map.put("pinned", pinnedIds.size());
+        map.put("hitCount", stats.hitCount());
+        map.put("missCount", stats.missCount());
+        map.put("hitRate", stats.hitRate());
+        map.put("evictionCount", stats.evictionCount());
+        map.put("evictionWeight", stats.evictionWeight());
+        return map;
+    }
+
+    private static int weigh(RedisData<Shop> redisData) {
+        Shop shop = redisData.getData();
+        if (shop == null) {
+            return ENTRY_OVERHEAD_BYTES;
+        }
+        return ENTRY_OVERHEAD_BYTES
+                + 2 * (length(shop.getName()) + length(shop.getImages()) + length(shop.getArea())
+                + length(shop.getAddress()) + length(shop.getOpenHours()));
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+}
@@ -0,0 +1,308 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按店铺类型维护的排行榜（redis ZSET，shop:rank:metric:{typeId}，member为店铺id，score为销量/评分/评论数）：
+ *  1.重建时按id分批流式读取tb_shop（只查id、type_id和三个计数），通过管道ZADD写入带本次重建标识的临时key，
+ *    全部写完后RENAME覆盖正式的key，重建期间查询继续读旧的排行榜；启动时和每天定时各重建一次，用分布式锁保证集群中同一时间只有一个节点在重建
+ *  2.新增店铺、修改店铺的类型或计数时，在事务提交后增量ZADD，类型变化时从旧类型的排行榜中移除；
+ *    重建的标识写在redis里，重建进行中所有节点都同时写临时key，避免被重建结果覆盖，RENAME全部完成之后才删除标识
+ *  3.查询用ZREVRANGEBYSCORE从上一页最小的分数开始取，分数相同的跳过上一页已经返回的个数，O(log n + k)，不需要ORDER BY
+ */
+@Slf4j
+@Component
+public class ShopRankBoard implements ApplicationRunner {
+
+    public static final String SOLD = "sold";
+    public static final String SCORE = "score";
+    public static final String COMMENTS = "comments";
+    public static final List<String> METRICS = Collections.unmodifiableList(Arrays.asList(SOLD, SCORE, COMMENTS));
+
+    // 重建时每批读取的店铺数量
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT;
+    static {
+        SWAP_SCRIPT = new DefaultRedisScript<>();
+        SWAP_SCRIPT.setLocation(new ClassPathResource("rank_swap.lua"));
+        SWAP_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${hmdp.rank.rebuild-on-startup:true}")
+    private boolean rebuildOnStartup;
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+    @Resource
+    private DistributedLock distributedLock;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile LocalDateTime lastRebuildTime;
+    private volatile long lastCostMillis;
+    private volatile long lastCount;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!rebuildOnStartup) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                log.error("店铺排行榜重建失败", e);
+            }
+        }, "shop-rank-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 每天定时重建一次，修正增量更新时可能丢失的变化（比如redis熔断期间的修改）
+     */
+    @Scheduled(cron = "${hmdp.rank.rebuild-cron:0 0 4 * * ?}")
+    public void scheduledRebuild() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.error("店铺排行榜重建失败", e);
+        }
+    }
+
+    /**
+     * 按主键分批读取全部店铺的计数，写入临时key后整体替换，集群中同一时间只会有一次在执行
+     */
+    public void rebuild() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        String lockKey = RedisConstants.LOCK_KEY_PREFIX + RedisConstants.SHOP_RANK_REBUILD_KEY;
+        try {
+            // 其它节点正在重建，放弃
+            if (!distributedLock.tryLock(lockKey)) {
+                return;
+            }
+            try {
+                doRebuild();
+            } finally {
+                distributedLock.unlock(lockKey);
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void doRebuild() {
+        long begin = System.currentTimeMillis();
+        // 每次重建用不同的临时key；标识写入redis，其它节点的增量更新也会同时写临时key
+        String token = IdUtil.fastSimpleUUID();
+        publishToken(token);
+        Set<Long> typeIds = new HashSet<>();
+        long lastId = 0;
+        long count = 0;
+        try {
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select("id", "type_id", "sold", "score", "comments")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + LOAD_BATCH_SIZE));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Shop shop : shops) {
+                        if (shop.getTypeId() == null) {
+                            continue;
+                        }
+                        byte[] member = shop.getId().toString().getBytes(StandardCharsets.UTF_8);
+                        for (String metric : METRICS) {
+                            byte[] tmpKey = bytes(tmpKey(token, metric, shop.getTypeId()));
+                            connection.zAdd(tmpKey, valueOf(shop, metric), member);
+                            // 重建中途失败（节点宕机）时临时key自己过期
+                            connection.expire(tmpKey, TimeUnit.MINUTES.toSeconds(RedisConstants.SHOP_RANK_REBUILD_TTL));
+                        }
+                    }
+                    return null;
+                });
+                for (Shop shop : shops) {
+                    if (shop.getTypeId() != null) {
+                        typeIds.add(shop.getTypeId());
+                    }
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+                count += shops.size();
+                publishToken(token);
+                if (shops.size() < LOAD_BATCH_SIZE) {
+                    break;
+                }
+            }
+            // 仍在双写时替换：RENAME之前的增量更新两边都写了，不会被覆盖；全部替换完成后再停止双写。
+            // 替换完成到删除标识之间的增量更新会重新生成只有少量成员的临时key，它们带有过期时间，会自己过期
+            for (Long typeId : typeIds) {
+                for (String metric : METRICS) {
+                    stringRedisTemplate.execute(SWAP_SCRIPT, Arrays.asList(tmpKey(token, metric, typeId), key(metric, typeId)));
+                }
+            }
+            clearToken();
+            lastRebuildTime = LocalDateTime.now();
+            lastCostMillis = System.currentTimeMillis() - begin;
+            lastCount = count;
+            log.info("店铺排行榜重建完成，共{}个店铺、{}个类型，耗时{}ms", count, typeIds.size(), lastCostMillis);
+        } catch (RuntimeException e) {
+            // 没有替换成功的临时key删掉
+            redisCircuitBreaker.run(this::clearToken);
+            for (Long typeId : typeIds) {
+                for (String metric : METRICS) {
+                    redisCircuitBreaker.run(() -> stringRedisTemplate.delete(tmpKey(token, metric, typeId)));
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void publishToken(String token) {
+        stringRedisTemplate.opsForValue().set(RedisConstants.SHOP_RANK_REBUILD_KEY, token,
+                RedisConstants.SHOP_RANK_REBUILD_TTL, TimeUnit.MINUTES);
+    }
+
+    private void clearToken() {
+        stringRedisTemplate.delete(RedisConstants.SHOP_RANK_REBUILD_KEY);
+    }
+
+    /**
+     * 新增店铺后调用
+     */
+    public void add(Shop shop) {
+        if (shop.getTypeId() == null) {
+            return;
+        }
+        TransactionHooks.afterCommit(() -> redisCircuitBreaker.run(() -> write(shop)));
+    }
+
+    /**
+     * 修改店铺后调用
+     * @param old 修改前的店铺
+     * @param changed 本次修改的字段，为null的字段表示没有修改
+     */
+    public void update(Shop old, Shop changed) {
+        Shop current = new Shop()
+                .setId(old.getId())
+                .setTypeId(changed.getTypeId() != null ? changed.getTypeId() : old.getTypeId())
+                .setSold(changed.getSold() != null ? changed.getSold() : old.getSold())
+                .setScore(changed.getScore() != null ? changed.getScore() : old.getScore())
+                .setComments(changed.getComments() != null ? changed.getComments() : old.getComments());
+        TransactionHooks.afterCommit(() -> redisCircuitBreaker.run(() -> {
+            if (old.getTypeId() != null && !Objects.equals(old.getTypeId(), current.getTypeId())) {
+                String token = stringRedisTemplate.opsForValue().get(RedisConstants.SHOP_RANK_REBUILD_KEY);
+                for (String metric : METRICS) {
+                    stringRedisTemplate.opsForZSet().remove(key(metric, old.getTypeId()), old.getId().toString());
+                    if (token != null) {
+                        stringRedisTemplate.opsForZSet().remove(tmpKey(token, metric, old.getTypeId()), old.getId().toString());
+                    }
+                }
+            }
+            if (current.getTypeId() != null) {
+                write(current);
+            }
+        }));
+    }
+
+    private void write(Shop shop) {
+        String token = stringRedisTemplate.opsForValue().get(RedisConstants.SHOP_RANK_REBUILD_KEY);
+        String member = shop.getId().toString();
+        for (String metric : METRICS) {
+            stringRedisTemplate.opsForZSet().add(key(metric, shop.getTypeId()), member, valueOf(shop, metric));
+            if (token != null) {
+                String tmpKey = tmpKey(token, metric, shop.getTypeId());
+                stringRedisTemplate.opsForZSet().add(tmpKey, member, valueOf(shop, metric));
+                stringRedisTemplate.expire(tmpKey, RedisConstants.SHOP_RANK_REBUILD_TTL, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    /**
+     * 按metric降序取一页，分数相同的按id降序
+     * @param maxScore 上一页最后一个店铺的分数，第一页传Long.MAX_VALUE
+     * @param offset 上一页中分数等于maxScore的店铺数量（分数相同的连续多页时累加），第一页传0
+     * @return 按分数降序的(id, 分数)；redis不可用时返回null
+     */
+    public List<ZSetOperations.TypedTuple<String>> page(String metric, long typeId, long maxScore, long offset, int count) {
+        return redisCircuitBreaker.execute(() -> {
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(key(metric, typeId), 0, maxScore, offset, count);
+            return tuples == null ? new ArrayList<>() : new ArrayList<>(tuples);
+        }, () -> null);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("running", running.get());
+        map.put("lastRebuildTime", lastRebuildTime);
+        map.put("lastCostMillis", lastCostMillis);
+        map.put("lastCount", lastCount);
+        return map;
+    }
+
+    private static long valueOf(Shop shop, String metric) {
+        Integer value;
+        switch (metric) {
+            case SOLD:
+                value = shop.getSold();
+                break;
+            case SCORE:
+                value = shop.getScore();
+                break;
+            default:
+                value = shop.getComments();
+        }
+        return value == null ? 0 : value;
+    }
+
+    // 正式的key和临时key都以{typeId}为hash tag，集群模式下在同一个槽位，才能RENAME
+    private static String key(String metric, Long typeId) {
+        return RedisConstants.SHOP_RANK_KEY + metric + ":{" + typeId + "}";
+    }
+
+    private static String tmpKey(String token, String metric, Long typeId) {
+        return RedisConstants.SHOP_RANK_KEY + "tmp:" + token + ":" + metric + ":{" + typeId + "}";
+    }
+
+    private static byte[] bytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 店铺名称、商圈搜索（NGramIndex）：
+ *  1.启动时在后台线程按id分批读取tb_shop的id、name、area建立索引，建好之前查询仍走数据库
+ *  2.新增、修改店铺的名称或商圈后，在事务提交后更新本节点的索引，并通过pub/sub通知其它节点从数据库重新读取这个店铺
+ */
+@Slf4j
+@Component
+public class ShopSearchIndex implements ApplicationRunner {
+
+    // 启动加载时每批读取的店铺数量
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    @Value("${hmdp.search.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.search.compact-threshold:1024}")
+    private int compactThreshold;
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CircuitBreaker redisCircuitBreaker;
+
+    private NGramIndex index;
+    private volatile boolean ready;
+
+    @PostConstruct
+    public void init() {
+        index = new NGramIndex(compactThreshold);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                load();
+            } catch (Exception e) {
+                log.error("店铺搜索索引加载失败", e);
+            }
+        }, "shop-search-load");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 按主键分批读取全部店铺的名称和商圈，重建索引
+     */
+    public void load() {
+        long begin = System.currentTimeMillis();
+        long lastId = 0;
+        // 加载期间收到的修改比读到的数据新，替换快照时保留
+        long version = index.version();
+        NGramIndex.Builder builder = new NGramIndex.Builder(LOAD_BATCH_SIZE);
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "name", "area")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_BATCH_SIZE));
+            for (Shop shop : shops) {
+                builder.add(shop.getId(), shop.getName(), shop.getArea());
+            }
+            if (shops.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        index.reset(builder, version);
+        ready = true;
+        log.info("店铺搜索索引加载完成，共{}个店铺，耗时{}ms", builder.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 查询名称或商圈包含keyword的店铺
+     * @return 排好序的店铺id；索引还没有建好时返回null，由调用方查询数据库
+     */
+    public List<Long> search(String keyword) {
+        return ready ? index.search(keyword) : null;
+    }
+
+    /**
+     * 同search，返回排序键（见NGramIndex.searchKeys），用于滚动分页
+     */
+    public long[] searchKeys(String keyword) {
+        return ready ? index.searchKeys(keyword) : null;
+    }
+
+    /**
+     * 新增店铺，或者修改了店铺的名称、商圈之后调用
+     */
+    public void update(Long id, String name, String area) {
+        TransactionHooks.afterCommit(() -> {
+            index.put(id, name, area);
+            redisCircuitBreaker.run(() -> stringRedisTemplate.convertAndSend(RedisConstants.SHOP_SEARCH_CHANNEL, id.toString()));
+        });
+    }
+
+    /**
+     * 收到其它节点的通知（本节点自己发出的也会收到，重复更新没有影响），从数据库读取最新的名称和商圈
+     */
+    public void onRemoteChange(String message) {
+        long id = Long.parseLong(message);
+        Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>().select("id", "name", "area").eq("id", id));
+        if (shop == null) {
+            index.remove(id);
+        } else {
+            index.put(id, shop.getName(), shop.getArea());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ready", ready);
+        map.putAll(index.stats());
+        return map;
+    }
+}
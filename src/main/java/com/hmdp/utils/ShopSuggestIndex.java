@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.SuggestionDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 搜索框联想（/shop/suggest）：店铺名称和商圈的PrefixTrie
+ *  1.店铺按 销量*100+评分 排序，商圈按其中店铺的销量之和排序，每个前缀保留前top-k个
+ *  2.在单独的线程里按id分批读取tb_shop构建一棵新树，完成后替换volatile引用，构建期间查询继续使用旧树
+ *  3.店铺的名称、商圈变化时（本节点或其它节点）标记为脏，下一次定时检查时重建；另外超过max-age也会重建，让销量和评分跟上变化
+ */
+@Slf4j
+@Component
+public class ShopSuggestIndex implements ApplicationRunner {
+
+    // 构建时每批读取的店铺数量
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    @Value("${hmdp.suggest.top-k:10}")
+    private int topK;
+    @Value("${hmdp.suggest.max-age:600}")
+    private long maxAgeSeconds;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    private volatile PrefixTrie<SuggestionDTO> trie;
+    private volatile boolean dirty;
+    private volatile LocalDateTime lastBuildTime;
+    private volatile long lastCostMillis;
+
+    // 构建用的单线程，排队的构建最多一个，多余的丢弃
+    private ThreadPoolExecutor buildExecutor;
+
+    @PostConstruct
+    public void init() {
+        trie = new PrefixTrie.Builder<SuggestionDTO>(topK).build();
+        buildExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1),
+                r -> {
+                    Thread thread = new Thread(r, "shop-suggest-build");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        buildExecutor.shutdownNow();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebuildAsync();
+    }
+
+    /**
+     * 以prefix开头的联想词，最多返回top-k个
+     */
+    public List<SuggestionDTO> suggest(String prefix, int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        return trie.suggest(prefix, Math.min(limit, topK));
+    }
+
+    /**
+     * 店铺的名称、商圈发生变化
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.suggest.refresh-interval:10000}")
+    public void refresh() {
+        LocalDateTime built = lastBuildTime;
+        if (dirty || (built != null && built.plusSeconds(maxAgeSeconds).isBefore(LocalDateTime.now()))) {
+            rebuildAsync();
+        }
+    }
+
+    public void rebuildAsync() {
+        buildExecutor.execute(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                log.error("联想词前缀树构建失败", e);
+            }
+        });
+    }
+
+    private void rebuild() {
+        // 先清除标记，构建期间发生的变化会在下一次重建
+        dirty = false;
+        long begin = System.currentTimeMillis();
+        PrefixTrie.Builder<SuggestionDTO> builder = new PrefixTrie.Builder<>(topK);
+        Map<String, long[]> areas = new HashMap<>();
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "name", "area", "sold", "score")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_BATCH_SIZE));
+            for (Shop shop : shops) {
+                long sold = shop.getSold() == null ? 0 : shop.getSold();
+                long score = shop.getScore() == null ? 0 : shop.getScore();
+                builder.add(shop.getName(), sold * 100 + score,
+                        new SuggestionDTO(shop.getName(), SuggestionDTO.TYPE_SHOP, shop.getId()));
+                if (shop.getArea() != null && !shop.getArea().trim().isEmpty()) {
+                    areas.computeIfAbsent(shop.getArea().trim(), k -> new long[1])[0] += sold;
+                }
+            }
+            if (shops.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        areas.forEach((area, sold) -> builder.add(area, sold[0], new SuggestionDTO(area, SuggestionDTO.TYPE_AREA, null)));
+        trie = builder.build();
+        lastBuildTime = LocalDateTime.now();
+        lastCostMillis = System.currentTimeMillis() - begin;
+        log.info("联想词前缀树构建完成，共{}个条目、{}个节点，耗时{}ms", trie.size(), trie.nodeCount(), lastCostMillis);
+    }
+
+    public Map<String, Object> stats() {
+        PrefixTrie<SuggestionDTO> current = trie;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("entries", current.size());
+        map.put("nodes", current.nodeCount());
+        map.put("dirty", dirty);
+        map.put("lastBuildTime", lastBuildTime);
+        map.put("lastCostMillis", lastCostMillis);
+        return map;
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 同一JVM内的请求合并（single-flight）：
+ * 同一个key的并发调用只有第一个线程真正执行loader，其它线程等待同一个future拿结果，
+ * 等待有上限，超时、被中断或者loader抛异常时，等待者改为执行fallback。
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    public V execute(K key, Supplier<V> loader, long timeout, TimeUnit unit, Supplier<V> fallback) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = calls.putIfAbsent(key, future);
+
+        // 1. 没有进行中的调用，当前线程负责加载
+        if (existing == null) {
+            try {
+                V value = loader.get();
+                future.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                // 加载完立即移除，之后的请求重新走缓存
+                calls.remove(key, future);
+            }
+        }
+
+        // 2. 已有进行中的调用，等待它的结果
+        try {
+            return existing.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fallback.get();
+        } catch (ExecutionException | TimeoutException e) {
+            return fallback.get();
+        }
+    }
+
+    /**
+     * 当前正在进行中的key数量
+     */
+    public int inFlight() {
+        return calls.size();
+    }
+}
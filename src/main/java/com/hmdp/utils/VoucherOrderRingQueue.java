@@ -0,0 +1,368 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀订单的进程内队列（hmdp.seckill.pipeline=ring时使用），比redis stream少一次网络往返，但进程崩溃会丢失还没有写入的订单：
+ *  1.请求线程把订单的几个字段写进RingBuffer预先分配的槽位，不创建对象、不加锁，队列满了返回false，由调用方撤销秒杀资格
+ *  2.单个写入线程攒批：够batch-size个，或者第一个订单等了flush-millis，就在一个事务里按优惠券合并扣减库存、
+ *    用JDBC批量INSERT写入（连接参数rewriteBatchedStatements=true时合并成多行INSERT），一次提交
+ *  3.批量写入失败时逐条写入，跳过重复的订单；数据库不可用时每隔retry-millis重试没写进去的订单，期间队列写满后新的秒杀请求直接失败
+ *  4.数据库库存不足的订单、重试max-attempts次还没写进去的订单写入死信stream（stream:seckill:orders:dead），
+ *    不再占着队列，等人工对账补单；redis也写不进去时只能记在错误日志里
+ *  5.停止时不再接收新订单，把已经进入队列的订单写完再退出，最多等待drain-timeout-millis，超时的同样转入死信
+ */
+@Slf4j
+@Component
+public class VoucherOrderRingQueue {
+
+    public static final String PIPELINE_RING = "ring";
+
+    private static final String INSERT_SQL =
+            "INSERT INTO tb_voucher_order (id, user_id, voucher_id, create_time) VALUES (?, ?, ?, ?)";
+    private static final String BATCH_STOCK_SQL =
+            "UPDATE tb_seckill_voucher SET stock = stock - ? WHERE voucher_id = ? AND stock >= ?";
+    private static final String STOCK_SQL =
+            "UPDATE tb_seckill_voucher SET stock = stock - 1 WHERE voucher_id = ? AND stock > 0";
+
+    @Value("${hmdp.seckill.pipeline:stream}")
+    private String pipeline;
+    @Value("${hmdp.seckill.ring.size:65536}")
+    private int size;
+    @Value("${hmdp.seckill.ring.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.seckill.ring.flush-millis:10}")
+    private long flushMillis;
+    @Value("${hmdp.seckill.ring.wait-strategy:sleeping}")
+    private String waitStrategy;
+    @Value("${hmdp.seckill.ring.drain-timeout-millis:10000}")
+    private long drainTimeoutMillis;
+    @Value("${hmdp.seckill.ring.max-attempts:30}")
+    private int maxAttempts;
+    @Value("${hmdp.seckill.ring.retry-millis:1000}")
+    private long retryMillis;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RingBuffer<OrderSlot> ring;
+    private TransactionTemplate transactionTemplate;
+    private Thread writer;
+    private volatile boolean running;
+    // 停止时等待写完的截止时间（System.nanoTime()）
+    private volatile long drainDeadline;
+    // 写入线程按优惠券合并库存时用的数组，以及一批中还要写入的序号，只有写入线程使用
+    private long[] voucherIds;
+    private long[] sequences;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+    private volatile long lastBatchSize;
+    private volatile long lastBatchMillis;
+
+    /**
+     * 队列中的一个订单，字段都是基本类型，槽位反复使用
+     */
+    public static class OrderSlot {
+        private long orderId;
+        private long userId;
+        private long voucherId;
+        private long createMillis;
+        // 领取序号后发现队列正在停止，订单已经退回给调用方，写入线程跳过
+        private boolean cancelled;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        ring = new RingBuffer<>(size, OrderSlot::new, RingBuffer.waitStrategy(waitStrategy));
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        voucherIds = new long[batchSize];
+        sequences = new long[batchSize];
+        running = true;
+        writer = new Thread(this::consume, "seckill-order-ring");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        running = false;
+        writer.join(drainTimeoutMillis + 1000);
+        long remaining = ring.cursor() - ring.released();
+        if (remaining > 0) {
+            log.error("秒杀订单队列停止时还有{}个订单没有写入数据库", remaining);
+        }
+    }
+
+    public boolean isEnabled() {
+        return PIPELINE_RING.equals(pipeline);
+    }
+
+    /**
+     * 放入一个订单
+     * @return 队列已满或者正在停止时返回false
+     */
+    public boolean publish(long orderId, long userId, long voucherId, long createMillis) {
+        long sequence = running ? ring.tryNext() : -1;
+        if (sequence < 0) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        // 领取序号之后再检查一次：停止时写入线程看到的cursor不包含这个序号就会退出，订单没人写；
+        // 这时把槽位标记为撤销后照常发布（写入线程还在时会跳过它），由调用方归还秒杀资格
+        boolean cancelled = !running;
+        OrderSlot slot = ring.get(sequence);
+        slot.orderId = orderId;
+        slot.userId = userId;
+        slot.voucherId = voucherId;
+        slot.createMillis = createMillis;
+        slot.cancelled = cancelled;
+        ring.publish(sequence);
+        if (cancelled) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // 写入线程：攒批、写入，处理完再释放槽位
+    private void consume() {
+        long flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        long next = 0;
+        while (true) {
+            // 1. 等待第一个订单；停止后没有已领取的序号就退出
+            long available = ring.waitFor(next, next + batchSize - 1, System.nanoTime() + flushNanos);
+            if (available < next) {
+                if (!running && (ring.cursor() < next || System.nanoTime() - drainDeadline >= 0)) {
+                    return;
+                }
+                continue;
+            }
+
+            // 2. 不够batch-size时最多再等flush-millis，停止时不再等待
+            long batchDeadline = System.nanoTime() + flushNanos;
+            long limit = next + batchSize - 1;
+            long end = available;
+            while (running && end < limit) {
+                long more = ring.waitFor(end + 1, limit, batchDeadline);
+                if (more <= end) {
+                    break;
+                }
+                end = more;
+            }
+
+            // 3. 写入（或者转入死信）后释放槽位
+            flush(next, end);
+            ring.release(end);
+            next = end + 1;
+        }
+    }
+
+    /**
+     * 写入[from, to]，失败的订单重试max-attempts次，停止时超过等待时间不再重试，写不进去的转入死信
+     */
+    private void flush(long from, long to) {
+        long begin = System.currentTimeMillis();
+        // 1. 要写入的序号，跳过已经撤销的订单
+        int count = 0;
+        for (long sequence = from; sequence <= to; sequence++) {
+            if (!ring.get(sequence).cancelled) {
+                sequences[count++] = sequence;
+            }
+        }
+
+        // 2. 批量写入
+        int total = count;
+        int remaining = count;
+        if (count > 0) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> writeBatch(total));
+                written.addAndGet(count);
+                remaining = 0;
+            } catch (RuntimeException e) {
+                fallbacks.incrementAndGet();
+                log.warn("秒杀订单批量写入失败，改为逐条写入：{}", e.getMessage());
+            }
+        }
+
+        // 3. 批量写入失败，逐条写入，只留下数据库不可用等原因没写进去的订单重试
+        for (int attempt = 1; remaining > 0; attempt++) {
+            int failed = 0;
+            for (int i = 0; i < remaining; i++) {
+                if (!writeOne(ring.get(sequences[i]))) {
+                    sequences[failed++] = sequences[i];
+                }
+            }
+            remaining = failed;
+            if (remaining == 0) {
+                break;
+            }
+            failures.incrementAndGet();
+            if (attempt >= maxAttempts || (!running && System.nanoTime() - drainDeadline >= 0) || !pause()) {
+                // 4. 放弃重试，转入死信，槽位交给后面的订单
+                for (int i = 0; i < remaining; i++) {
+                    deadLetter(ring.get(sequences[i]), "数据库写入失败");
+                }
+                break;
+            }
+        }
+        batches.incrementAndGet();
+        lastBatchSize = count;
+        lastBatchMillis = System.currentTimeMillis() - begin;
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(retryMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // 写入sequences中的前count个订单
+    private void writeBatch(int count) {
+        // 1. 按优惠券合并扣减库存，按id顺序更新，扣不了说明和redis不一致，抛出异常回滚
+        for (int i = 0; i < count; i++) {
+            voucherIds[i] = ring.get(sequences[i]).voucherId;
+        }
+        Arrays.sort(voucherIds, 0, count);
+        for (int i = 0; i < count; ) {
+            int j = i + 1;
+            while (j < count && voucherIds[j] == voucherIds[i]) {
+                j++;
+            }
+            int n = j - i;
+            if (jdbcTemplate.update(BATCH_STOCK_SQL, n, voucherIds[i], n) == 0) {
+                throw new IllegalStateException("优惠券" + voucherIds[i] + "的数据库库存不足" + n);
+            }
+            i = j;
+        }
+
+        // 2. JDBC批量插入，直接从槽位读取字段
+        jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                OrderSlot slot = ring.get(sequences[i]);
+                ps.setLong(1, slot.orderId);
+                ps.setLong(2, slot.userId);
+                ps.setLong(3, slot.voucherId);
+                ps.setTimestamp(4, new Timestamp(slot.createMillis));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return count;
+            }
+        });
+    }
+
+    /**
+     * 写入一个订单
+     * @return 是否不用再重试：写入成功、重复的订单、库存不足转入死信的订单返回true，数据库不可用等原因失败返回false
+     */
+    private boolean writeOne(OrderSlot slot) {
+        try {
+            Boolean inserted = transactionTemplate.execute(status -> {
+                if (jdbcTemplate.update(STOCK_SQL, slot.voucherId) == 0) {
+                    return false;
+                }
+                jdbcTemplate.update(INSERT_SQL, slot.orderId, slot.userId, slot.voucherId, new Timestamp(slot.createMillis));
+                return true;
+            });
+            if (Boolean.TRUE.equals(inserted)) {
+                written.incrementAndGet();
+            } else {
+                // 和redis不一致，重试也扣不了
+                deadLetter(slot, "数据库库存不足");
+            }
+            return true;
+        } catch (DuplicateKeyException e) {
+            duplicates.incrementAndGet();
+            log.warn("重复的秒杀订单{}，用户{}，优惠券{}", slot.orderId, slot.userId, slot.voucherId);
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("秒杀订单{}写入数据库失败：{}", slot.orderId, e.getMessage());
+            return false;
+        }
+    }
+
+    // 字段和stream消费者的死信一致，多一个失败原因
+    private void deadLetter(OrderSlot slot, String reason) {
+        deadLetters.incrementAndGet();
+        log.error("秒杀订单{}（用户{}，优惠券{}，下单时间{}）{}，转入死信stream",
+                slot.orderId, slot.userId, slot.voucherId, slot.createMillis, reason);
+        Map<String, String> value = new HashMap<>();
+        value.put("id", String.valueOf(slot.orderId));
+        value.put("userId", String.valueOf(slot.userId));
+        value.put("voucherId", String.valueOf(slot.voucherId));
+        value.put("time", String.valueOf(slot.createMillis));
+        value.put("reason", reason);
+        try {
+            stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DEAD_STREAM, value);
+        } catch (RuntimeException e) {
+            log.error("秒杀订单{}写入死信stream失败，只能根据日志补单", slot.orderId, e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", isEnabled());
+        if (ring == null) {
+            return map;
+        }
+        map.put("capacity", ring.capacity());
+        map.put("waitStrategy", waitStrategy);
+        map.put("batchSize", batchSize);
+        map.put("flushMillis", flushMillis);
+        map.put("queued", ring.cursor() - ring.released());
+        map.put("rejected", rejected.get());
+        map.put("written", written.get());
+        map.put("batches", batches.get());
+        map.put("fallbacks", fallbacks.get());
+        map.put("duplicates", duplicates.get());
+        map.put("failures", failures.get());
+        map.put("deadLetters", deadLetters.get());
+        map.put("lastBatchSize", lastBatchSize);
+        map.put("lastBatchMillis", lastBatchMillis);
+        return map;
+    }
+}
@@ -0,0 +1,516 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀订单stream（seckill.lua写入，每个优惠券或者库存分片一个）的消费者组，把订单批量写入数据库：
+ *  1.订单stream登记在stream:seckill:streams里，每个消费者线程定期刷新列表，轮流用XREADGROUP从每个stream读取最多batch-size条，
+ *    调用createVoucherOrders在一个事务里多行INSERT、按优惠券合并扣减库存，提交后XACK并XDEL，stream里只剩下还没有处理完的订单
+ *  2.批量写入失败（重复订单、数据库库存和redis不一致）时改为逐条写入，写入失败的订单不ACK，留在pending列表里
+ *  3.启动时、写入失败后隔一段时间、接管到订单后，从0开始重新读取自己pending列表里的订单，读完一遍就回去读新订单，
+ *    不会因为一条写不进去的订单停下来；其它消费者下线后留下的订单，空闲超过claim-idle-millis后由存活的消费者XCLAIM过来处理
+ *  4.按XPENDING中的投递次数，超过max-deliveries的订单写入死信stream后ACK，不再重试
+ *  5.秒杀结束、key过期后，订单都处理完的stream从列表里移除并删除
+ */
+@Slf4j
+@Component
+public class VoucherOrderStreamConsumer implements ApplicationRunner {
+
+    // 写入失败后，隔这么久（毫秒）再重新读取pending列表
+    private static final long RETRY_MILLIS = 1000;
+
+    @Value("${hmdp.seckill.stream.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.stream.group:order-writer}")
+    private String group;
+    @Value("${hmdp.seckill.stream.consumer-name:}")
+    private String consumerName;
+    @Value("${hmdp.seckill.stream.consumers:2}")
+    private int consumers;
+    @Value("${hmdp.seckill.stream.batch-size:200}")
+    private int batchSize;
+    @Value("${hmdp.seckill.stream.block-millis:100}")
+    private long blockMillis;
+    @Value("${hmdp.seckill.stream.claim-idle-millis:30000}")
+    private long claimIdleMillis;
+    @Value("${hmdp.seckill.stream.max-deliveries:10}")
+    private long maxDeliveries;
+    @Value("${hmdp.seckill.stream.refresh-millis:1000}")
+    private long refreshMillis;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    // 正在消费的stream，refreshMillis刷新一次
+    private volatile List<String> streams = Collections.emptyList();
+    private final AtomicLong nextRefresh = new AtomicLong();
+    // 已经创建了消费者组的stream
+    private final Set<String> groups = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicInteger activeConsumers = new AtomicInteger();
+    private volatile long lastBatchSize;
+    private volatile long lastBatchMillis;
+    // 最近一批中最早的订单从下单到写入数据库经过的时间
+    private volatile long lastLatencyMillis;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        if (StrUtil.isBlank(consumerName)) {
+            // 默认用 主机名-进程号，同一个节点重启后进程号会变，之前的pending由claim接管
+            consumerName = ManagementFactory.getRuntimeMXBean().getName().replace('@', '-');
+        }
+        running = true;
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(consumers, r -> {
+            Thread thread = new Thread(r, "seckill-order-consumer-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < consumers; i++) {
+            Consumer consumer = Consumer.from(group, consumerName + "-" + i);
+            executor.submit(() -> consume(consumer));
+        }
+    }
+
+    // 停止时等正在写入的一批完成再退出，没有ACK的订单留在pending里，下次启动时继续处理
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 登记一个优惠券的订单stream（每个库存分片一个），过期时间之后订单处理完就移除
+     * @param expireAt 过期时间（毫秒），和库存key一致
+     */
+    public void register(long voucherId, int shards, long expireAt) {
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+        for (int shard = 0; shard < shards; shard++) {
+            tuples.add(new DefaultTypedTuple<>(SeckillStockShards.streamKey(voucherId, shards, shard), (double) expireAt));
+        }
+        stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_ORDER_STREAMS_KEY, tuples);
+        // 本节点下一轮就开始读
+        nextRefresh.set(0);
+    }
+
+    private void consume(Consumer consumer) {
+        activeConsumers.incrementAndGet();
+        // 下一次从0读取自己pending列表的时间，启动时立即读取
+        long nextRecover = 0;
+        long nextClaim = 0;
+        try {
+            while (running) {
+                try {
+                    List<String> streams = activeStreams();
+                    if (streams.isEmpty()) {
+                        sleep(blockMillis);
+                        continue;
+                    }
+                    long now = System.currentTimeMillis();
+
+                    // 1. 处理自己pending列表里的订单，每个stream读完一遍就继续，还有没写进去的等下一轮
+                    if (now >= nextRecover) {
+                        nextRecover = Long.MAX_VALUE;
+                        for (String stream : streams) {
+                            if (!recover(consumer, stream)) {
+                                nextRecover = now + RETRY_MILLIS;
+                            }
+                        }
+                    }
+
+                    // 2. 定期接管其它消费者超时没有ACK的订单，接管到了下一轮就处理
+                    if (now >= nextClaim) {
+                        nextClaim = now + claimIdleMillis / 2;
+                        for (String stream : streams) {
+                            if (claim(consumer, stream)) {
+                                nextRecover = 0;
+                            }
+                        }
+                    }
+
+                    // 3. 读取新的订单：只有一个stream时没有新订单最多阻塞block-millis；多个时轮流读取，都没有新订单再等待
+                    StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+                    if (streams.size() == 1) {
+                        options = options.block(Duration.ofMillis(blockMillis));
+                    }
+                    boolean idle = true;
+                    for (String stream : streams) {
+                        List<MapRecord<String, Object, Object>> records = read(consumer, options, stream, ReadOffset.lastConsumed());
+                        if (records == null || records.isEmpty()) {
+                            continue;
+                        }
+                        idle = false;
+                        if (!process(stream, records)) {
+                            nextRecover = Math.min(nextRecover, System.currentTimeMillis() + RETRY_MILLIS);
+                        }
+                    }
+                    if (idle && streams.size() > 1) {
+                        sleep(blockMillis);
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    log.error("秒杀订单消费者{}处理失败", consumer.getName(), e);
+                    nextRecover = 0;
+                    sleep(RETRY_MILLIS);
+                }
+            }
+        } finally {
+            activeConsumers.decrementAndGet();
+        }
+    }
+
+    // 登记的stream列表，多个线程共用，refreshMillis刷新一次；顺便移除过期并且已经处理完的stream
+    private List<String> activeStreams() {
+        long now = System.currentTimeMillis();
+        long next = nextRefresh.get();
+        if (now < next || !nextRefresh.compareAndSet(next, now + refreshMillis)) {
+            return streams;
+        }
+        Set<String> expired = stringRedisTemplate.opsForZSet().rangeByScore(RedisConstants.SECKILL_ORDER_STREAMS_KEY, 0, now);
+        if (expired != null) {
+            for (String stream : expired) {
+                Long size = stringRedisTemplate.opsForStream().size(stream);
+                if (size == null || size == 0) {
+                    stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_STREAMS_KEY, stream);
+                    stringRedisTemplate.delete(stream);
+                    groups.remove(stream);
+                }
+            }
+        }
+        Set<String> members = stringRedisTemplate.opsForZSet().range(RedisConstants.SECKILL_ORDER_STREAMS_KEY, 0, -1);
+        List<String> list = members == null ? Collections.emptyList() : new ArrayList<>(members);
+        for (String stream : list) {
+            createGroupIfAbsent(stream);
+        }
+        streams = list;
+        return list;
+    }
+
+    /**
+     * 从0开始把自己pending列表里的订单读一遍重新写入（XREADGROUP指定id时只返回已经投递给自己的订单，投递次数加一），
+     * XPENDING中投递次数超过max-deliveries的转入死信stream
+     * @return 是否全部处理完
+     */
+    private boolean recover(Consumer consumer, String stream) {
+        boolean complete = true;
+        String from = "0";
+        while (running) {
+            List<MapRecord<String, Object, Object>> records = read(consumer,
+                    StreamReadOptions.empty().count(batchSize), stream, ReadOffset.from(from));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            from = records.get(records.size() - 1).getId().getValue();
+
+            // 1. 这批订单的投递次数
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream, consumer,
+                    Range.closed(records.get(0).getId().getValue(), from), (long) records.size());
+            Map<RecordId, Long> deliveries = new HashMap<>();
+            for (PendingMessage message : pending) {
+                deliveries.put(message.getId(), message.getTotalDeliveryCount());
+            }
+
+            // 2. 投递太多次的转入死信，其余的重新写入
+            List<MapRecord<String, Object, Object>> retry = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                Long count = deliveries.get(record.getId());
+                if (count != null && count > maxDeliveries) {
+                    deadLetter(stream, record.getId(), record.getValue());
+                } else {
+                    retry.add(record);
+                }
+            }
+            if (!retry.isEmpty() && !process(stream, retry)) {
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    // StreamOffset的可变参数是泛型数组，每次只读一个stream，在这里统一压掉unchecked警告
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> read(Consumer consumer, StreamReadOptions options,
+                                                       String stream, ReadOffset offset) {
+        return stringRedisTemplate.opsForStream().read(consumer, options, StreamOffset.create(stream, offset));
+    }
+
+    /**
+     * 写入一批订单，写入成功或确认不需要再写的ACK并删除
+     * @return 是否全部处理完，有订单因为数据库不可用没有写入时返回false
+     */
+    private boolean process(String stream, List<MapRecord<String, Object, Object>> records) {
+        long begin = System.currentTimeMillis();
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        List<RecordId> done = new ArrayList<>(records.size());
+        Map<Long, RecordId> recordIds = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder order = parse(record.getValue());
+            if (order == null) {
+                // pending里已经被删除的消息内容为空，格式不对的消息也无法处理，直接确认
+                log.warn("无效的秒杀订单消息：{} {}", record.getId(), record.getValue());
+                done.add(record.getId());
+                continue;
+            }
+            orders.add(order);
+            recordIds.put(order.getId(), record.getId());
+        }
+
+        boolean complete = true;
+        if (!orders.isEmpty()) {
+            try {
+                // 1. 批量写入
+                written.addAndGet(voucherOrderService.createVoucherOrders(orders));
+                done.addAll(recordIds.values());
+            } catch (Exception e) {
+                // 2. 批量写入失败，逐条写入，找出有问题的订单
+                fallbacks.incrementAndGet();
+                log.warn("秒杀订单批量写入失败，改为逐条写入：{}", e.getMessage());
+                for (VoucherOrder order : orders) {
+                    try {
+                        voucherOrderService.createVoucherOrder(order);
+                        written.incrementAndGet();
+                        done.add(recordIds.get(order.getId()));
+                    } catch (DuplicateKeyException ex) {
+                        duplicates.incrementAndGet();
+                        log.warn("重复的秒杀订单{}，用户{}，优惠券{}", order.getId(), order.getUserId(), order.getVoucherId());
+                        done.add(recordIds.get(order.getId()));
+                    } catch (Exception ex) {
+                        complete = false;
+                        log.error("秒杀订单{}写入数据库失败", order.getId(), ex);
+                    }
+                }
+            }
+            lastLatencyMillis = begin - toMillis(orders.get(0).getCreateTime());
+        }
+
+        // 3. ACK并删除，stream中只保留还没有处理完的订单
+        acknowledge(stream, done);
+        batches.incrementAndGet();
+        lastBatchSize = records.size();
+        lastBatchMillis = System.currentTimeMillis() - begin;
+        return complete;
+    }
+
+    /**
+     * 接管其它消费者空闲超过claim-idle-millis的订单，投递次数过多的转入死信stream
+     * @return 是否接管到了订单，接管到的订单在自己的pending列表里，下一轮从0开始读取处理
+     */
+    private boolean claim(Consumer consumer, String stream) {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream, group, Range.unbounded(), batchSize);
+        List<RecordId> idle = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() < claimIdleMillis) {
+                continue;
+            }
+            if (message.getTotalDeliveryCount() > maxDeliveries) {
+                deadLetter(stream, message.getId(), null);
+            } else if (!message.getConsumerName().equals(consumer.getName())) {
+                idle.add(message.getId());
+            }
+        }
+        if (idle.isEmpty()) {
+            return false;
+        }
+        // XCLAIM带上最小空闲时间，多个消费者同时接管同一条时只有一个能成功
+        List<?> ids = stringRedisTemplate.execute((RedisCallback<List<?>>) connection -> connection.streamCommands().xClaimJustId(
+                stream.getBytes(StandardCharsets.UTF_8), group, consumer.getName(),
+                RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(claimIdleMillis)).ids(idle.toArray(new RecordId[0]))));
+        int count = ids == null ? 0 : ids.size();
+        claimed.addAndGet(count);
+        if (count > 0) {
+            log.info("消费者{}接管了{}个超时未确认的秒杀订单", consumer.getName(), count);
+        }
+        return count > 0;
+    }
+
+    // value为空时从stream中读取订单内容
+    private void deadLetter(String stream, RecordId id, Map<Object, Object> value) {
+        if (value == null) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                    stream, Range.closed(id.getValue(), id.getValue()), RedisZSetCommands.Limit.limit().count(1));
+            value = records == null || records.isEmpty() ? null : records.get(0).getValue();
+        }
+        if (value != null && !value.isEmpty()) {
+            Map<Object, Object> letter = new HashMap<>(value);
+            letter.put("stream", stream);
+            letter.put("originId", id.getValue());
+            stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DEAD_STREAM, letter);
+        }
+        deadLetters.incrementAndGet();
+        log.error("秒杀订单消息{} {}投递超过{}次，转入死信stream", stream, id, maxDeliveries);
+        List<RecordId> ids = new ArrayList<>();
+        ids.add(id);
+        acknowledge(stream, ids);
+    }
+
+    private void acknowledge(String stream, List<RecordId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        RecordId[] array = ids.toArray(new RecordId[0]);
+        stringRedisTemplate.opsForStream().acknowledge(stream, group, array);
+        stringRedisTemplate.opsForStream().delete(stream, array);
+    }
+
+    // XGROUP CREATE ... MKSTREAM，stream还不存在时一起创建；组已经存在时redis返回BUSYGROUP错误，忽略
+    private void createGroupIfAbsent(String stream) {
+        if (groups.contains(stream)) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(StandardCharsets.UTF_8),
+                    stream.getBytes(StandardCharsets.UTF_8),
+                    group.getBytes(StandardCharsets.UTF_8),
+                    "0".getBytes(StandardCharsets.UTF_8),
+                    "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+        } catch (RedisSystemException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+        groups.add(stream);
+    }
+
+    private static VoucherOrder parse(Map<Object, Object> value) {
+        try {
+            long time = Long.parseLong(value.get("time").toString());
+            return new VoucherOrder()
+                    .setId(Long.valueOf(value.get("id").toString()))
+                    .setUserId(Long.valueOf(value.get("userId").toString()))
+                    .setVoucherId(Long.valueOf(value.get("voucherId").toString()))
+                    .setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * 消费情况：配置、写入数量，以及所有stream中还没有处理完的订单数量和其中最早的一条等待的时间（积压）
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("consumers", consumers);
+        map.put("activeConsumers", activeConsumers.get());
+        map.put("batchSize", batchSize);
+        map.put("blockMillis", blockMillis);
+        map.put("written", written.get());
+        map.put("batches", batches.get());
+        map.put("fallbacks", fallbacks.get());
+        map.put("duplicates", duplicates.get());
+        map.put("claimed", claimed.get());
+        map.put("deadLetters", deadLetters.get());
+        map.put("failures", failures.get());
+        map.put("lastBatchSize", lastBatchSize);
+        map.put("lastBatchMillis", lastBatchMillis);
+        map.put("lastLatencyMillis", lastLatencyMillis);
+        map.put("streams", streams.size());
+        try {
+            long length = 0;
+            long pending = 0;
+            long lagMillis = 0;
+            for (String stream : streams) {
+                Long size = stringRedisTemplate.opsForStream().size(stream);
+                length += size == null ? 0 : size;
+                if (groups.contains(stream)) {
+                    PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, group);
+                    pending += summary == null ? 0 : summary.getTotalPendingMessages();
+                }
+                // 处理完的订单都被删除了，stream中最早的一条就是等待最久的订单
+                List<MapRecord<String, Object, Object>> oldest = stringRedisTemplate.opsForStream().range(
+                        stream, Range.unbounded(), RedisZSetCommands.Limit.limit().count(1));
+                if (oldest != null && !oldest.isEmpty()) {
+                    lagMillis = Math.max(lagMillis, System.currentTimeMillis() - oldest.get(0).getId().getTimestamp());
+                }
+            }
+            map.put("streamLength", length);
+            map.put("pending", pending);
+            map.put("lagMillis", lagMillis);
+        } catch (RuntimeException e) {
+            map.put("error", e.getMessage());
+        }
+        return map;
+    }
+}
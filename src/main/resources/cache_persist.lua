@@ -0,0 +1,7 @@
+-- 热点店铺升级：去掉缓存信封上的TTL；空值占位（空字符串）保留原来的TTL，不能变成永久的
+-- KEYS[1]：店铺缓存key cache:shop:{id}
+-- 返回：1 已经去掉TTL；0 key不存在、没有TTL或者是空值占位
+if redis.call('strlen', KEYS[1]) == 0 then
+    return 0
+end
+return redis.call('persist', KEYS[1])
@@ -0,0 +1,13 @@
+-- 获取分布式锁：不存在时写入持有者标识并设置租期；已经是本节点持有（上次释放失败）时续期
+-- KEYS[1]：锁的key
+-- ARGV[1]：持有者标识（节点id）
+-- ARGV[2]：租期（毫秒）
+-- 返回：成功返回nil，被其它节点持有时返回剩余的租期（毫秒），没有租期时返回-1
+if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then
+    return nil
+end
+if redis.call('get', KEYS[1]) == ARGV[1] then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return nil
+end
+return redis.call('pttl', KEYS[1])
@@ -0,0 +1,10 @@
+-- 释放分布式锁：只有持有者才能删除，删除后通知等待这个锁的节点
+-- KEYS[1]：锁的key
+-- ARGV[1]：持有者标识（节点id）
+-- ARGV[2]：释放通知的频道，消息内容是锁的key
+if redis.call('get', KEYS[1]) == ARGV[1] then
+    redis.call('del', KEYS[1])
+    redis.call('publish', ARGV[2], KEYS[1])
+    return 1
+end
+return 0
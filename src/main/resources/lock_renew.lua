@@ -0,0 +1,8 @@
+-- 看门狗续期：仍然是持有者时重新设置租期
+-- KEYS[1]：锁的key
+-- ARGV[1]：持有者标识（节点id）
+-- ARGV[2]：租期（毫秒）
+if redis.call('get', KEYS[1]) == ARGV[1] then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
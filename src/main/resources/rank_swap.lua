@@ -0,0 +1,9 @@
+-- 重建完成后用临时key替换正式的排行榜：RENAME后去掉临时key上的过期时间，两个key在同一个槽位（{typeId}）
+-- KEYS[1]：临时key
+-- KEYS[2]：正式的key
+if redis.call('exists', KEYS[1]) == 0 then
+    return 0
+end
+redis.call('rename', KEYS[1], KEYS[2])
+redis.call('persist', KEYS[2])
+return 1
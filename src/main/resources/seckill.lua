@@ -0,0 +1,55 @@
+-- 秒杀下单：时间、库存、一人一单都在一个脚本里原子地检查，通过后扣减库存、记录下单用户，并把订单写入stream（可选）
+-- 所有key都带同一个hash tag，在redis集群中落在同一个槽位
+-- KEYS[1]：库存hash seckill:stock:{voucherId}，字段stock、begin、end（开始、结束时间的毫秒时间戳）；分片时是用户所属的分片 seckill:stock:{voucherId:分片}
+-- KEYS[2]：已下单用户的set seckill:order:{voucherId}；分片时是用户所属分片的 seckill:order:{voucherId:分片}
+-- KEYS[3]：订单stream stream:seckill:orders:{voucherId}（分片时是这个分片的），由后台的消费者组批量写入数据库；不传时由调用方自己处理订单（进程内队列）
+-- ARGV[1]：用户id
+-- ARGV[2]：优惠券id
+-- ARGV[3]：当前时间（毫秒）
+-- ARGV[4]：订单id（RedisIdWorker.nextId，调用方事先生成）
+-- ARGV[5]：1表示分片库存，本分片卖完时仍然记下用户并返回{6}，由调用方到其它分片扣减（seckill_steal.lua）
+-- ARGV[6]~ARGV[9]：库存、开始时间、结束时间、key的过期时间（毫秒时间戳），只在库存hash不存在时用来初始化，可以不传
+-- 返回：{0} 成功；{1} 未开始；{2} 已结束；{3} 库存不足；{4} 重复下单；{5} 库存还没有加载，需要带上ARGV[6]~ARGV[9]重试；
+--      {6} 本分片卖完，已经记下用户，需要到其它分片扣减
+if redis.call('exists', KEYS[1]) == 0 then
+    if ARGV[9] == nil then
+        return {5}
+    end
+    redis.call('hmset', KEYS[1], 'stock', ARGV[6], 'begin', ARGV[7], 'end', ARGV[8])
+    redis.call('pexpireat', KEYS[1], ARGV[9])
+end
+
+local voucher = redis.call('hmget', KEYS[1], 'stock', 'begin', 'end')
+local now = tonumber(ARGV[3])
+if now < tonumber(voucher[2]) then
+    return {1}
+end
+if now > tonumber(voucher[3]) then
+    return {2}
+end
+local stock = tonumber(voucher[1])
+if stock <= 0 and ARGV[5] ~= '1' then
+    return {3}
+end
+if redis.call('sismember', KEYS[2], ARGV[1]) == 1 then
+    return {4}
+end
+
+redis.call('sadd', KEYS[2], ARGV[1])
+-- 下单用户的set和库存hash一起过期
+if redis.call('pttl', KEYS[2]) == -1 then
+    local ttl = redis.call('pttl', KEYS[1])
+    if ttl > 0 then
+        redis.call('pexpire', KEYS[2], ttl)
+    end
+end
+if stock <= 0 then
+    return {6}
+end
+redis.call('hincrby', KEYS[1], 'stock', -1)
+
+-- 和资格判断在同一个脚本里写入stream，不会出现扣了库存却没有订单的情况
+if KEYS[3] ~= nil then
+    redis.call('xadd', KEYS[3], '*', 'id', ARGV[4], 'userId', ARGV[1], 'voucherId', ARGV[2], 'time', ARGV[3])
+end
+return {0}
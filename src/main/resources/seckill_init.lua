@@ -0,0 +1,10 @@
+-- 初始化秒杀库存hash，已经存在时不覆盖（seckill.lua可能已经按数据库初始化并扣减过库存）
+-- KEYS[1]：库存hash seckill:stock:{voucherId}，分片时是 seckill:stock:{voucherId:分片}
+-- ARGV[1]~ARGV[4]：库存、开始时间、结束时间、key的过期时间（毫秒时间戳）
+-- 返回：1 已初始化；0 已经存在
+if redis.call('exists', KEYS[1]) == 1 then
+    return 0
+end
+redis.call('hmset', KEYS[1], 'stock', ARGV[1], 'begin', ARGV[2], 'end', ARGV[3])
+redis.call('pexpireat', KEYS[1], ARGV[4])
+return 1
@@ -0,0 +1,9 @@
+-- 撤销一次秒杀资格：订单没能放进进程内队列时，归还库存并移除下单记录（已经生成的订单id作废）
+-- KEYS[1]：库存hash seckill:stock:{voucherId}
+-- KEYS[2]：已下单用户的set seckill:order:{voucherId}
+-- ARGV[1]：用户id
+if redis.call('srem', KEYS[2], ARGV[1]) == 1 then
+    redis.call('hincrby', KEYS[1], 'stock', 1)
+    return 1
+end
+return 0
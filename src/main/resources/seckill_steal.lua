@@ -0,0 +1,35 @@
+-- 分片库存的工作窃取：用户所属的分片卖完后（seckill.lua已经记下了用户），到其它分片扣减库存，通过后把订单写入这个分片的stream（可选）
+-- 每次窃取按订单id记在这个分片的窃取记录里，结果未知（redis超时）时由seckill_unsteal.lua在同一个槽位上确定结果
+-- KEYS[1]：其它分片的库存hash seckill:stock:{voucherId:分片}
+-- KEYS[2]：这个分片的窃取记录hash seckill:stolen:{voucherId:分片}，订单id -> 1 已经扣减；0 已经作废（对账时写入）
+-- KEYS[3]：这个分片的订单stream stream:seckill:orders:{voucherId:分片}，不传时由调用方自己处理订单（进程内队列）
+-- ARGV[1]~ARGV[4]：用户id、优惠券id、当前时间（毫秒）、订单id，和seckill.lua相同
+-- ARGV[5]~ARGV[8]：这个分片的库存、开始时间、结束时间、key的过期时间（毫秒时间戳），只在库存hash不存在时用来初始化，可以不传
+-- 返回：{0} 成功；{3} 这个分片也卖完了；{5} 库存还没有加载，需要带上ARGV[5]~ARGV[8]重试；{7} 这次窃取已经被对账作废
+if redis.call('hexists', KEYS[2], ARGV[4]) == 1 then
+    return {7}
+end
+
+if redis.call('exists', KEYS[1]) == 0 then
+    if ARGV[8] == nil then
+        return {5}
+    end
+    redis.call('hmset', KEYS[1], 'stock', ARGV[5], 'begin', ARGV[6], 'end', ARGV[7])
+    redis.call('pexpireat', KEYS[1], ARGV[8])
+end
+
+if tonumber(redis.call('hget', KEYS[1], 'stock')) <= 0 then
+    return {3}
+end
+redis.call('hincrby', KEYS[1], 'stock', -1)
+-- 窃取记录和库存一起过期
+redis.call('hset', KEYS[2], ARGV[4], '1')
+local ttl = redis.call('pttl', KEYS[1])
+if ttl > 0 then
+    redis.call('pexpire', KEYS[2], ttl)
+end
+
+if KEYS[3] ~= nil then
+    redis.call('xadd', KEYS[3], '*', 'id', ARGV[4], 'userId', ARGV[1], 'voucherId', ARGV[2], 'time', ARGV[3])
+end
+return {0}
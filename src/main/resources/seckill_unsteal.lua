@@ -0,0 +1,21 @@
+-- 确定一次窃取的结果（seckill_steal.lua超时后对账，或者订单没能放进进程内队列需要归还），和窃取在同一个槽位上原子执行
+-- KEYS[1]：被窃取分片的库存hash seckill:stock:{voucherId:分片}
+-- KEYS[2]：这个分片的窃取记录hash seckill:stolen:{voucherId:分片}
+-- ARGV[1]：订单id
+-- ARGV[2]：1表示已经扣减时归还库存；0表示已经扣减时保留（订单已经写入stream）
+-- 返回：1 已经扣减并且保留，订单有效；0 没有扣减或者已经归还，这次窃取作废（之后才到达的窃取脚本直接返回{7}），调用方移除下单记录
+local state = redis.call('hget', KEYS[2], ARGV[1])
+if state == '1' then
+    if ARGV[2] ~= '1' then
+        return 1
+    end
+    if redis.call('exists', KEYS[1]) == 1 then
+        redis.call('hincrby', KEYS[1], 'stock', 1)
+    end
+end
+redis.call('hset', KEYS[2], ARGV[1], '0')
+local ttl = redis.call('pttl', KEYS[1])
+if ttl > 0 then
+    redis.call('pexpire', KEYS[2], ttl)
+end
+return 0
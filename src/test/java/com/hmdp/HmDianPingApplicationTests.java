@@ -1,14 +1,39 @@
 package com.hmdp;
 
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.GeoGridIndex;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RingBuffer;
+import com.hmdp.utils.ShopCacheWarmer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -19,6 +44,18 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
 
     @Test
     void testSaveShop() throws InterruptedException {
@@ -26,6 +63,180 @@ class HmDianPingApplicationTests {
         shopService.saveShop2Redis(1L, 10L);
     }
 
+    @Test
+    void testWarmUp() {
+        // 手动执行一次店铺缓存预热（启动时和定时任务也会执行）
+        LocalDateTime begin = LocalDateTime.now();
+        shopCacheWarmer.warmUp(null);
+        Map<String, Object> stats = shopCacheWarmer.stats();
+        System.out.println(stats);
+        Assertions.assertEquals(stats.get("total"), stats.get("warmed"));
+
+        // 预热的店铺都在redis中，逻辑过期时间晚于下一次定时预热
+        List<Shop> shops = shopService.query().orderByAsc("id").last("limit 100").list();
+        Assertions.assertFalse(shops.isEmpty());
+        for (Shop shop : shops) {
+            byte[] raw = binaryRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+            Assertions.assertNotNull(raw, "店铺" + shop.getId() + "没有预热");
+            RedisData<Shop> redisData = cacheCodec.decodeRedisData(raw, Shop.class);
+            Assertions.assertEquals(shop.getId(), redisData.getData().getId());
+            Assertions.assertTrue(redisData.getExpireTime().isAfter(begin.plusSeconds(shopCacheWarmer.getIntervalSeconds())),
+                    "店铺" + shop.getId() + "在下一次预热之前就会过期");
+        }
+    }
+
+    /**
+     * 附近店铺查询：本地网格索引 vs redis GEO，店铺数量用 -Dgeo.bench.sizes=100000,1000000,10000000 指定
+     * （1000万个点本地索引约需400MB堆内存，redis约需1GB）
+     */
+    @Test
+    @Tag("benchmark")
+    void testGeoBenchmark() {
+        String key = "shop:geo:bench";
+        int queries = 2000;
+        for (String size : System.getProperty("geo.bench.sizes", "100000,1000000").split(",")) {
+            int n = Integer.parseInt(size.trim());
+            // 在上海附近约50公里见方的范围内随机生成店铺
+            Random random = new Random(n);
+            GeoGridIndex.Builder builder = new GeoGridIndex.Builder(n);
+            stringRedisTemplate.delete(key);
+            for (int from = 0; from < n; from += 10000) {
+                int to = Math.min(n, from + 10000);
+                double[][] points = new double[to - from][];
+                for (int i = from; i < to; i++) {
+                    double x = 121.2 + random.nextDouble() * 0.5;
+                    double y = 31.0 + random.nextDouble() * 0.5;
+                    points[i - from] = new double[]{x, y};
+                    builder.add(i + 1, 1, x, y);
+                }
+                int base = from;
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = 0; i < points.length; i++) {
+                        connection.geoAdd(key.getBytes(StandardCharsets.UTF_8), new Point(points[i][0], points[i][1]),
+                                String.valueOf(base + i + 1).getBytes(StandardCharsets.UTF_8));
+                    }
+                    return null;
+                });
+            }
+            GeoGridIndex index = new GeoGridIndex(1024);
+            index.reset(builder);
+
+            long begin = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                index.nearest(1L, 121.2 + random.nextDouble() * 0.5, 31.0 + random.nextDouble() * 0.5, -1, 0, 11, 5000);
+            }
+            long local = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                stringRedisTemplate.opsForGeo().radius(key,
+                        new Circle(new Point(121.2 + random.nextDouble() * 0.5, 31.0 + random.nextDouble() * 0.5),
+                                new Distance(1000, RedisGeoCommands.DistanceUnit.METERS)),
+                        RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(11));
+            }
+            long redis = System.nanoTime() - begin;
+            System.out.println("shops: " + n + ", local: " + local / queries / 1000 + "us/query, redis: "
+                    + redis / queries / 1000 + "us/query");
+        }
+        stringRedisTemplate.delete(key);
+    }
+
+    // 订单队列基准测试的槽位
+    private static class OrderSlot {
+        private long orderId;
+        private long userId;
+        private long voucherId;
+    }
+
+    /**
+     * 秒杀订单队列：预分配槽位的RingBuffer vs 每个订单new一个VoucherOrder放进ArrayBlockingQueue，
+     * 多个生产者、一个消费者每次最多取500个，先预热3轮再测5轮，输出每轮的吞吐量；
+     * 生产者数量和等待策略用 -Dqueue.bench.producers=4 -Dqueue.bench.wait-strategy=sleeping 指定
+     */
+    @Test
+    @Tag("benchmark")
+    void testOrderQueueBenchmark() throws Exception {
+        int producers = Integer.getInteger("queue.bench.producers", 4);
+        String waitStrategy = System.getProperty("queue.bench.wait-strategy", "sleeping");
+        int perProducer = 1_000_000;
+        long total = (long) perProducer * producers;
+        int batch = 500;
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        for (int round = 0; round < 8; round++) {
+            // 1. RingBuffer
+            RingBuffer<OrderSlot> ring = new RingBuffer<>(65536, OrderSlot::new, RingBuffer.waitStrategy(waitStrategy));
+            long begin = System.nanoTime();
+            for (int p = 0; p < producers; p++) {
+                long base = (long) p * perProducer;
+                pool.submit(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        long sequence;
+                        while ((sequence = ring.tryNext()) < 0) {
+                            Thread.yield();
+                        }
+                        OrderSlot slot = ring.get(sequence);
+                        slot.orderId = base + i;
+                        slot.userId = i;
+                        slot.voucherId = 1;
+                        ring.publish(sequence);
+                    }
+                });
+            }
+            long next = 0;
+            long ringSum = 0;
+            while (next < total) {
+                long available = ring.waitFor(next, next + batch - 1, System.nanoTime() + 10_000_000L);
+                for (long sequence = next; sequence <= available; sequence++) {
+                    ringSum += ring.get(sequence).orderId;
+                }
+                if (available >= next) {
+                    ring.release(available);
+                    next = available + 1;
+                }
+            }
+            long ringNanos = System.nanoTime() - begin;
+
+            // 2. ArrayBlockingQueue
+            ArrayBlockingQueue<VoucherOrder> queue = new ArrayBlockingQueue<>(65536);
+            begin = System.nanoTime();
+            for (int p = 0; p < producers; p++) {
+                long base = (long) p * perProducer;
+                pool.submit(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        try {
+                            queue.put(new VoucherOrder().setId(base + i).setUserId((long) i).setVoucherId(1L));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+            }
+            List<VoucherOrder> buffer = new ArrayList<>(batch);
+            long taken = 0;
+            long queueSum = 0;
+            while (taken < total) {
+                VoucherOrder order = queue.poll(10, TimeUnit.MILLISECONDS);
+                if (order == null) {
+                    continue;
+                }
+                buffer.add(order);
+                queue.drainTo(buffer, batch - 1);
+                for (VoucherOrder o : buffer) {
+                    queueSum += o.getId();
+                }
+                taken += buffer.size();
+                buffer.clear();
+            }
+            long queueNanos = System.nanoTime() - begin;
+
+            Assertions.assertEquals(queueSum, ringSum);
+            System.out.printf("%s round %d, producers: %d, ring(%s): %.1fM/s, blocking queue: %.1fM/s%n",
+                    round < 3 ? "warmup" : "measure", round, producers, waitStrategy,
+                    total * 1e3 / ringNanos, total * 1e3 / queueNanos);
+        }
+        pool.shutdown();
+    }
+
     // 为测试准备一个线程池，给500个线程
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
@@ -0,0 +1,252 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * DistributedLock：两个实例模拟两个节点（持有者标识不同），连接同一个内嵌redis，释放通知和RedisConfig中一样经过pub/sub
+ */
+class DistributedLockTest {
+
+    private static final String KEY = "lock:test";
+
+    private static EmbeddedRedis redis;
+
+    private RedisMessageListenerContainer container;
+    private final List<DistributedLock> locks = new ArrayList<>();
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @BeforeAll
+    static void startRedis() {
+        redis = EmbeddedRedis.start();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redis.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        redis.template().delete(KEY);
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redis.connectionFactory());
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        pool.shutdownNow();
+        locks.forEach(DistributedLock::destroy);
+        container.destroy();
+    }
+
+    @Test
+    void testReentrantAndExclusiveBetweenNodes() {
+        DistributedLock a = node(30000, 16);
+        DistributedLock b = node(30000, 16);
+
+        Assertions.assertTrue(a.tryLock(KEY));
+        Assertions.assertTrue(a.tryLock(KEY));
+        Assertions.assertEquals(a.stats().get("owner"), redis.template().opsForValue().get(KEY));
+        Assertions.assertFalse(b.tryLock(KEY));
+
+        // 重入时只减少本地计数，最后一次才删除redis中的锁
+        a.unlock(KEY);
+        Assertions.assertNotNull(redis.template().opsForValue().get(KEY));
+        Assertions.assertFalse(b.tryLock(KEY));
+        a.unlock(KEY);
+        Assertions.assertNull(redis.template().opsForValue().get(KEY));
+
+        Assertions.assertTrue(b.tryLock(KEY));
+        Assertions.assertEquals(b.stats().get("owner"), redis.template().opsForValue().get(KEY));
+        b.unlock(KEY);
+        Assertions.assertEquals(1L, a.stats().get("reentered"));
+        Assertions.assertThrows(IllegalMonitorStateException.class, () -> a.unlock(KEY));
+    }
+
+    @Test
+    void testReleaseChecksOwner() {
+        DistributedLock a = node(30000, 16);
+        Assertions.assertTrue(a.tryLock(KEY));
+        // 租期丢失后锁被其它节点拿到，释放时不能删掉别人的锁
+        redis.template().opsForValue().set(KEY, "other");
+        a.unlock(KEY);
+        Assertions.assertEquals("other", redis.template().opsForValue().get(KEY));
+        Assertions.assertEquals(0, a.stats().get("active"));
+    }
+
+    @Test
+    void testRemoteWaiterWokenByReleaseNotification() throws Exception {
+        DistributedLock a = node(30000, 16);
+        DistributedLock b = node(30000, 16);
+        Assertions.assertTrue(a.tryLock(KEY));
+
+        long begin = System.currentTimeMillis();
+        Future<Boolean> waiter = pool.submit(() -> {
+            boolean locked = b.tryLock(KEY, 10, TimeUnit.SECONDS);
+            if (locked) {
+                b.unlock(KEY);
+            }
+            return locked;
+        });
+        Thread.sleep(200);
+        a.unlock(KEY);
+
+        // 租期还有30秒，靠释放通知唤醒
+        Assertions.assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(System.currentTimeMillis() - begin < 3000);
+        Assertions.assertTrue((Long) b.stats().get("wakeups") >= 1);
+    }
+
+    @Test
+    void testLocalHandoffUpToMaxHandoffs() throws Exception {
+        DistributedLock a = node(30000, 2);
+        DistributedLock b = node(30000, 16);
+        Assertions.assertTrue(a.tryLock(KEY));
+
+        // 三个本地线程排队：交接两次后必须释放redis中的锁，第三个线程重新获取
+        List<Future<Boolean>> workers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            workers.add(pool.submit(() -> {
+                boolean locked = a.tryLock(KEY, 10, TimeUnit.SECONDS);
+                if (locked) {
+                    Assertions.assertFalse(b.tryLock(KEY));
+                    Thread.sleep(50);
+                    a.unlock(KEY);
+                }
+                return locked;
+            }));
+        }
+        await(() -> queueLength(a) == 3);
+        a.unlock(KEY);
+        for (Future<Boolean> worker : workers) {
+            Assertions.assertTrue(worker.get(5, TimeUnit.SECONDS));
+        }
+
+        Map<String, Object> stats = a.stats();
+        Assertions.assertEquals(2L, stats.get("handedOff"));
+        Assertions.assertEquals(2L, stats.get("acquired"));
+        Assertions.assertNull(redis.template().opsForValue().get(KEY));
+        Assertions.assertEquals(0, stats.get("active"));
+    }
+
+    @Test
+    void testWatchdogRenewsAndClearsOrphan() throws Exception {
+        DistributedLock a = node(300, 16);
+        Assertions.assertTrue(a.tryLock(KEY));
+        // 持有超过租期，看门狗续期
+        Thread.sleep(700);
+        Assertions.assertEquals(a.stats().get("owner"), redis.template().opsForValue().get(KEY));
+        Assertions.assertTrue((Long) a.stats().get("renewed") >= 2);
+
+        // 本地没有线程持有、redis中还是本节点的锁（交接的目标走了），看门狗释放
+        localLock(a).unlock();
+        await(() -> redis.template().opsForValue().get(KEY) == null);
+    }
+
+    @Test
+    void testOrphanReleasedWithoutWatchdog() throws Exception {
+        // 租期很长，看门狗20秒才检查一次
+        DistributedLock a = node(60000, 16);
+        Assertions.assertTrue(a.tryLock(KEY));
+        Object lock = ((Map<?, ?>) ReflectionTestUtils.getField(a, "locks")).get(KEY);
+        ReentrantLock local = localLock(a);
+
+        // 本地锁还被其它线程持有时不是孤儿
+        pool.submit(() -> ReflectionTestUtils.invokeMethod(a, "releaseIfOrphaned", KEY, lock)).get(5, TimeUnit.SECONDS);
+        Assertions.assertNotNull(redis.template().opsForValue().get(KEY));
+
+        // 释放者决定交接、交接的目标却等待超时走了：redis中的锁是本节点的，本地没人持有也没人等待，立即释放
+        local.unlock();
+        ReflectionTestUtils.invokeMethod(a, "releaseIfOrphaned", KEY, lock);
+        Assertions.assertNull(redis.template().opsForValue().get(KEY));
+        Assertions.assertEquals(1L, a.stats().get("orphaned"));
+        Assertions.assertFalse(local.isLocked());
+    }
+
+    @Test
+    void testHandoffRaceNeverLeavesLockHeld() throws Exception {
+        // 租期很长，看门狗不会在测试期间介入
+        DistributedLock a = node(60000, 16);
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            Assertions.assertTrue(a.tryLock(KEY));
+            CountDownLatch start = new CountDownLatch(1);
+            long waitMicros = 50 + random.nextInt(400);
+            Future<?> waiter = pool.submit(() -> {
+                start.await();
+                if (a.tryLock(KEY, waitMicros, TimeUnit.MICROSECONDS)) {
+                    a.unlock(KEY);
+                }
+                return null;
+            });
+            start.countDown();
+            spin(50 + random.nextInt(400));
+            a.unlock(KEY);
+            waiter.get(5, TimeUnit.SECONDS);
+            // 交接的目标恰好超时，没人持有时redis中的锁也要立即释放
+            Assertions.assertNull(redis.template().opsForValue().get(KEY), "第" + i + "次");
+            Assertions.assertEquals(0, a.stats().get("active"));
+        }
+    }
+
+    private DistributedLock node(long leaseMillis, int maxHandoffs) {
+        DistributedLock lock = new DistributedLock();
+        ReflectionTestUtils.setField(lock, "leaseMillis", leaseMillis);
+        ReflectionTestUtils.setField(lock, "maxHandoffs", maxHandoffs);
+        ReflectionTestUtils.setField(lock, "stringRedisTemplate", redis.template());
+        lock.init();
+        container.addMessageListener((message, pattern) ->
+                lock.onReleased(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.LOCK_CHANNEL));
+        locks.add(lock);
+        return lock;
+    }
+
+    private static ReentrantLock localLock(DistributedLock lock) {
+        Map<?, ?> map = (Map<?, ?>) ReflectionTestUtils.getField(lock, "locks");
+        return (ReentrantLock) ReflectionTestUtils.getField(map.get(KEY), "local");
+    }
+
+    private static int queueLength(DistributedLock lock) {
+        return localLock(lock).getQueueLength();
+    }
+
+    private static void spin(long micros) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        while (System.nanoTime() < deadline) {
+            // 忙等，比sleep更容易卡在等待超时的边上
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * GeoGridIndex的查询结果和暴力计算所有点的距离再排序的结果一致
+ */
+class GeoGridIndexTest {
+
+    private static final double MIN_X = 121.2;
+    private static final double MIN_Y = 31.0;
+    private static final double SPAN = 0.2;
+
+    // 暴力计算用的全部点：id -> {type, x, y}
+    private final Map<Long, double[]> points = new HashMap<>();
+
+    @Test
+    void testNearestMatchesBruteForce() {
+        Random random = new Random(1);
+        GeoGridIndex index = build(random, 20000);
+        for (int i = 0; i < 200; i++) {
+            double x = MIN_X + random.nextDouble() * SPAN;
+            double y = MIN_Y + random.nextDouble() * SPAN;
+            Long type = i % 2 == 0 ? null : (long) random.nextInt(5);
+            int count = 1 + random.nextInt(30);
+            double maxRadius = 200 + random.nextDouble() * 5000;
+            assertHits(bruteForce(type, x, y, -1, 0, count, maxRadius),
+                    index.nearest(type, x, y, -1, 0, count, maxRadius));
+        }
+    }
+
+    @Test
+    void testNearestPaging() {
+        Random random = new Random(2);
+        GeoGridIndex index = build(random, 5000);
+        double x = MIN_X + SPAN / 2;
+        double y = MIN_Y + SPAN / 2;
+        List<GeoGridIndex.Hit> expected = bruteForce(3L, x, y, -1, 0, Integer.MAX_VALUE, 3000);
+        List<GeoGridIndex.Hit> paged = new ArrayList<>();
+        double lastDistance = -1;
+        long lastId = 0;
+        while (true) {
+            List<GeoGridIndex.Hit> page = index.nearest(3L, x, y, lastDistance, lastId, 10, 3000);
+            if (page.isEmpty()) {
+                break;
+            }
+            paged.addAll(page);
+            GeoGridIndex.Hit last = page.get(page.size() - 1);
+            lastDistance = last.getDistance();
+            lastId = last.getId();
+        }
+        assertHits(expected, paged);
+    }
+
+    @Test
+    void testOverlayAndCompact() {
+        Random random = new Random(3);
+        GeoGridIndex index = build(random, 5000);
+        // 移动、删除、新增一部分点，还在覆盖表里时和合并进快照后查询结果都一致
+        for (long id = 1; id <= 300; id++) {
+            if (id % 3 == 0) {
+                index.remove(id);
+                points.remove(id);
+            } else {
+                put(index, id, random);
+            }
+        }
+        for (long id = 10001; id <= 10100; id++) {
+            put(index, id, random);
+        }
+        assertRandomQueries(index, random);
+        index.compact();
+        assertRandomQueries(index, random);
+        Assertions.assertEquals(points.size(), index.size());
+    }
+
+    @Test
+    void testResetKeepsChangesDuringLoad() {
+        Random random = new Random(4);
+        GeoGridIndex index = build(random, 1000);
+        // 加载之前的修改已经包含在全量数据里
+        index.put(1, 1, MIN_X + SPAN / 2, MIN_Y + SPAN / 2);
+
+        // 全量加载开始：读到的是id=2、3修改前的数据
+        long version = index.version();
+        GeoGridIndex.Builder builder = new GeoGridIndex.Builder(16);
+        builder.add(1, 1, MIN_X, MIN_Y);
+        builder.add(2, 1, MIN_X + SPAN, MIN_Y + SPAN);
+        builder.add(3, 1, MIN_X + SPAN, MIN_Y);
+        // 加载期间id=2移动到了中心点，id=3被删除
+        index.put(2, 1, MIN_X + SPAN / 2, MIN_Y + SPAN / 2);
+        index.remove(3);
+        index.reset(builder, version);
+
+        List<GeoGridIndex.Hit> hits = index.nearest(null, MIN_X + SPAN / 2, MIN_Y + SPAN / 2, -1, 0, 10, 100000);
+        Assertions.assertEquals(2, hits.size());
+        Assertions.assertEquals(2, hits.get(0).getId());
+        Assertions.assertEquals(0, hits.get(0).getDistance(), 1e-6);
+        Assertions.assertEquals(1, hits.get(1).getId());
+        Assertions.assertEquals(GeoGridIndex.distance(MIN_X + SPAN / 2, MIN_Y + SPAN / 2, MIN_X, MIN_Y),
+                hits.get(1).getDistance(), 1e-6);
+    }
+
+    @Test
+    void testWithinMatchesBruteForce() {
+        Random random = new Random(5);
+        GeoGridIndex index = build(random, 10000);
+        for (int i = 0; i < 50; i++) {
+            double x = MIN_X + random.nextDouble() * SPAN;
+            double y = MIN_Y + random.nextDouble() * SPAN;
+            double radius = 100 + random.nextDouble() * 2000;
+            assertHits(bruteForce(null, x, y, -1, 0, Integer.MAX_VALUE, radius), index.within(null, x, y, radius));
+        }
+    }
+
+    private GeoGridIndex build(Random random, int n) {
+        GeoGridIndex.Builder builder = new GeoGridIndex.Builder(n);
+        for (long id = 1; id <= n; id++) {
+            double[] point = randomPoint(random);
+            points.put(id, point);
+            builder.add(id, (long) point[0], point[1], point[2]);
+        }
+        // 阈值足够大，不触发后台合并
+        GeoGridIndex index = new GeoGridIndex(Integer.MAX_VALUE);
+        index.reset(builder);
+        return index;
+    }
+
+    private void put(GeoGridIndex index, long id, Random random) {
+        double[] point = randomPoint(random);
+        points.put(id, point);
+        index.put(id, (long) point[0], point[1], point[2]);
+    }
+
+    private static double[] randomPoint(Random random) {
+        return new double[]{random.nextInt(5), MIN_X + random.nextDouble() * SPAN, MIN_Y + random.nextDouble() * SPAN};
+    }
+
+    private void assertRandomQueries(GeoGridIndex index, Random random) {
+        for (int i = 0; i < 50; i++) {
+            double x = MIN_X + random.nextDouble() * SPAN;
+            double y = MIN_Y + random.nextDouble() * SPAN;
+            Long type = i % 2 == 0 ? null : (long) random.nextInt(5);
+            assertHits(bruteForce(type, x, y, -1, 0, 20, 5000), index.nearest(type, x, y, -1, 0, 20, 5000));
+        }
+    }
+
+    private List<GeoGridIndex.Hit> bruteForce(Long type, double x, double y, double lastDistance, long lastId,
+                                              int count, double maxRadius) {
+        List<GeoGridIndex.Hit> hits = new ArrayList<>();
+        points.forEach((id, point) -> {
+            if (type != null && (long) point[0] != type) {
+                return;
+            }
+            double distance = GeoGridIndex.distance(x, y, point[1], point[2]);
+            if (distance <= maxRadius && (distance > lastDistance || (distance == lastDistance && id > lastId))) {
+                hits.add(new GeoGridIndex.Hit(id, distance));
+            }
+        });
+        hits.sort(Comparator.comparingDouble(GeoGridIndex.Hit::getDistance).thenComparingLong(GeoGridIndex.Hit::getId));
+        return hits.size() > count ? hits.subList(0, count) : hits;
+    }
+
+    private static void assertHits(List<GeoGridIndex.Hit> expected, List<GeoGridIndex.Hit> actual) {
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            Assertions.assertEquals(expected.get(i).getDistance(), actual.get(i).getDistance(), 1e-6);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HotKeyDetector：并发升级不超过max-hot-keys，降级回调失败时保留热点、下次衰减重试
+ */
+class HotKeyDetectorTest {
+
+    @Test
+    void testConcurrentPromotionsRespectMaxHotKeys() throws Exception {
+        Set<Long> promoted = ConcurrentHashMap.newKeySet();
+        HotKeyDetector detector = new HotKeyDetector(1024, 1, 1, 0, 10, promoted::add, id -> { });
+        // 阈值为1，每次访问都满足升级条件，16个线程同时争抢10个名额
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < 16; t++) {
+            long base = t * 1000L;
+            pool.submit(() -> {
+                start.await();
+                for (long key = base; key < base + 1000; key++) {
+                    detector.record(key);
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        Assertions.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(10, promoted.size());
+        Assertions.assertEquals(10, detector.stats().get("hotKeyCount"));
+        Assertions.assertEquals(10L, detector.stats().get("promotions"));
+    }
+
+    @Test
+    void testFailedDemotionRetriedOnNextDecay() {
+        boolean[] redisDown = {true};
+        Set<Long> demoted = ConcurrentHashMap.newKeySet();
+        HotKeyDetector detector = new HotKeyDetector(1024, 1, 4, 2, 1, id -> { }, id -> {
+            if (redisDown[0]) {
+                throw new IllegalStateException("redis不可用");
+            }
+            demoted.add(id);
+        });
+        for (int i = 0; i < 4; i++) {
+            detector.record(1);
+        }
+        Assertions.assertTrue(detector.isHot(1));
+
+        // 冷却后降级失败：仍然是热点，名额也还占着
+        detector.decay();
+        detector.decay();
+        Assertions.assertTrue(detector.isHot(1));
+        for (int i = 0; i < 4; i++) {
+            detector.record(2);
+        }
+        Assertions.assertFalse(detector.isHot(2));
+
+        // 恢复后下一次衰减降级，名额释放
+        redisDown[0] = false;
+        detector.decay();
+        Assertions.assertFalse(detector.isHot(1));
+        Assertions.assertTrue(demoted.contains(1L));
+        for (int i = 0; i < 4; i++) {
+            detector.record(3);
+        }
+        Assertions.assertTrue(detector.isHot(3));
+    }
+}
@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * NGramIndex的查询结果和逐个contains校验的结果一致，按排序键滚动分页不重复、不遗漏
+ */
+class NGramIndexTest {
+
+    private static final String[] WORDS = {"茶", "餐厅", "火锅", "小吃", "咖啡", "Cafe", "面馆", "烧烤", "KTV", "海底捞"};
+    private static final String[] AREAS = {"大关", "拱宸桥", "北城天地", "运河上街", "武林广场"};
+
+    // 暴力校验用的全部文档：id -> {name, area}
+    private final Map<Long, String[]> docs = new LinkedHashMap<>();
+
+    @Test
+    void testSearchMatchesBruteForce() {
+        Random random = new Random(1);
+        NGramIndex index = build(random, 3000);
+        for (String keyword : keywords()) {
+            Assertions.assertEquals(bruteForce(keyword), index.search(keyword), keyword);
+        }
+    }
+
+    @Test
+    void testRanking() {
+        NGramIndex index = new NGramIndex(Integer.MAX_VALUE);
+        index.reset(new NGramIndex.Builder(4)
+                .add(4, "大关火锅", "火锅街")
+                .add(3, "火锅店", "大关")
+                .add(2, "火锅", "大关")
+                .add(1, "小吃", "火锅城"));
+        // 名称完全相同 > 名称前缀 > 名称包含 > 商圈包含
+        Assertions.assertEquals(Arrays.asList(2L, 3L, 4L, 1L), index.search("火锅"));
+        // 大小写不敏感
+        index.put(5, "KTV", "大关");
+        Assertions.assertEquals(Arrays.asList(5L), index.search("ktv"));
+        Assertions.assertTrue(index.search("").isEmpty());
+        Assertions.assertTrue(index.search("不存在").isEmpty());
+    }
+
+    @Test
+    void testOverlayAndCompact() {
+        Random random = new Random(2);
+        NGramIndex index = build(random, 2000);
+        for (long id = 1; id <= 200; id++) {
+            if (id % 4 == 0) {
+                index.remove(id);
+                docs.remove(id);
+            } else {
+                put(index, id, random);
+            }
+        }
+        for (long id = 5001; id <= 5050; id++) {
+            put(index, id, random);
+        }
+        for (String keyword : keywords()) {
+            Assertions.assertEquals(bruteForce(keyword), index.search(keyword), keyword);
+        }
+        index.compact();
+        for (String keyword : keywords()) {
+            Assertions.assertEquals(bruteForce(keyword), index.search(keyword), keyword);
+        }
+    }
+
+    @Test
+    void testScrollPaging() {
+        Random random = new Random(3);
+        NGramIndex index = build(random, 3000);
+        for (String keyword : keywords()) {
+            List<Long> expected = index.search(keyword);
+            Assertions.assertEquals(expected, scroll(index, keyword, 7, -1));
+        }
+    }
+
+    @Test
+    void testScrollPagingWithConcurrentUpdate() {
+        Random random = new Random(4);
+        NGramIndex index = build(random, 2000);
+        String keyword = "火锅";
+        List<Long> before = index.search(keyword);
+        // 翻到第二页时第一个店铺改名，不再匹配：后面的页不受影响，不重复、不遗漏
+        long changed = before.get(0);
+        List<Long> paged = scroll(index, keyword, 10, 1, () -> index.put(changed, "改名了", "没有"));
+        Assertions.assertEquals(before, paged);
+        Assertions.assertEquals(paged.size(), paged.stream().distinct().count());
+    }
+
+    @Test
+    void testResetKeepsChangesDuringLoad() {
+        NGramIndex index = new NGramIndex(Integer.MAX_VALUE);
+        index.reset(new NGramIndex.Builder(4).add(1, "火锅", "大关").add(2, "面馆", "大关"));
+        // 加载之前的修改已经包含在全量数据里
+        index.put(1, "老火锅", "大关");
+
+        long version = index.version();
+        NGramIndex.Builder builder = new NGramIndex.Builder(4)
+                .add(1, "老火锅", "大关")
+                .add(2, "面馆", "大关")
+                .add(3, "咖啡", "大关");
+        // 加载期间id=2改名，id=3被删除
+        index.put(2, "火锅面馆", "大关");
+        index.remove(3);
+        index.reset(builder, version);
+
+        Assertions.assertEquals(Arrays.asList(2L, 1L), index.search("火锅"));
+        Assertions.assertTrue(index.search("咖啡").isEmpty());
+        Assertions.assertEquals(Integer.valueOf(2), index.stats().get("overlay"));
+    }
+
+    private NGramIndex build(Random random, int n) {
+        NGramIndex.Builder builder = new NGramIndex.Builder(n);
+        for (long id = 1; id <= n; id++) {
+            String[] doc = randomDoc(random);
+            docs.put(id, doc);
+            builder.add(id, doc[0], doc[1]);
+        }
+        NGramIndex index = new NGramIndex(Integer.MAX_VALUE);
+        index.reset(builder);
+        return index;
+    }
+
+    private void put(NGramIndex index, long id, Random random) {
+        String[] doc = randomDoc(random);
+        docs.put(id, doc);
+        index.put(id, doc[0], doc[1]);
+    }
+
+    private static String[] randomDoc(Random random) {
+        StringBuilder name = new StringBuilder();
+        int words = 1 + random.nextInt(3);
+        for (int i = 0; i < words; i++) {
+            name.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return new String[]{name.toString(), AREAS[random.nextInt(AREAS.length)]};
+    }
+
+    private static List<String> keywords() {
+        List<String> keywords = new ArrayList<>(Arrays.asList(WORDS));
+        keywords.addAll(Arrays.asList(AREAS));
+        keywords.addAll(Arrays.asList("火", "锅", "锅小", "cafe", "CAFE", "ktv", "海底", "桥", "不存在", "餐厅火锅"));
+        return keywords;
+    }
+
+    // 逐个文档校验，按 名称完全相同 > 名称前缀 > 名称包含 > 商圈包含、id 排序
+    private List<Long> bruteForce(String keyword) {
+        String query = keyword.toLowerCase(Locale.ROOT);
+        return docs.entrySet().stream()
+                .filter(e -> rank(query, e.getValue()) >= 0)
+                .sorted(Comparator.comparingInt((Map.Entry<Long, String[]> e) -> rank(query, e.getValue()))
+                        .thenComparingLong(Map.Entry::getKey))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static int rank(String query, String[] doc) {
+        String name = doc[0].toLowerCase(Locale.ROOT);
+        String area = doc[1].toLowerCase(Locale.ROOT);
+        if (name.equals(query)) {
+            return 0;
+        }
+        if (name.startsWith(query)) {
+            return 1;
+        }
+        if (name.contains(query)) {
+            return 2;
+        }
+        return area.contains(query) ? 3 : -1;
+    }
+
+    private static List<Long> scroll(NGramIndex index, String keyword, int pageSize, int updateAtPage) {
+        return scroll(index, keyword, pageSize, updateAtPage, () -> { });
+    }
+
+    // 和ShopServiceImpl.scrollByName一样：每页重新查询，游标是上一页最后一个排序键，二分查找它之后的位置
+    private static List<Long> scroll(NGramIndex index, String keyword, int pageSize, int updateAtPage, Runnable update) {
+        List<Long> ids = new ArrayList<>();
+        Long cursor = null;
+        int page = 0;
+        while (true) {
+            if (page++ == updateAtPage) {
+                update.run();
+            }
+            long[] keys = index.searchKeys(keyword);
+            int from = 0;
+            if (cursor != null) {
+                int pos = Arrays.binarySearch(keys, cursor);
+                from = pos >= 0 ? pos + 1 : -pos - 1;
+            }
+            int to = Math.min(from + pageSize, keys.length);
+            for (int i = from; i < to; i++) {
+                ids.add(NGramIndex.idOf(keys[i]));
+            }
+            if (to >= keys.length) {
+                return ids;
+            }
+            cursor = keys[to - 1];
+        }
+    }
+}
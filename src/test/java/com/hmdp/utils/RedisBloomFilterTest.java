@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.LongStream;
+
+/**
+ * RedisBloomFilter：两个实例模拟两个节点，定时同步补上丢失的新增通知、补写没写进redis的id
+ */
+class RedisBloomFilterTest {
+
+    private static EmbeddedRedis redis;
+
+    @BeforeAll
+    static void startRedis() {
+        redis = EmbeddedRedis.start();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redis.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        redis.template().delete(RedisConstants.BLOOM_KEY + "test");
+    }
+
+    @Test
+    void testSyncMergesIdsMissedByNotification() {
+        RedisBloomFilter a = filter(redis.template());
+        a.rebuild(consumer -> LongStream.rangeClosed(1, 100).forEach(consumer::accept));
+        RedisBloomFilter b = filter(redis.template());
+        Assertions.assertTrue(b.loadFromRedis());
+
+        // 节点a新增，通知丢了：节点b的镜像没有这个id，同步后才有
+        a.put(1000);
+        Assertions.assertFalse(b.mightContain(1000));
+        b.sync();
+        Assertions.assertTrue(b.mightContain(1000));
+        Assertions.assertTrue(b.mightContain(50));
+    }
+
+    @Test
+    void testUnsyncedIdsRetriedOnSync() {
+        FlakyRedisTemplate template = new FlakyRedisTemplate();
+        RedisBloomFilter a = filter(template);
+        a.rebuild(consumer -> { });
+
+        // redis不可用：本地已经生效，记下来等同步
+        template.down = true;
+        a.putLocal(2000);
+        Assertions.assertThrows(RedisConnectionFailureException.class, () -> a.putRedis(2000));
+        a.retryLater(2000);
+        Assertions.assertTrue(a.mightContain(2000));
+        Assertions.assertThrows(RedisConnectionFailureException.class, a::sync);
+        Assertions.assertEquals(1, a.stats().get("unsynced"));
+
+        // 恢复后同步补写，其它节点从redis加载时能看到
+        template.down = false;
+        a.sync();
+        Assertions.assertEquals(0, a.stats().get("unsynced"));
+        RedisBloomFilter b = filter(redis.template());
+        Assertions.assertTrue(b.loadFromRedis());
+        Assertions.assertTrue(b.mightContain(2000));
+    }
+
+    private static RedisBloomFilter filter(StringRedisTemplate template) {
+        return new RedisBloomFilter("test", 1000, 0.01, template);
+    }
+
+    /**
+     * down时管道写入连接失败的StringRedisTemplate
+     */
+    private static class FlakyRedisTemplate extends StringRedisTemplate {
+        private volatile boolean down;
+
+        FlakyRedisTemplate() {
+            super(redis.connectionFactory());
+        }
+
+        @Override
+        public List<Object> executePipelined(RedisCallback<?> action) {
+            if (down) {
+                throw new RedisConnectionFailureException("redis不可用");
+            }
+            return super.executePipelined(action);
+        }
+    }
+}
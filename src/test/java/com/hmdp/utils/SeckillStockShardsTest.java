@@ -0,0 +1,358 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分片库存：portion、home、窃取顺序的计算，以及在内嵌redis上并发秒杀时不超卖、刚好卖完，窃取结果未知时的对账
+ */
+class SeckillStockShardsTest {
+
+    private static final long VOUCHER_ID = 10;
+
+    private static EmbeddedRedis redis;
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(16);
+
+    @BeforeAll
+    static void startRedis() {
+        redis = EmbeddedRedis.start();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redis.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        redis.template().execute((RedisCallback<Object>) connection -> {
+            connection.flushAll();
+            return null;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void testPortionSumsToStock() {
+        for (int shards = 1; shards <= SeckillStockShards.MAX_SHARDS; shards++) {
+            for (int stock = 0; stock <= 300; stock++) {
+                int sum = 0;
+                int min = Integer.MAX_VALUE;
+                int max = 0;
+                for (int shard = 0; shard < shards; shard++) {
+                    int portion = SeckillStockShards.portion(stock, shards, shard);
+                    sum += portion;
+                    min = Math.min(min, portion);
+                    max = Math.max(max, portion);
+                }
+                Assertions.assertEquals(stock, sum, stock + "/" + shards);
+                Assertions.assertTrue(max - min <= 1, stock + "/" + shards);
+            }
+        }
+        Assertions.assertEquals(1, SeckillStockShards.count(null));
+        Assertions.assertEquals(1, SeckillStockShards.count(0));
+        Assertions.assertEquals(SeckillStockShards.MAX_SHARDS, SeckillStockShards.count(1000));
+    }
+
+    @Test
+    void testHomeIsUniform() {
+        int shards = 8;
+        int[] counts = new int[shards];
+        // 连续的用户id
+        for (long userId = 1; userId <= 80000; userId++) {
+            counts[SeckillStockShards.home(userId, shards)]++;
+        }
+        for (int count : counts) {
+            Assertions.assertTrue(Math.abs(count - 10000) < 500, Arrays.toString(counts));
+        }
+        Assertions.assertEquals(0, SeckillStockShards.home(12345, 1));
+    }
+
+    @Test
+    void testStealOrderAndSlots() {
+        // 从用户所属分片的下一个开始依次往后，每个其它分片只去一次
+        List<Integer> order = new ArrayList<>();
+        for (int i = 1; i < 8; i++) {
+            order.add(SeckillStockShards.stealShard(5, 8, i));
+        }
+        Assertions.assertEquals(Arrays.asList(6, 7, 0, 1, 2, 3, 4), order);
+
+        // 同一个分片的key在同一个槽位，脚本可以在集群中执行；不同分片分散在不同槽位
+        Set<Integer> slots = new HashSet<>();
+        for (int shard = 0; shard < 8; shard++) {
+            int slot = SlotHash.getSlot(SeckillStockShards.stockKey(VOUCHER_ID, 8, shard));
+            Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStockShards.orderKey(VOUCHER_ID, 8, shard)));
+            Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStockShards.stolenKey(VOUCHER_ID, 8, shard)));
+            Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStockShards.streamKey(VOUCHER_ID, 8, shard)));
+            slots.add(slot);
+        }
+        Assertions.assertEquals(8, slots.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testConcurrentBuyersSellExactlyStock() throws Exception {
+        int shards = 8;
+        int stock = 101;
+        VoucherOrderServiceImpl service = service(voucher(stock, shards), redis.template());
+
+        // 一半买家都属于分片0，它很快卖完，这些买家都要去其它分片窃取
+        List<Long> users = new ArrayList<>();
+        for (long userId = 1; users.size() < 200; userId++) {
+            if (SeckillStockShards.home(userId, shards) == 0) {
+                users.add(userId);
+            }
+        }
+        for (long userId = 100001; userId <= 100200; userId++) {
+            users.add(userId);
+        }
+        List<Future<Result>> results = new ArrayList<>();
+        for (long userId : users) {
+            results.add(pool.submit(() -> buy(service, userId)));
+        }
+        int succeeded = 0;
+        for (Future<Result> result : results) {
+            Result r = result.get(10, TimeUnit.SECONDS);
+            if (r.getSuccess()) {
+                succeeded++;
+            } else {
+                Assertions.assertEquals("库存不足！", r.getErrorMsg());
+            }
+        }
+
+        // 不超卖、刚好卖完
+        Assertions.assertEquals(stock, succeeded);
+        Set<String> buyers = new HashSet<>();
+        Set<String> orderIds = new HashSet<>();
+        long stolen = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            Assertions.assertEquals("0", redis.template().opsForHash()
+                    .get(SeckillStockShards.stockKey(VOUCHER_ID, shards, shard), "stock"));
+            for (MapRecord<String, Object, Object> record : redis.template().opsForStream()
+                    .range(SeckillStockShards.streamKey(VOUCHER_ID, shards, shard), Range.unbounded())) {
+                Assertions.assertTrue(buyers.add((String) record.getValue().get("userId")));
+                Assertions.assertTrue(orderIds.add((String) record.getValue().get("id")));
+            }
+            stolen += redis.template().opsForHash().size(SeckillStockShards.stolenKey(VOUCHER_ID, shards, shard));
+        }
+        Assertions.assertEquals(stock, buyers.size());
+        Assertions.assertTrue(stolen > 0);
+        // 没抢到的用户已经从下单记录里移除，只剩买到的
+        long recorded = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            recorded += redis.template().opsForSet().size(SeckillStockShards.orderKey(VOUCHER_ID, shards, shard));
+        }
+        Assertions.assertEquals(stock, recorded);
+
+        // 买到的用户不能再买，后来的用户直接库存不足
+        long buyer = Long.parseLong(buyers.iterator().next());
+        Assertions.assertEquals("用户已经购买过了", buy(service, buyer).getErrorMsg());
+        Assertions.assertEquals("库存不足！", buy(service, 999999L).getErrorMsg());
+
+        // 本节点确认所有分片都卖完后不再执行脚本，买过的用户仍然是重复下单
+        AtomicLongArray empty = ((Map<Long, AtomicLongArray>) ReflectionTestUtils.getField(service, "emptyShards")).get(VOUCHER_ID);
+        for (int shard = 0; shard < shards; shard++) {
+            empty.set(shard, Long.MAX_VALUE);
+        }
+        Assertions.assertEquals("用户已经购买过了", buy(service, buyer).getErrorMsg());
+        Assertions.assertEquals("库存不足！", buy(service, 999998L).getErrorMsg());
+    }
+
+    @Test
+    void testUnknownStealReconciled() {
+        int shards = 4;
+        SeckillStealReconciler reconciler = reconciler(redis.template());
+        String stockKey = SeckillStockShards.stockKey(VOUCHER_ID, shards, 1);
+        String orderKey = SeckillStockShards.orderKey(VOUCHER_ID, shards, 0);
+        redis.template().opsForHash().put(stockKey, "stock", "5");
+
+        // 窃取已经执行、只是结果丢了：保留，订单有效
+        redis.template().opsForSet().add(orderKey, "1");
+        Assertions.assertEquals(Arrays.asList(0L), steal(shards, 1, 1, 101));
+        Assertions.assertEquals(Boolean.TRUE, reconciler.resolve(VOUCHER_ID, 1, 101, shards, 0, 1, false));
+        Assertions.assertTrue(redis.template().opsForSet().isMember(orderKey, "1"));
+        Assertions.assertEquals("4", redis.template().opsForHash().get(stockKey, "stock"));
+
+        // 窃取还没到达redis：作废、移除下单记录，之后才到达的窃取不再扣减
+        redis.template().opsForSet().add(orderKey, "2");
+        Assertions.assertEquals(Boolean.FALSE, reconciler.resolve(VOUCHER_ID, 2, 102, shards, 0, 1, false));
+        Assertions.assertFalse(redis.template().opsForSet().isMember(orderKey, "2"));
+        Assertions.assertEquals(Arrays.asList(7L), steal(shards, 1, 2, 102));
+        Assertions.assertEquals("4", redis.template().opsForHash().get(stockKey, "stock"));
+
+        // 用户重新抢是新的订单id，不受作废标记影响
+        Assertions.assertEquals(Arrays.asList(0L), steal(shards, 1, 2, 103));
+        Assertions.assertEquals("3", redis.template().opsForHash().get(stockKey, "stock"));
+    }
+
+    @Test
+    void testGiveBackIsIdempotent() {
+        int shards = 4;
+        SeckillStealReconciler reconciler = reconciler(redis.template());
+        String stockKey = SeckillStockShards.stockKey(VOUCHER_ID, shards, 2);
+        String orderKey = SeckillStockShards.orderKey(VOUCHER_ID, shards, 0);
+        redis.template().opsForHash().put(stockKey, "stock", "1");
+        redis.template().opsForSet().add(orderKey, "1");
+        Assertions.assertEquals(Arrays.asList(0L), steal(shards, 2, 1, 101));
+
+        // 进程内队列满了：库存还给分片2，用户移除；重复归还不会多加库存
+        reconciler.giveBack(VOUCHER_ID, 1, 101, shards, 0, 2);
+        reconciler.giveBack(VOUCHER_ID, 1, 101, shards, 0, 2);
+        Assertions.assertEquals("1", redis.template().opsForHash().get(stockKey, "stock"));
+        Assertions.assertFalse(redis.template().opsForSet().isMember(orderKey, "1"));
+        Assertions.assertEquals(2L, reconciler.stats().get("cancelled"));
+    }
+
+    @Test
+    void testReconcileRetriedAfterRedisRecovers() {
+        int shards = 4;
+        FlakyRedisTemplate template = new FlakyRedisTemplate();
+        SeckillStealReconciler reconciler = reconciler(template);
+        String stockKey = SeckillStockShards.stockKey(VOUCHER_ID, shards, 3);
+        String orderKey = SeckillStockShards.orderKey(VOUCHER_ID, shards, 0);
+        redis.template().opsForHash().put(stockKey, "stock", "1");
+        redis.template().opsForSet().add(orderKey, "1");
+        Assertions.assertEquals(Arrays.asList(0L), steal(shards, 3, 1, 101));
+
+        // redis不可用时记下来；进程内队列的订单之后不会再写入，重试时归还库存
+        template.down = true;
+        Assertions.assertNull(reconciler.resolve(VOUCHER_ID, 1, 101, shards, 0, 3, true));
+        reconciler.retry();
+        Assertions.assertEquals(1, reconciler.stats().get("pending"));
+
+        template.down = false;
+        reconciler.retry();
+        Assertions.assertEquals(0, reconciler.stats().get("pending"));
+        Assertions.assertEquals("1", redis.template().opsForHash().get(stockKey, "stock"));
+        Assertions.assertFalse(redis.template().opsForSet().isMember(orderKey, "1"));
+    }
+
+    // 和VoucherOrderServiceImpl一样执行窃取脚本（进程内队列模式，不写stream）
+    private static List<?> steal(int shards, int shard, long userId, long orderId) {
+        return redis.template().execute((RedisScript<List>) ReflectionTestUtils.getField(VoucherOrderServiceImpl.class, "SECKILL_STEAL_SCRIPT"),
+                Arrays.asList(SeckillStockShards.stockKey(VOUCHER_ID, shards, shard), SeckillStockShards.stolenKey(VOUCHER_ID, shards, shard)),
+                String.valueOf(userId), String.valueOf(VOUCHER_ID), String.valueOf(System.currentTimeMillis()), String.valueOf(orderId));
+    }
+
+    private static Result buy(VoucherOrderServiceImpl service, long userId) {
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            return service.seckillVouncher(VOUCHER_ID);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private static SeckillVoucher voucher(int stock, int shards) {
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(VOUCHER_ID);
+        voucher.setStock(stock);
+        voucher.setStockShards(shards);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        return voucher;
+    }
+
+    // 只有秒杀用到的依赖：数据库里只有这一张优惠券，订单写入stream，不启动消费者
+    private static VoucherOrderServiceImpl service(SeckillVoucher voucher, StringRedisTemplate template) {
+        CircuitBreaker breaker = breaker();
+        VoucherOrderRingQueue ringQueue = new VoucherOrderRingQueue();
+        ReflectionTestUtils.setField(ringQueue, "pipeline", "stream");
+        VoucherOrderStreamConsumer consumer = new VoucherOrderStreamConsumer();
+        ReflectionTestUtils.setField(consumer, "stringRedisTemplate", template);
+        RedisIdWorker idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(idWorker, "redisCircuitBreaker", breaker);
+
+        VoucherOrderServiceImpl service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "seckillVoucherService", Proxy.newProxyInstance(
+                SeckillStockShardsTest.class.getClassLoader(), new Class<?>[]{ISeckillVoucherService.class}, (p, method, args) -> {
+                    if (method.getName().equals("getById")) {
+                        return voucher.getVoucherId().equals(args[0]) ? voucher : null;
+                    }
+                    if (method.getName().equals("toString")) {
+                        return "seckillVoucherService";
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(service, "redisCircuitBreaker", breaker);
+        ReflectionTestUtils.setField(service, "voucherOrderRingQueue", ringQueue);
+        ReflectionTestUtils.setField(service, "voucherOrderStreamConsumer", consumer);
+        ReflectionTestUtils.setField(service, "redisIdWorker", idWorker);
+        ReflectionTestUtils.setField(service, "seckillStealReconciler", reconciler(template));
+        ReflectionTestUtils.setField(service, "emptyMemoMillis", 1000L);
+        return service;
+    }
+
+    private static SeckillStealReconciler reconciler(StringRedisTemplate template) {
+        SeckillStealReconciler reconciler = new SeckillStealReconciler();
+        ReflectionTestUtils.setField(reconciler, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(reconciler, "redisCircuitBreaker", breaker());
+        return reconciler;
+    }
+
+    // 和ResilienceConfig中的redis熔断器一样判断故障，窗口足够大，测试中不会打开
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker("redis", 1000, 1000, 0.5, 5000, 5, 1000, 1000,
+                e -> e instanceof RedisConnectionFailureException);
+    }
+
+    /**
+     * down时执行脚本连接失败的StringRedisTemplate，其它命令照常发给内嵌redis
+     */
+    private static class FlakyRedisTemplate extends StringRedisTemplate {
+        private volatile boolean down;
+
+        FlakyRedisTemplate() {
+            super(redis.connectionFactory());
+        }
+
+        @Override
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            if (down) {
+                throw new RedisConnectionFailureException("redis不可用");
+            }
+            return super.execute(script, keys, args);
+        }
+    }
+}
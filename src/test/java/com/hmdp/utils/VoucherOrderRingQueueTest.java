@@ -0,0 +1,310 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * VoucherOrderRingQueue攒批、逐条写入的降级、放弃重试后转入死信、停止时写完队列，数据库和redis都用内存中的假实现
+ */
+class VoucherOrderRingQueueTest {
+
+    private final FakeDb db = new FakeDb();
+    private final List<Map<?, ?>> deadLetters = Collections.synchronizedList(new ArrayList<>());
+    private VoucherOrderRingQueue queue;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (queue != null) {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    void testFlushWhenBatchFullOrAfterFlushMillis() {
+        start(50, 1000, 3);
+        db.stock.put(1L, 100);
+
+        // 够一批立即写入，不等flush-millis
+        long begin = System.currentTimeMillis();
+        publish(1, 50, 1);
+        await(() -> db.orders.size() == 50);
+        Assertions.assertTrue(System.currentTimeMillis() - begin < 500);
+
+        // 不够一批时第一个订单等flush-millis后一起写入
+        begin = System.currentTimeMillis();
+        publish(51, 3, 1);
+        sleep(300);
+        Assertions.assertEquals(50, db.orders.size());
+        await(() -> db.orders.size() == 53);
+        Assertions.assertTrue(System.currentTimeMillis() - begin >= 900);
+        Assertions.assertEquals(Arrays.asList(50, 3), db.batchSizes);
+        Assertions.assertEquals(47, (int) db.stock.get(1L));
+    }
+
+    @Test
+    void testDuplicateFallsBackToSingleWrites() {
+        start(10, 50, 3);
+        db.stock.put(1L, 10);
+        // 用户2已经买过（比如上次写入后没来得及释放槽位）
+        db.insert(999, 2, 1);
+
+        publish(1, 3, 1);
+        await(() -> stat("written") == 2 && stat("duplicates") == 1);
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(999L, 1L, 3L)), db.orders.keySet());
+        // 批量写入扣的库存随事务回滚，逐条写入只扣成功的两单
+        Assertions.assertEquals(8, (int) db.stock.get(1L));
+        Assertions.assertEquals(1, stat("fallbacks"));
+        Assertions.assertTrue(deadLetters.isEmpty());
+    }
+
+    @Test
+    void testStockShortageGoesToDeadLetter() {
+        start(10, 50, 3);
+        db.stock.put(1L, 1);
+
+        publish(1, 2, 1);
+        await(() -> deadLetters.size() == 1);
+        Assertions.assertEquals(Collections.singleton(1L), db.orders.keySet());
+        Assertions.assertEquals("2", deadLetters.get(0).get("id"));
+        Assertions.assertEquals("数据库库存不足", deadLetters.get(0).get("reason"));
+        // 库存不足不重试
+        Assertions.assertEquals(0, stat("failures"));
+    }
+
+    @Test
+    void testGiveUpAfterMaxAttempts() {
+        start(10, 50, 3);
+        db.stock.put(1L, 10);
+        db.down = true;
+
+        publish(1, 2, 1);
+        await(() -> deadLetters.size() == 2);
+        Assertions.assertEquals("数据库写入失败", deadLetters.get(0).get("reason"));
+        Assertions.assertEquals(3, stat("failures"));
+
+        // 放弃后槽位已经释放，数据库恢复后新的订单照常写入
+        db.down = false;
+        publish(3, 1, 1);
+        await(() -> db.orders.size() == 1);
+        Assertions.assertTrue(db.orders.containsKey(3L));
+    }
+
+    @Test
+    void testShutdownDrainsQueue() throws InterruptedException {
+        start(10, 50, 3);
+        db.stock.put(1L, 1000);
+        db.delayMillis = 20;
+
+        publish(1, 100, 1);
+        queue.destroy();
+        Assertions.assertEquals(100, db.orders.size());
+        Assertions.assertEquals(900, (int) db.stock.get(1L));
+        // 停止后不再接收新订单
+        Assertions.assertFalse(queue.publish(101, 101, 1, System.currentTimeMillis()));
+        Assertions.assertEquals(1, stat("rejected"));
+        queue = null;
+    }
+
+    private void start(int batchSize, long flushMillis, int maxAttempts) {
+        queue = new VoucherOrderRingQueue();
+        ReflectionTestUtils.setField(queue, "pipeline", VoucherOrderRingQueue.PIPELINE_RING);
+        ReflectionTestUtils.setField(queue, "size", 1024);
+        ReflectionTestUtils.setField(queue, "batchSize", batchSize);
+        ReflectionTestUtils.setField(queue, "flushMillis", flushMillis);
+        ReflectionTestUtils.setField(queue, "waitStrategy", "sleeping");
+        ReflectionTestUtils.setField(queue, "drainTimeoutMillis", 10000L);
+        ReflectionTestUtils.setField(queue, "maxAttempts", maxAttempts);
+        ReflectionTestUtils.setField(queue, "retryMillis", 10L);
+        ReflectionTestUtils.setField(queue, "jdbcTemplate", db);
+        ReflectionTestUtils.setField(queue, "transactionManager", db.transactionManager());
+        ReflectionTestUtils.setField(queue, "stringRedisTemplate", new DeadLetterRedisTemplate());
+        queue.init();
+    }
+
+    // 订单id和用户id都从first开始连续
+    private void publish(long first, int count, long voucherId) {
+        for (long id = first; id < first + count; id++) {
+            Assertions.assertTrue(queue.publish(id, id, voucherId, System.currentTimeMillis()));
+        }
+    }
+
+    private long stat(String name) {
+        return ((Number) queue.stats().get(name)).longValue();
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            sleep(5);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 只支持写入死信stream的StringRedisTemplate
+     */
+    private class DeadLetterRedisTemplate extends StringRedisTemplate {
+        private final StreamOperations<String, Object, Object> streamOperations = proxy();
+
+        @SuppressWarnings("unchecked")
+        private StreamOperations<String, Object, Object> proxy() {
+            return (StreamOperations<String, Object, Object>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{StreamOperations.class}, (p, method, args) -> {
+                        if (method.getName().equals("add") && args.length == 2 && args[1] instanceof Map) {
+                            Assertions.assertEquals(RedisConstants.SECKILL_ORDER_DEAD_STREAM, args[0]);
+                            deadLetters.add(new HashMap<>((Map<?, ?>) args[1]));
+                            return RecordId.autoGenerate();
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <HK, HV> StreamOperations<String, HK, HV> opsForStream() {
+            return (StreamOperations<String, HK, HV>) (StreamOperations<String, ?, ?>) streamOperations;
+        }
+    }
+
+    /**
+     * 内存中的库存表和订单表，按VoucherOrderRingQueue中的SQL执行，事务回滚时撤销修改
+     */
+    private static class FakeDb extends JdbcTemplate {
+        private final Map<Long, Integer> stock = new ConcurrentHashMap<>();
+        private final Map<Long, long[]> orders = Collections.synchronizedMap(new HashMap<>());
+        private final Set<String> userVouchers = new HashSet<>();
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        private final List<Runnable> undo = new ArrayList<>();
+        private volatile boolean down;
+        private volatile long delayMillis;
+
+        @Override
+        public int update(String sql, Object... args) {
+            check();
+            if (sql.startsWith("INSERT")) {
+                insert((Long) args[0], (Long) args[1], (Long) args[2]);
+                return 1;
+            }
+            // 合并扣减：stock - ? ... stock >= ?；逐条扣减：stock - 1 ... stock > 0
+            boolean batch = sql.contains(">=");
+            long voucherId = ((Number) args[batch ? 1 : 0]).longValue();
+            int n = batch ? ((Number) args[0]).intValue() : 1;
+            int current = stock.getOrDefault(voucherId, 0);
+            if (current < n) {
+                return 0;
+            }
+            stock.put(voucherId, current - n);
+            undo.add(() -> stock.put(voucherId, stock.get(voucherId) + n));
+            return 1;
+        }
+
+        @Override
+        public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) {
+            check();
+            int size = pss.getBatchSize();
+            batchSizes.add(size);
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++) {
+                long[] params = new long[3];
+                try {
+                    pss.setValues(statement(params), i);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                insert(params[0], params[1], params[2]);
+                result[i] = 1;
+            }
+            return result;
+        }
+
+        private void insert(long id, long userId, long voucherId) {
+            String userVoucher = userId + ":" + voucherId;
+            if (orders.containsKey(id) || !userVouchers.add(userVoucher)) {
+                throw new DuplicateKeyException("重复的订单" + id);
+            }
+            orders.put(id, new long[]{userId, voucherId});
+            undo.add(() -> {
+                orders.remove(id);
+                userVouchers.remove(userVoucher);
+            });
+        }
+
+        private void check() {
+            if (down) {
+                throw new DataAccessResourceFailureException("数据库不可用");
+            }
+            if (delayMillis > 0) {
+                sleep(delayMillis);
+            }
+        }
+
+        // 只记录前三个setLong的参数：id、user_id、voucher_id
+        private static PreparedStatement statement(long[] params) {
+            return (PreparedStatement) Proxy.newProxyInstance(FakeDb.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (p, method, args) -> {
+                        if (method.getName().equals("setLong")) {
+                            params[(Integer) args[0] - 1] = (Long) args[1];
+                        }
+                        return null;
+                    });
+        }
+
+        private PlatformTransactionManager transactionManager() {
+            return new PlatformTransactionManager() {
+                @Override
+                public TransactionStatus getTransaction(TransactionDefinition definition) {
+                    undo.clear();
+                    return new SimpleTransactionStatus();
+                }
+
+                @Override
+                public void commit(TransactionStatus status) {
+                    undo.clear();
+                }
+
+                @Override
+                public void rollback(TransactionStatus status) {
+                    for (int i = undo.size() - 1; i >= 0; i--) {
+                        undo.get(i).run();
+                    }
+                    undo.clear();
+                }
+            };
+        }
+    }
+}